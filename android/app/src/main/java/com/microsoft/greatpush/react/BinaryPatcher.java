@@ -0,0 +1,111 @@
+package com.microsoft.greatpush.react;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+// Applies a bsdiff-style binary patch to a file of the current package. The control, diff and extra
+// data of bsdiff are interleaved so that the patch is read in a single pass, and the patch is not
+// compressed itself since it is shipped inside the update zip. All integers are 8-byte big-endian:
+//
+//   "GPBSDIFF" magic, length of the target file
+//   repeated until the target is complete:
+//     diff length, extra length, source seek
+//     diff bytes, added byte-wise to the source bytes at the current source position
+//     extra bytes, copied to the target as they are
+//
+// After each record the source position moves forward by the diff length plus the (signed) seek.
+// Memory use is bounded by the buffer size regardless of the size of the files.
+class BinaryPatcher {
+    private static final byte[] MAGIC = "GPBSDIFF".getBytes();
+    private static final int BUFFER_SIZE = 1024 * 64;
+
+    // Writes the patched file to targetFile and returns its SHA-256 hash.
+    public static String apply(File sourceFile, File patchFile, File targetFile) throws IOException {
+        RandomAccessFile source = null;
+        DataInputStream patch = null;
+        BufferedOutputStream target = null;
+        try {
+            source = new RandomAccessFile(sourceFile, "r");
+            patch = new DataInputStream(new BufferedInputStream(new FileInputStream(patchFile), BUFFER_SIZE));
+            target = new BufferedOutputStream(new FileOutputStream(targetFile), BUFFER_SIZE);
+
+            byte[] magic = new byte[MAGIC.length];
+            patch.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new GreatPushInvalidUpdateException("The patch " + patchFile.getName() + " is not a binary patch.");
+            }
+
+            MessageDigest messageDigest = GreatPushUpdateUtils.createHashDigest();
+            byte[] sourceBuffer = new byte[BUFFER_SIZE];
+            byte[] patchBuffer = new byte[BUFFER_SIZE];
+            long sourceLength = source.length();
+            long targetLength = patch.readLong();
+            long sourcePosition = 0;
+            long targetPosition = 0;
+            while (targetPosition < targetLength) {
+                long diffLength = patch.readLong();
+                long extraLength = patch.readLong();
+                long seek = patch.readLong();
+                if (diffLength < 0 || extraLength < 0 || targetPosition + diffLength + extraLength > targetLength) {
+                    throw new GreatPushInvalidUpdateException("The patch " + patchFile.getName() + " is corrupted.");
+                }
+
+                for (long done = 0; done < diffLength; ) {
+                    int chunkLength = (int) Math.min(BUFFER_SIZE, diffLength - done);
+                    patch.readFully(patchBuffer, 0, chunkLength);
+                    readSource(source, sourceLength, sourcePosition + done, sourceBuffer, chunkLength);
+                    for (int i = 0; i < chunkLength; i++) {
+                        patchBuffer[i] += sourceBuffer[i];
+                    }
+
+                    target.write(patchBuffer, 0, chunkLength);
+                    messageDigest.update(patchBuffer, 0, chunkLength);
+                    done += chunkLength;
+                }
+
+                for (long done = 0; done < extraLength; ) {
+                    int chunkLength = (int) Math.min(BUFFER_SIZE, extraLength - done);
+                    patch.readFully(patchBuffer, 0, chunkLength);
+                    target.write(patchBuffer, 0, chunkLength);
+                    messageDigest.update(patchBuffer, 0, chunkLength);
+                    done += chunkLength;
+                }
+
+                sourcePosition += diffLength + seek;
+                targetPosition += diffLength + extraLength;
+            }
+
+            return GreatPushUpdateUtils.getHashString(messageDigest);
+        } catch (EOFException e) {
+            throw new GreatPushInvalidUpdateException("The patch " + patchFile.getName() + " is truncated.");
+        } finally {
+            try {
+                if (target != null) target.close();
+                if (patch != null) patch.close();
+                if (source != null) source.close();
+            } catch (IOException e) {
+                throw new GreatPushUnknownException("Error closing IO resources.", e);
+            }
+        }
+    }
+
+    // Like bsdiff, bytes outside of the source file read as zero.
+    private static void readSource(RandomAccessFile source, long sourceLength, long position, byte[] buffer, int length) throws IOException {
+        Arrays.fill(buffer, 0, length, (byte) 0);
+        long first = Math.max(position, 0);
+        long end = Math.min(position + length, sourceLength);
+        if (first < end) {
+            source.seek(first);
+            source.readFully(buffer, (int) (first - position), (int) (end - first));
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.microsoft.greatpush.react;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+// A small binary copy of everything GreatPush needs to pick the bundle at startup: the bundle it
+// resolved last time, the package and pending update it was resolved from, and the binary it was
+// resolved for. Reading it takes a single read of a few hundred bytes, instead of parsing
+// greatpush.json, app.json and the state store and looking up the binary build time.
+//
+// The record is only a cache. Every change to the packages or to the pending update deletes it,
+// and GreatPush writes it again the next time it resolves the bundle the slow way. Deleting it and
+// writing it share a lock, and GreatPush reads the state it writes while holding that lock, so a
+// record describing an older state can never replace the deletion that followed the change.
+class BootRecord {
+    private static final int MAGIC = 0x47504252;
+    private static final int VERSION = 1;
+    private static final int MAX_RECORD_SIZE = 1024 * 16;
+
+    private static final Object sLock = new Object();
+
+    private final boolean mIsUsingTestConfiguration;
+    private final String mAppVersion;
+    private final long mApkModifiedTime;
+    private final long mBinaryResourcesModifiedTime;
+    private final String mAssetsBundleFileName;
+    private final String mBundleUrl;
+    private final boolean mIsRunningBinaryVersion;
+    private final String mPackageHash;
+    private final String mPendingUpdateHash;
+    private final boolean mPendingUpdateIsLoading;
+
+    public BootRecord(boolean isUsingTestConfiguration, String appVersion, long apkModifiedTime, long binaryResourcesModifiedTime,
+                      String assetsBundleFileName, String bundleUrl, boolean isRunningBinaryVersion, String packageHash,
+                      String pendingUpdateHash, boolean pendingUpdateIsLoading) {
+        mIsUsingTestConfiguration = isUsingTestConfiguration;
+        mAppVersion = appVersion;
+        mApkModifiedTime = apkModifiedTime;
+        mBinaryResourcesModifiedTime = binaryResourcesModifiedTime;
+        mAssetsBundleFileName = assetsBundleFileName;
+        mBundleUrl = bundleUrl;
+        mIsRunningBinaryVersion = isRunningBinaryVersion;
+        mPackageHash = packageHash;
+        mPendingUpdateHash = pendingUpdateHash;
+        mPendingUpdateIsLoading = pendingUpdateIsLoading;
+    }
+
+    // The record lives outside of the TestPackages folder, so it has a single location for
+    // everybody that may need to delete it.
+    public static File getRecordFile(String documentsDirectory) {
+        return new File(GreatPushUtils.appendPathComponent(documentsDirectory, GreatPushConstants.GREAT_PUSH_FOLDER_PREFIX),
+                GreatPushConstants.BOOT_RECORD_FILE_NAME);
+    }
+
+    static Object getLock() {
+        return sLock;
+    }
+
+    // Whether the record was written by this binary, with the same app version and configuration.
+    public boolean isValidFor(boolean isUsingTestConfiguration, String appVersion, long apkModifiedTime) {
+        return mIsUsingTestConfiguration == isUsingTestConfiguration
+                && mAppVersion.equals(appVersion)
+                && mApkModifiedTime == apkModifiedTime;
+    }
+
+    public long getBinaryResourcesModifiedTime() {
+        return mBinaryResourcesModifiedTime;
+    }
+
+    public String getAssetsBundleFileName() {
+        return mAssetsBundleFileName;
+    }
+
+    public String getBundleUrl() {
+        return mBundleUrl;
+    }
+
+    public boolean isRunningBinaryVersion() {
+        return mIsRunningBinaryVersion;
+    }
+
+    public String getPackageHash() {
+        return mPackageHash;
+    }
+
+    public boolean hasPendingUpdate() {
+        return mPendingUpdateHash != null;
+    }
+
+    public String getPendingUpdateHash() {
+        return mPendingUpdateHash;
+    }
+
+    public boolean isPendingUpdateLoading() {
+        return mPendingUpdateIsLoading;
+    }
+
+    // Returns null if there is no record, or it cannot be used.
+    public static BootRecord read(File recordFile) {
+        long recordSize = recordFile.length();
+        if (recordSize == 0) {
+            return null;
+        }
+
+        if (recordSize > MAX_RECORD_SIZE) {
+            GreatPushUtils.log("Ignoring the boot record, it is larger than expected.");
+            return null;
+        }
+
+        byte[] data = new byte[(int) recordSize];
+        FileInputStream recordStream = null;
+        try {
+            recordStream = new FileInputStream(recordFile);
+            int offset = 0;
+            int numBytesRead;
+            while (offset < data.length && (numBytesRead = recordStream.read(data, offset, data.length - offset)) != -1) {
+                offset += numBytesRead;
+            }
+
+            if (offset < data.length) {
+                return null;
+            }
+
+            return parse(data);
+        } catch (IOException e) {
+            // Also thrown if the record was deleted after its size was read.
+            GreatPushUtils.log("Unable to read the boot record: " + e.getMessage());
+            return null;
+        } finally {
+            try {
+                if (recordStream != null) recordStream.close();
+            } catch (IOException e) {
+                GreatPushUtils.log("Error closing IO resources: " + e.getMessage());
+            }
+        }
+    }
+
+    private static BootRecord parse(byte[] data) throws IOException {
+        if (data.length < 4) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        DataInputStream recordStream = new DataInputStream(new ByteArrayInputStream(data));
+        if (recordStream.readInt() != MAGIC || recordStream.readInt() != VERSION) {
+            GreatPushUtils.log("Ignoring the boot record, it was written in an unknown format.");
+            return null;
+        }
+
+        BootRecord record = new BootRecord(recordStream.readBoolean(), recordStream.readUTF(), recordStream.readLong(),
+                recordStream.readLong(), recordStream.readUTF(), recordStream.readUTF(), recordStream.readBoolean(),
+                readOptionalString(recordStream), readOptionalString(recordStream), recordStream.readBoolean());
+        if (recordStream.available() != 4 || recordStream.readInt() != (int) crc.getValue()) {
+            GreatPushUtils.log("Ignoring the boot record, it is corrupted.");
+            return null;
+        }
+
+        return record;
+    }
+
+    // Replaces the record, writing it under a temporary name first so that a crash never leaves a
+    // partial record behind.
+    public void write(File recordFile) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream(256);
+        DataOutputStream recordStream = new DataOutputStream(data);
+        recordStream.writeInt(MAGIC);
+        recordStream.writeInt(VERSION);
+        recordStream.writeBoolean(mIsUsingTestConfiguration);
+        recordStream.writeUTF(mAppVersion);
+        recordStream.writeLong(mApkModifiedTime);
+        recordStream.writeLong(mBinaryResourcesModifiedTime);
+        recordStream.writeUTF(mAssetsBundleFileName);
+        recordStream.writeUTF(mBundleUrl);
+        recordStream.writeBoolean(mIsRunningBinaryVersion);
+        writeOptionalString(recordStream, mPackageHash);
+        writeOptionalString(recordStream, mPendingUpdateHash);
+        recordStream.writeBoolean(mPendingUpdateIsLoading);
+        recordStream.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(data.toByteArray());
+        recordStream.writeInt((int) crc.getValue());
+        recordStream.flush();
+
+        recordFile.getParentFile().mkdirs();
+        File tempRecordFile = new File(recordFile.getPath() + ".tmp");
+        FileOutputStream fileStream = new FileOutputStream(tempRecordFile);
+        try {
+            fileStream.write(data.toByteArray());
+        } finally {
+            fileStream.close();
+        }
+
+        if (!tempRecordFile.renameTo(recordFile)) {
+            tempRecordFile.delete();
+            throw new IOException("Unable to replace the boot record.");
+        }
+    }
+
+    // Must be called after every change to the state the record was written from.
+    public static void invalidate(File recordFile) {
+        synchronized (sLock) {
+            if (recordFile.exists() && !recordFile.delete()) {
+                // A record that outlives the state it describes would pick the wrong bundle.
+                throw new GreatPushUnknownException("Unable to delete the boot record.");
+            }
+        }
+    }
+
+    private static String readOptionalString(DataInputStream recordStream) throws IOException {
+        return recordStream.readBoolean() ? recordStream.readUTF() : null;
+    }
+
+    private static void writeOptionalString(DataOutputStream recordStream, String value) throws IOException {
+        recordStream.writeBoolean(value != null);
+        if (value != null) {
+            recordStream.writeUTF(value);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.microsoft.greatpush.react;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// The format of a JS bundle, as told by its first bytes rather than its name: either plain JS text,
+// or bytecode precompiled by the JS engine (Hermes), which starts with a magic number followed by
+// the version of the bytecode. An engine only runs bytecode of its own version.
+class BundleFormat {
+    public static final String JAVASCRIPT = "javascript";
+    public static final String BYTECODE = "bytecode";
+    public static final int NO_BYTECODE_VERSION = -1;
+
+    // The 64 bit magic number 0x1F1903C103BC1FC6, stored little-endian.
+    private static final byte[] BYTECODE_MAGIC = { (byte) 0xC6, 0x1F, (byte) 0xBC, 0x03, (byte) 0xC1, 0x03, 0x19, 0x1F };
+    private static final int HEADER_SIZE = BYTECODE_MAGIC.length + 4;
+
+    private final String mFormat;
+    private final int mBytecodeVersion;
+
+    private BundleFormat(String format, int bytecodeVersion) {
+        mFormat = format;
+        mBytecodeVersion = bytecodeVersion;
+    }
+
+    public static BundleFormat detect(File bundleFile) throws IOException {
+        return read(new FileInputStream(bundleFile));
+    }
+
+    // Reads the header of the bundle and closes the stream.
+    public static BundleFormat read(InputStream bundleStream) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        int headerSize = 0;
+        try {
+            int numBytesRead;
+            while (headerSize < HEADER_SIZE && (numBytesRead = bundleStream.read(header, headerSize, HEADER_SIZE - headerSize)) != -1) {
+                headerSize += numBytesRead;
+            }
+        } finally {
+            bundleStream.close();
+        }
+
+        if (headerSize < HEADER_SIZE) {
+            return new BundleFormat(JAVASCRIPT, NO_BYTECODE_VERSION);
+        }
+
+        for (int i = 0; i < BYTECODE_MAGIC.length; i++) {
+            if (header[i] != BYTECODE_MAGIC[i]) {
+                return new BundleFormat(JAVASCRIPT, NO_BYTECODE_VERSION);
+            }
+        }
+
+        int offset = BYTECODE_MAGIC.length;
+        int bytecodeVersion = (header[offset] & 0xFF) | (header[offset + 1] & 0xFF) << 8
+                | (header[offset + 2] & 0xFF) << 16 | (header[offset + 3] & 0xFF) << 24;
+        return new BundleFormat(BYTECODE, bytecodeVersion);
+    }
+
+    public String getFormat() {
+        return mFormat;
+    }
+
+    public boolean isBytecode() {
+        return BYTECODE.equals(mFormat);
+    }
+
+    public int getBytecodeVersion() {
+        return mBytecodeVersion;
+    }
+
+    // Throws if an engine running the given bytecode version (NO_BYTECODE_VERSION if it does not run
+    // bytecode) cannot load the bundle, which would otherwise only fail once the app restarts into it.
+    public void verifyBytecodeVersion(int expectedBytecodeVersion) {
+        if (!isBytecode()) {
+            return;
+        }
+
+        if (expectedBytecodeVersion == NO_BYTECODE_VERSION) {
+            throw new GreatPushInvalidUpdateException("Update is invalid - The JS bundle was compiled to bytecode version " + mBytecodeVersion
+                    + ", but the app's binary does not ship a bytecode bundle. Please set the bytecode version of the JS engine with GreatPushBuilder.setBytecodeVersion if it runs bytecode.");
+        } else if (expectedBytecodeVersion != mBytecodeVersion) {
+            throw new GreatPushInvalidUpdateException("Update is invalid - The JS bundle was compiled to bytecode version " + mBytecodeVersion
+                    + ", but the app's JS engine runs bytecode version " + expectedBytecodeVersion + ". Please release the update with the same version of the compiler that built the binary.");
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.microsoft.greatpush.react;
+
+import android.os.Process;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// Reads the bundle of a package (and any hot assets the app configured) ahead of time on a single
+// background thread, so that it is already in the page cache of the OS when React Native loads it.
+// Files are mapped and loaded page by page rather than copied into the Java heap.
+//
+// Whether it helps depends on the device: a bundle that was still cached is read back quickly,
+// and a bundle that was evicted before it was loaded gains nothing. The stats record both.
+class BundlePrewarmer {
+    private ExecutorService mExecutor;
+
+    // The files that have been read completely, and the files that are being read.
+    private final Set<String> mWarmFilePaths = new HashSet<>();
+    private final Set<String> mWarmingFilePaths = new HashSet<>();
+
+    private int mRunCount;
+    private int mFileCount;
+    private long mByteCount;
+    private long mTotalDurationMillis;
+    private long mLastDurationMillis;
+    private int mHitCount;
+    private int mMissCount;
+
+    public synchronized void prewarm(final String reason, final List<File> files) {
+        for (File file : files) {
+            mWarmingFilePaths.add(file.getAbsolutePath());
+        }
+
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                prewarmFiles(reason, files);
+            }
+        });
+    }
+
+    // Called when React Native is about to load the bundle, to record whether it was warm by then.
+    public synchronized void onBundleLoading(String bundlePath) {
+        String bundleFilePath = new File(bundlePath).getAbsolutePath();
+        if (mWarmFilePaths.contains(bundleFilePath)) {
+            mHitCount++;
+        } else if (mWarmingFilePaths.contains(bundleFilePath)) {
+            mMissCount++;
+            GreatPushUtils.log("The bundle is being loaded before it was prewarmed.");
+        }
+    }
+
+    public synchronized GreatPushPrewarmStats getStats() {
+        return new GreatPushPrewarmStats(mRunCount, mFileCount, mByteCount, mTotalDurationMillis, mLastDurationMillis, mHitCount, mMissCount);
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                            runnable.run();
+                        }
+                    }, "GreatPushPrewarmer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return mExecutor;
+    }
+
+    private void prewarmFiles(String reason, List<File> files) {
+        long startTime = System.nanoTime();
+        int fileCount = 0;
+        long byteCount = 0;
+        for (File file : files) {
+            boolean isWarm = false;
+            try {
+                if (file.isFile()) {
+                    byteCount += loadFile(file);
+                    fileCount++;
+                    isWarm = true;
+                }
+            } catch (IOException e) {
+                // Loading the file later is only slower.
+                GreatPushUtils.log("Unable to prewarm " + file.getAbsolutePath() + ": " + e.getMessage());
+            }
+
+            synchronized (this) {
+                mWarmingFilePaths.remove(file.getAbsolutePath());
+                if (isWarm) {
+                    mWarmFilePaths.add(file.getAbsolutePath());
+                }
+            }
+        }
+
+        long durationMillis = (System.nanoTime() - startTime) / 1000000;
+        synchronized (this) {
+            mRunCount++;
+            mFileCount += fileCount;
+            mByteCount += byteCount;
+            mTotalDurationMillis += durationMillis;
+            mLastDurationMillis = durationMillis;
+        }
+
+        GreatPushUtils.log("Prewarmed " + fileCount + " files (" + byteCount + " bytes) " + reason + " in " + durationMillis + " ms.");
+    }
+
+    private static long loadFile(File file) throws IOException {
+        FileInputStream fileStream = new FileInputStream(file);
+        try {
+            FileChannel channel = fileStream.getChannel();
+            long size = channel.size();
+            if (size > 0) {
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, size).load();
+            }
+
+            return size;
+        } finally {
+            fileStream.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.microsoft.greatpush.react;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// The segments of a bundle that was split into a main segment, loaded at startup, and segments that
+// the app requires lazily. A split bundle ships with a table named "<bundle>.segments.json" next to
+// its main segment, mapping segment ids to files relative to the table:
+//
+//   { "segments": { "1": "segments/1.bundle", "2": "segments/2.bundle" } }
+//
+// The segments are part of the package like any other file, so they are hashed and verified with
+// it, and a diff update can replace any of them on its own.
+class BundleSegmentTable {
+    private static final String SEGMENTS_KEY = "segments";
+
+    // Paths relative to the package folder, keyed by segment id.
+    private final Map<Integer, String> mSegmentPaths;
+
+    private BundleSegmentTable(Map<Integer, String> segmentPaths) {
+        mSegmentPaths = segmentPaths;
+    }
+
+    public static String getTablePath(String relativeBundlePath) {
+        return relativeBundlePath + GreatPushConstants.SEGMENT_TABLE_FILE_SUFFIX;
+    }
+
+    // Returns null if the package does not have a table at the given path.
+    public static BundleSegmentTable load(String packageFolderPath, String relativeTablePath) throws IOException {
+        File tableFile = new File(GreatPushUtils.appendPathComponent(packageFolderPath, relativeTablePath));
+        if (!tableFile.exists()) {
+            return null;
+        }
+
+        String tableFolderPath = new File(relativeTablePath).getParent();
+        JSONObject json = GreatPushUtils.getJsonObjectFromFile(tableFile.getAbsolutePath());
+        try {
+            Map<Integer, String> segmentPaths = new HashMap<>();
+            JSONObject segments = json.getJSONObject(SEGMENTS_KEY);
+            Iterator<String> segmentIds = segments.keys();
+            while (segmentIds.hasNext()) {
+                String segmentId = segmentIds.next();
+                String segmentPath = segments.getString(segmentId);
+                segmentPaths.put(Integer.parseInt(segmentId), tableFolderPath != null ? tableFolderPath + "/" + segmentPath : segmentPath);
+            }
+
+            return new BundleSegmentTable(segmentPaths);
+        } catch (JSONException | NumberFormatException e) {
+            throw new GreatPushMalformedDataException(tableFile.getAbsolutePath(), e);
+        }
+    }
+
+    // Checks that every segment is a file of the package, so that a package is never installed
+    // with only some of its segments.
+    public void verifySegments(String packageFolderPath) throws IOException {
+        String canonicalPackageFolderPath = new File(packageFolderPath).getCanonicalPath() + File.separator;
+        for (Map.Entry<Integer, String> segmentPath : mSegmentPaths.entrySet()) {
+            File segmentFile = new File(GreatPushUtils.appendPathComponent(packageFolderPath, segmentPath.getValue()));
+            if (!segmentFile.getCanonicalPath().startsWith(canonicalPackageFolderPath)) {
+                throw new GreatPushInvalidUpdateException("Update is invalid - Segment " + segmentPath.getKey() + " of the JS bundle is outside of the update.");
+            }
+
+            if (!segmentFile.isFile()) {
+                throw new GreatPushInvalidUpdateException("Update is invalid - Segment " + segmentPath.getKey() + " of the JS bundle could not be found at \"" + segmentPath.getValue() + "\".");
+            }
+        }
+    }
+
+    public String getSegmentPath(int segmentId) {
+        return mSegmentPaths.get(segmentId);
+    }
+
+    public int size() {
+        return mSegmentPaths.size();
+    }
+}
@@ -0,0 +1,59 @@
+package com.microsoft.greatpush.react;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+// Lets a download be cancelled from another thread. The download checks it between reads, and the
+// requests of the responses it registers are cancelled, which also stops a read that is blocked on
+// the network. The responses are still closed by the threads reading them.
+class DownloadCancellation {
+    private final String mPackageHash;
+    private final Set<GreatPushHttpResponse> mResponses = new HashSet<>();
+    private volatile boolean mIsCancelled;
+
+    public DownloadCancellation(String packageHash) {
+        mPackageHash = packageHash;
+    }
+
+    public boolean isCancelled() {
+        return mIsCancelled;
+    }
+
+    public void cancel() {
+        GreatPushHttpResponse[] responses;
+        synchronized (this) {
+            mIsCancelled = true;
+            responses = mResponses.toArray(new GreatPushHttpResponse[mResponses.size()]);
+            mResponses.clear();
+        }
+
+        for (GreatPushHttpResponse response : responses) {
+            response.cancel();
+        }
+    }
+
+    public void throwIfCancelled() throws GreatPushDownloadCancelledException {
+        if (mIsCancelled) {
+            throw new GreatPushDownloadCancelledException(mPackageHash);
+        }
+    }
+
+    // Closes the response right away if the download was already cancelled. Called by the thread
+    // that reads the response.
+    public void register(GreatPushHttpResponse response) throws IOException {
+        synchronized (this) {
+            if (!mIsCancelled) {
+                mResponses.add(response);
+                return;
+            }
+        }
+
+        response.close();
+        throwIfCancelled();
+    }
+
+    public synchronized void unregister(GreatPushHttpResponse response) {
+        mResponses.remove(response);
+    }
+}
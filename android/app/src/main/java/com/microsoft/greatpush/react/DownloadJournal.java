@@ -0,0 +1,95 @@
+package com.microsoft.greatpush.react;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+
+// Remembers how much of a package has been written to the download file, so that an interrupted
+// download can be continued with a range request instead of starting over from the first byte. The
+// file holds the bytes as they were sent, so for a gzip-encoded response it holds the compressed
+// representation, and the rest has to be asked for in the same encoding.
+class DownloadJournal {
+    private static final String COMMITTED_BYTES_KEY = "committedBytes";
+    private static final String VALIDATOR_KEY = "validator";
+    private static final String IS_GZIP_ENCODED_KEY = "isGzipEncoded";
+
+    private final File mJournalFile;
+    private final String mPackageHash;
+    private final String mDownloadUrl;
+    private final String mValidator;
+    private final boolean mIsGzipEncoded;
+    private long mCommittedBytes;
+
+    public DownloadJournal(File journalFile, String packageHash, String downloadUrl, String validator, boolean isGzipEncoded) {
+        mJournalFile = journalFile;
+        mPackageHash = packageHash;
+        mDownloadUrl = downloadUrl;
+        mValidator = validator;
+        mIsGzipEncoded = isGzipEncoded;
+        mCommittedBytes = 0;
+    }
+
+    public static DownloadJournal load(File journalFile) {
+        if (!journalFile.exists()) {
+            return null;
+        }
+
+        try {
+            JSONObject json = GreatPushUtils.getJsonObjectFromFile(journalFile.getAbsolutePath());
+            DownloadJournal journal = new DownloadJournal(journalFile,
+                    json.optString(GreatPushConstants.PACKAGE_HASH_KEY, null),
+                    json.optString(GreatPushConstants.DOWNLOAD_URL_KEY, null),
+                    json.optString(VALIDATOR_KEY, null),
+                    json.optBoolean(IS_GZIP_ENCODED_KEY, false));
+            journal.mCommittedBytes = json.optLong(COMMITTED_BYTES_KEY, 0);
+            return journal;
+        } catch (IOException | GreatPushMalformedDataException e) {
+            // A journal that cannot be read only means that the download cannot be resumed.
+            GreatPushUtils.log("Unable to read download journal, the download will start from the beginning.");
+            return null;
+        }
+    }
+
+    public long getCommittedBytes() {
+        return mCommittedBytes;
+    }
+
+    public String getValidator() {
+        return mValidator;
+    }
+
+    public boolean isGzipEncoded() {
+        return mIsGzipEncoded;
+    }
+
+    public boolean canResume(String packageHash, String downloadUrl) {
+        return mValidator != null
+                && packageHash != null && packageHash.equals(mPackageHash)
+                && downloadUrl != null && downloadUrl.equals(mDownloadUrl);
+    }
+
+    public void commit(long committedBytes) throws IOException {
+        mCommittedBytes = committedBytes;
+        if (mValidator == null) {
+            // Without a validator the server cannot tell us whether the remaining bytes still
+            // belong to the same file, so there is nothing worth persisting.
+            delete();
+            return;
+        }
+
+        JSONObject json = new JSONObject();
+        GreatPushUtils.setJSONValueForKey(json, GreatPushConstants.PACKAGE_HASH_KEY, mPackageHash);
+        GreatPushUtils.setJSONValueForKey(json, GreatPushConstants.DOWNLOAD_URL_KEY, mDownloadUrl);
+        GreatPushUtils.setJSONValueForKey(json, VALIDATOR_KEY, mValidator);
+        GreatPushUtils.setJSONValueForKey(json, IS_GZIP_ENCODED_KEY, mIsGzipEncoded);
+        GreatPushUtils.setJSONValueForKey(json, COMMITTED_BYTES_KEY, mCommittedBytes);
+        GreatPushUtils.writeJsonToFile(json, mJournalFile.getAbsolutePath());
+    }
+
+    public void delete() {
+        if (mJournalFile.exists()) {
+            mJournalFile.delete();
+        }
+    }
+}
@@ -3,28 +3,118 @@ package com.microsoft.greatpush.react;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.bridge.WritableNativeMap;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The progress of a single download. One instance is updated for the whole download rather than
+// allocating an object per read, and it can be updated from several threads without locking. A
+// sample is only reported once the configured time or number of bytes has passed since the last
+// one, so fast networks do not flood the progress callback.
 class DownloadProgress {
-    private long mTotalBytes;
-    private long mReceivedBytes;
+    private final long mSampleIntervalNanos;
+    private final long mSampleIntervalBytes;
+
+    private final AtomicLong mTotalBytes = new AtomicLong(-1);
+    private final AtomicLong mReceivedBytes = new AtomicLong();
+    private final AtomicLong mLastSampleNanos = new AtomicLong();
+    private final AtomicLong mLastSampleBytes = new AtomicLong();
+    private volatile long mStartNanos;
+    private volatile long mStartBytes;
+
+    // A sample interval of 0 reports every update, a byte interval of 0 only samples on time.
+    public DownloadProgress(long sampleIntervalMillis, long sampleIntervalBytes) {
+        mSampleIntervalNanos = TimeUnit.MILLISECONDS.toNanos(sampleIntervalMillis);
+        mSampleIntervalBytes = sampleIntervalBytes;
+    }
+
+    // Called once the size of the download is known, and again whenever it starts over.
+    public void start(long totalBytes, long receivedBytes) {
+        long now = System.nanoTime();
+        mStartNanos = now;
+        mStartBytes = receivedBytes;
+        mLastSampleNanos.set(now);
+        mLastSampleBytes.set(receivedBytes);
+        mReceivedBytes.set(receivedBytes);
+        mTotalBytes.set(totalBytes);
+    }
+
+    // Called at the end of a download whose size was not known, e.g. a compressed response sent
+    // without a length, so that it is reported as completed.
+    public void finish() {
+        mTotalBytes.set(mReceivedBytes.get());
+    }
+
+    // Returns whether a new sample is due and should be reported. The completion of the download
+    // is always reported.
+    public boolean addReceivedBytes(long numBytesReceived) {
+        long receivedBytes = mReceivedBytes.addAndGet(numBytesReceived);
+        if (receivedBytes == mTotalBytes.get()) {
+            return true;
+        }
+
+        long now = System.nanoTime();
+        long lastSampleNanos = mLastSampleNanos.get();
+        boolean isTimeSampleDue = now - lastSampleNanos >= mSampleIntervalNanos;
+        boolean isByteSampleDue = mSampleIntervalBytes > 0 && receivedBytes - mLastSampleBytes.get() >= mSampleIntervalBytes;
+        if (!isTimeSampleDue && !isByteSampleDue) {
+            return false;
+        }
+
+        // When several threads are receiving, only the one that claims the sample reports it.
+        if (!mLastSampleNanos.compareAndSet(lastSampleNanos, now)) {
+            return false;
+        }
+
+        mLastSampleBytes.set(receivedBytes);
+        return true;
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes.get();
+    }
+
+    public long getReceivedBytes() {
+        return mReceivedBytes.get();
+    }
+
+    // The average rate since the download (re)started, or 0 before any time has passed.
+    public long getBytesPerSecond() {
+        long elapsedNanos = System.nanoTime() - mStartNanos;
+        if (elapsedNanos <= 0) {
+            return 0;
+        }
+
+        return (mReceivedBytes.get() - mStartBytes) * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    // Returns -1 if the size of the download or the rate is not known yet.
+    public long getEstimatedMillisRemaining() {
+        long totalBytes = mTotalBytes.get();
+        long bytesPerSecond = getBytesPerSecond();
+        if (totalBytes < 0 || bytesPerSecond <= 0) {
+            return -1;
+        }
 
-    public DownloadProgress (long totalBytes, long receivedBytes){
-        mTotalBytes = totalBytes;
-        mReceivedBytes = receivedBytes;
+        return Math.max(totalBytes - mReceivedBytes.get(), 0) * 1000 / bytesPerSecond;
     }
 
     public WritableMap createWritableMap() {
+        long totalBytes = getTotalBytes();
+        long receivedBytes = getReceivedBytes();
         WritableMap map = new WritableNativeMap();
-        if (mTotalBytes < Integer.MAX_VALUE) {
-            map.putInt("totalBytes", (int) mTotalBytes);
-            map.putInt("receivedBytes", (int) mReceivedBytes);
+        if (totalBytes < Integer.MAX_VALUE) {
+            map.putInt("totalBytes", (int) totalBytes);
+            map.putInt("receivedBytes", (int) receivedBytes);
         } else {
-            map.putDouble("totalBytes", mTotalBytes);
-            map.putDouble("receivedBytes", mReceivedBytes);
+            map.putDouble("totalBytes", totalBytes);
+            map.putDouble("receivedBytes", receivedBytes);
         }
+        map.putDouble("bytesPerSecond", getBytesPerSecond());
+        map.putDouble("estimatedTimeRemaining", getEstimatedMillisRemaining());
         return map;
     }
 
     public boolean isCompleted() {
-        return mTotalBytes == mReceivedBytes;
+        return mTotalBytes.get() == mReceivedBytes.get();
     }
 }
@@ -0,0 +1,67 @@
+package com.microsoft.greatpush.react;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Counts the bytes read from the network stream and reports them to the progress callback,
+// regardless of whether the consumer is a plain file copy or a zip decoder. Reading stops as soon as
+// the download is cancelled.
+class DownloadProgressInputStream extends FilterInputStream {
+    private final DownloadProgress mDownloadProgress;
+    private final DownloadProgressCallback mProgressCallback;
+    private final DownloadCancellation mCancellation;
+
+    public DownloadProgressInputStream(InputStream in, DownloadProgress downloadProgress, DownloadProgressCallback progressCallback,
+                                       DownloadCancellation cancellation) {
+        super(in);
+        mDownloadProgress = downloadProgress;
+        mProgressCallback = progressCallback;
+        mCancellation = cancellation;
+    }
+
+    public long getReceivedBytes() {
+        return mDownloadProgress.getReceivedBytes();
+    }
+
+    @Override
+    public int read() throws IOException {
+        mCancellation.throwIfCancelled();
+        int data = super.read();
+        if (data >= 0) {
+            onBytesRead(1);
+        }
+        return data;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        mCancellation.throwIfCancelled();
+        int numBytesRead = super.read(buffer, offset, length);
+        if (numBytesRead > 0) {
+            onBytesRead(numBytesRead);
+        }
+        return numBytesRead;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+        mCancellation.throwIfCancelled();
+        long numBytesSkipped = super.skip(byteCount);
+        if (numBytesSkipped > 0) {
+            onBytesRead(numBytesSkipped);
+        }
+        return numBytesSkipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void onBytesRead(long numBytesRead) {
+        if (mDownloadProgress.addReceivedBytes(numBytesRead)) {
+            mProgressCallback.call(mDownloadProgress);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.microsoft.greatpush.react;
+
+import android.util.Base64;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+// The updates that failed to install or were rolled back. Their hashes are kept in memory, so that
+// checking an update is a set lookup, and in the state store as a list of hashes, from the least
+// to the most recently failed. The metadata of each failed update is stored under its own key and
+// only read for the rollback report.
+//
+// Only the FAILED_UPDATES_LIMIT most recently failed updates are kept. Once the failure filter is
+// enabled, the hashes of older updates are added to a Bloom filter, which still remembers them in
+// 8 KB however many there are, at the cost of rarely reporting an update that never failed
+// as failed.
+class FailedUpdateRegistry {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final GreatPushStateStore mSettings;
+    private final LinkedHashSet<String> mFailedHashes = new LinkedHashSet<>();
+    private BloomFilter mFilter;
+
+    public FailedUpdateRegistry(GreatPushStateStore settings) {
+        mSettings = settings;
+        String filterString = mSettings.getString(GreatPushConstants.FAILED_UPDATE_FILTER_KEY);
+        if (filterString != null) {
+            mFilter = BloomFilter.fromString(filterString);
+        }
+
+        loadFailedHashes();
+    }
+
+    public synchronized boolean contains(String packageHash) {
+        if (packageHash == null) {
+            return false;
+        }
+
+        return mFailedHashes.contains(packageHash) || (mFilter != null && mFilter.mightContain(packageHash));
+    }
+
+    public synchronized void add(JSONObject failedPackage) {
+        String packageHash = failedPackage.optString(GreatPushConstants.PACKAGE_HASH_KEY, null);
+        if (packageHash == null) {
+            GreatPushUtils.log("Not saving the failed update, it does not have a package hash.");
+            return;
+        }
+
+        // Failing again makes the update the most recent failure.
+        mFailedHashes.remove(packageHash);
+        mFailedHashes.add(packageHash);
+        List<String> evictedHashes = new ArrayList<>();
+        Iterator<String> failedHashes = mFailedHashes.iterator();
+        while (mFailedHashes.size() > GreatPushConstants.FAILED_UPDATES_LIMIT) {
+            String evictedHash = failedHashes.next();
+            evictedHashes.add(evictedHash);
+            failedHashes.remove();
+        }
+
+        // The metadata is saved before the hash list that refers to it.
+        mSettings.putString(getMetadataKey(packageHash), failedPackage.toString(), true);
+        saveFailedHashes();
+        for (String evictedHash : evictedHashes) {
+            mSettings.remove(getMetadataKey(evictedHash), true);
+            if (mFilter != null) {
+                mFilter.add(evictedHash);
+            }
+        }
+
+        if (mFilter != null && !evictedHashes.isEmpty()) {
+            mSettings.putString(GreatPushConstants.FAILED_UPDATE_FILTER_KEY, mFilter.toString(), true);
+        }
+    }
+
+    // Returns the metadata of the most recently failed update, or null if there is none.
+    public synchronized JSONObject getLastFailedUpdate() {
+        String lastFailedHash = null;
+        for (String failedHash : mFailedHashes) {
+            lastFailedHash = failedHash;
+        }
+
+        if (lastFailedHash == null) {
+            return null;
+        }
+
+        String metadataString = mSettings.getString(getMetadataKey(lastFailedHash));
+        if (metadataString == null) {
+            return null;
+        }
+
+        try {
+            return new JSONObject(metadataString);
+        } catch (JSONException e) {
+            throw new GreatPushUnknownException("Unable to read failed update data stored in the state store.", e);
+        }
+    }
+
+    // Disabling the filter forgets the updates that were only remembered by it.
+    public synchronized void setFilterEnabled(boolean isEnabled) {
+        if (isEnabled && mFilter == null) {
+            mFilter = new BloomFilter();
+            mSettings.putString(GreatPushConstants.FAILED_UPDATE_FILTER_KEY, mFilter.toString(), true);
+        } else if (!isEnabled && mFilter != null) {
+            mFilter = null;
+            mSettings.remove(GreatPushConstants.FAILED_UPDATE_FILTER_KEY, true);
+        }
+    }
+
+    public synchronized void clear() {
+        mSettings.remove(GreatPushConstants.FAILED_UPDATE_HASHES_KEY, true);
+        for (String failedHash : mFailedHashes) {
+            mSettings.remove(getMetadataKey(failedHash), true);
+        }
+
+        mFailedHashes.clear();
+        if (mFilter != null) {
+            mFilter = new BloomFilter();
+            mSettings.putString(GreatPushConstants.FAILED_UPDATE_FILTER_KEY, mFilter.toString(), true);
+        }
+    }
+
+    private void loadFailedHashes() {
+        String failedHashesString = mSettings.getString(GreatPushConstants.FAILED_UPDATE_HASHES_KEY);
+        if (failedHashesString != null) {
+            try {
+                JSONArray failedHashes = new JSONArray(failedHashesString);
+                for (int i = 0; i < failedHashes.length(); i++) {
+                    mFailedHashes.add(failedHashes.getString(i));
+                }
+            } catch (JSONException e) {
+                // Unrecognized data format, start over with an empty list.
+                GreatPushUtils.log("Unable to parse the failed update hashes stored in the state store.");
+                mFailedHashes.clear();
+                saveFailedHashes();
+            }
+        }
+
+        migrateFailedUpdates();
+    }
+
+    // Moves the failed updates saved as a single array of metadata by earlier versions.
+    private void migrateFailedUpdates() {
+        String failedUpdatesString = mSettings.getString(GreatPushConstants.FAILED_UPDATES_KEY);
+        if (failedUpdatesString == null) {
+            return;
+        }
+
+        try {
+            JSONArray failedUpdates = new JSONArray(failedUpdatesString);
+            for (int i = 0; i < failedUpdates.length(); i++) {
+                add(failedUpdates.getJSONObject(i));
+            }
+        } catch (JSONException e) {
+            GreatPushUtils.log("Unable to parse failed updates information " + failedUpdatesString + " stored in the state store");
+        }
+
+        mSettings.remove(GreatPushConstants.FAILED_UPDATES_KEY, true);
+    }
+
+    private void saveFailedHashes() {
+        JSONArray failedHashes = new JSONArray();
+        for (String failedHash : mFailedHashes) {
+            failedHashes.put(failedHash);
+        }
+
+        mSettings.putString(GreatPushConstants.FAILED_UPDATE_HASHES_KEY, failedHashes.toString(), true);
+    }
+
+    private static String getMetadataKey(String packageHash) {
+        return GreatPushConstants.FAILED_UPDATE_METADATA_KEY_PREFIX + packageHash;
+    }
+
+    // 2^16 bits and 10 hash functions: fewer than one lookup in a thousand is a false positive for
+    // up to 4,000 evicted updates.
+    private static class BloomFilter {
+        private static final int BIT_COUNT = 1 << 16;
+        private static final int HASH_COUNT = 10;
+
+        private final byte[] mBits;
+
+        BloomFilter() {
+            this(new byte[BIT_COUNT / 8]);
+        }
+
+        private BloomFilter(byte[] bits) {
+            mBits = bits;
+        }
+
+        static BloomFilter fromString(String filterString) {
+            byte[] bits = Base64.decode(filterString, Base64.NO_WRAP);
+            if (bits.length != BIT_COUNT / 8) {
+                GreatPushUtils.log("Ignoring the failed update filter stored in the state store, it has an unexpected size.");
+                return new BloomFilter();
+            }
+
+            return new BloomFilter(bits);
+        }
+
+        void add(String packageHash) {
+            long[] hashes = hash(packageHash);
+            for (int i = 0; i < HASH_COUNT; i++) {
+                int bit = getBit(hashes, i);
+                mBits[bit >>> 3] |= 1 << (bit & 7);
+            }
+        }
+
+        boolean mightContain(String packageHash) {
+            long[] hashes = hash(packageHash);
+            for (int i = 0; i < HASH_COUNT; i++) {
+                int bit = getBit(hashes, i);
+                if ((mBits[bit >>> 3] & (1 << (bit & 7))) == 0) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return Base64.encodeToString(mBits, Base64.NO_WRAP);
+        }
+
+        // The bits are derived from two 64 bit hashes, h1 + i * h2.
+        private static int getBit(long[] hashes, int i) {
+            return (int) ((hashes[0] + i * hashes[1]) & (BIT_COUNT - 1));
+        }
+
+        private static long[] hash(String packageHash) {
+            try {
+                ByteBuffer digest = ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(packageHash.getBytes(UTF_8)));
+                return new long[] { digest.getLong(), digest.getLong() | 1 };
+            } catch (NoSuchAlgorithmException e) {
+                throw new GreatPushUnknownException("Unable to compute hash of the failed update.", e);
+            }
+        }
+    }
+}
@@ -1,21 +1,55 @@
 package com.microsoft.greatpush.react;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 public class FileUtils {
 
-    private static final int WRITE_BUFFER_SIZE = 1024 * 8;
+    private static final int MIN_BUFFER_SIZE = 1024 * 8;
+    private static final int MAX_BUFFER_SIZE = 1024 * 256;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Most package files are small images, so the buffer only grows up to the size of the file
+    // instead of always allocating for the bundle.
+    private static int getBufferSize(long fileSize) {
+        return (int) Math.max(MIN_BUFFER_SIZE, Math.min(fileSize, MAX_BUFFER_SIZE));
+    }
 
     public static void copyDirectoryContents(String sourceDirectoryPath, String destinationDirectoryPath) throws IOException {
+        copyDirectoryContents(sourceDirectoryPath, destinationDirectoryPath, null);
+    }
+
+    // Also records the hash of every copied file in updateContentsManifest, if one is given.
+    public static void copyDirectoryContents(String sourceDirectoryPath, String destinationDirectoryPath,
+                                             UpdateContentsManifest updateContentsManifest) throws IOException {
+        copyDirectoryContents(sourceDirectoryPath, destinationDirectoryPath, updateContentsManifest, null, null);
+    }
+
+    // Leaves out the files whose path relative to the source directory is in skippedFilePaths. The
+    // hashes of the source files that sourceHashIndex still covers are taken from it instead of
+    // being computed while copying.
+    static void copyDirectoryContents(String sourceDirectoryPath, String destinationDirectoryPath, UpdateContentsManifest updateContentsManifest,
+                                      Set<String> skippedFilePaths, PackageHashIndex sourceHashIndex) throws IOException {
+        MessageDigest messageDigest = updateContentsManifest != null ? GreatPushUpdateUtils.createHashDigest() : null;
+        copyDirectoryContents(sourceDirectoryPath, destinationDirectoryPath, "", updateContentsManifest, messageDigest, skippedFilePaths, sourceHashIndex);
+    }
+
+    private static void copyDirectoryContents(String sourceDirectoryPath, String destinationDirectoryPath, String pathPrefix,
+                                              UpdateContentsManifest updateContentsManifest, MessageDigest messageDigest,
+                                              Set<String> skippedFilePaths, PackageHashIndex sourceHashIndex) throws IOException {
         File sourceDir = new File(sourceDirectoryPath);
         File destDir = new File(destinationDirectoryPath);
         if (!destDir.exists()) {
@@ -23,33 +57,73 @@ public class FileUtils {
         }
 
         for (File sourceFile : sourceDir.listFiles()) {
+            String relativePath = (pathPrefix.isEmpty() ? "" : (pathPrefix + "/")) + sourceFile.getName();
             if (sourceFile.isDirectory()) {
                 copyDirectoryContents(
                         GreatPushUtils.appendPathComponent(sourceDirectoryPath, sourceFile.getName()),
-                        GreatPushUtils.appendPathComponent(destinationDirectoryPath, sourceFile.getName()));
-            } else {
+                        GreatPushUtils.appendPathComponent(destinationDirectoryPath, sourceFile.getName()),
+                        relativePath, updateContentsManifest, messageDigest, skippedFilePaths, sourceHashIndex);
+            } else if (skippedFilePaths == null || !skippedFilePaths.contains(relativePath)) {
                 File destFile = new File(destDir, sourceFile.getName());
-                FileInputStream fromFileStream = null;
-                BufferedInputStream fromBufferedStream = null;
-                FileOutputStream destStream = null;
-                byte[] buffer = new byte[WRITE_BUFFER_SIZE];
-                try {
-                    fromFileStream = new FileInputStream(sourceFile);
-                    fromBufferedStream = new BufferedInputStream(fromFileStream);
-                    destStream = new FileOutputStream(destFile);
-                    int bytesRead;
-                    while ((bytesRead = fromBufferedStream.read(buffer)) > 0) {
-                        destStream.write(buffer, 0, bytesRead);
+                String indexedHash = (messageDigest != null && sourceHashIndex != null) ? sourceHashIndex.getHash(relativePath, sourceFile) : null;
+                if (indexedHash != null) {
+                    copyFile(sourceFile, destFile, null);
+                    updateContentsManifest.put(relativePath, indexedHash);
+                } else {
+                    copyFile(sourceFile, destFile, messageDigest);
+                    if (messageDigest != null) {
+                        updateContentsManifest.put(relativePath, GreatPushUpdateUtils.getHashString(messageDigest));
                     }
-                } finally {
-                    try {
-                        if (fromFileStream != null) fromFileStream.close();
-                        if (fromBufferedStream != null) fromBufferedStream.close();
-                        if (destStream != null) destStream.close();
-                    } catch (IOException e) {
-                        throw new GreatPushUnknownException("Error closing IO resources.", e);
+                }
+            }
+        }
+    }
+
+    // Copies a single file, also feeding its contents to messageDigest if one is given.
+    public static void copyFile(File sourceFile, File destFile, MessageDigest messageDigest) throws IOException {
+        // The destination may be a hard link to a file shared with other packages, so it has to be
+        // replaced rather than overwritten in place.
+        if (destFile.exists()) {
+            destFile.delete();
+        }
+
+        FileInputStream fromFileStream = null;
+        FileOutputStream destStream = null;
+        try {
+            fromFileStream = new FileInputStream(sourceFile);
+            destStream = new FileOutputStream(destFile);
+            FileChannel fromChannel = fromFileStream.getChannel();
+            FileChannel destChannel = destStream.getChannel();
+            long size = fromChannel.size();
+            if (messageDigest == null) {
+                // Let the kernel copy the file without passing its contents through the heap.
+                long position = 0;
+                while (position < size) {
+                    long bytesTransferred = fromChannel.transferTo(position, size - position, destChannel);
+                    if (bytesTransferred <= 0) {
+                        throw new EOFException("Unable to copy " + sourceFile.getName() + ", it ended at byte " + position + ".");
                     }
+
+                    position += bytesTransferred;
                 }
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate(getBufferSize(size));
+                while (fromChannel.read(buffer) > 0) {
+                    buffer.flip();
+                    messageDigest.update(buffer.array(), 0, buffer.limit());
+                    while (buffer.hasRemaining()) {
+                        destChannel.write(buffer);
+                    }
+
+                    buffer.clear();
+                }
+            }
+        } finally {
+            try {
+                if (fromFileStream != null) fromFileStream.close();
+                if (destStream != null) destStream.close();
+            } catch (IOException e) {
+                throw new GreatPushUnknownException("Error closing IO resources.", e);
             }
         }
     }
@@ -103,77 +177,126 @@ public class FileUtils {
         }
     }
 
+    public static void moveDirectory(String sourceDirectoryPath, String destinationDirectoryPath) throws IOException {
+        File sourceDir = new File(sourceDirectoryPath);
+        File destDir = new File(destinationDirectoryPath);
+        if (destDir.exists()) {
+            deleteFileOrFolderSilently(destDir);
+        }
+
+        destDir.getParentFile().mkdirs();
+        if (!sourceDir.renameTo(destDir)) {
+            // Renaming can fail if the folders are on different volumes, so fall back to copying.
+            copyDirectoryContents(sourceDirectoryPath, destinationDirectoryPath);
+            deleteFileOrFolderSilently(sourceDir);
+        }
+    }
+
+    // Reads the whole file at once and returns its contents as they are, line endings included.
     public static String readFileToString(String filePath) throws IOException {
-        FileInputStream fin = null;
-        BufferedReader reader = null;
+        FileInputStream fin = new FileInputStream(filePath);
         try {
-            File fl = new File(filePath);
-            fin = new FileInputStream(fl);
-            reader = new BufferedReader(new InputStreamReader(fin));
-            StringBuilder sb = new StringBuilder();
-            String line = null;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line).append("\n");
+            FileChannel channel = fin.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("The file " + filePath + " is too large to be read into memory.");
             }
 
-            return sb.toString();
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("The file " + filePath + " ended at byte " + buffer.position() + ".");
+                }
+            }
+
+            return new String(buffer.array(), UTF_8);
         } finally {
-            if (reader != null) reader.close();
-            if (fin != null) fin.close();
+            fin.close();
         }
     }
 
     public static void unzipFile(File zipFile, String destination) throws IOException {
+        unzipFile(zipFile, destination, null);
+    }
+
+    public static void unzipFile(File zipFile, String destination, UpdateContentsManifest updateContentsManifest) throws IOException {
         FileInputStream fileStream = null;
         BufferedInputStream bufferedStream = null;
-        ZipInputStream zipStream = null;
         try {
             fileStream = new FileInputStream(zipFile);
-            bufferedStream = new BufferedInputStream(fileStream);
-            zipStream = new ZipInputStream(bufferedStream);
-            ZipEntry entry;
-
-            File destinationFolder = new File(destination);
-            if (destinationFolder.exists()) {
-                deleteFileOrFolderSilently(destinationFolder);
+            // ZipInputStream reads in small chunks, so it still needs a buffer in front of the file.
+            bufferedStream = new BufferedInputStream(fileStream, getBufferSize(zipFile.length()));
+            unzipStream(bufferedStream, destination, updateContentsManifest);
+        } finally {
+            try {
+                if (bufferedStream != null) bufferedStream.close();
+                else if (fileStream != null) fileStream.close();
+            } catch (IOException e) {
+                throw new GreatPushUnknownException("Error closing IO resources.", e);
             }
-            
-            destinationFolder.mkdirs();
-
-            byte[] buffer = new byte[WRITE_BUFFER_SIZE];
-            while ((entry = zipStream.getNextEntry()) != null) {
-                String fileName = entry.getName();
-                File file = new File(destinationFolder, fileName);
-                if (entry.isDirectory()) {
-                    file.mkdirs();
-                } else {
-                    File parent = file.getParentFile();
-                    if (!parent.exists()) {
-                        parent.mkdirs();
-                    }
+        }
+    }
+
+    // Extracts the entries of the zip read from inputStream into destination as they arrive. The
+    // stream is left open and positioned after the last local entry, so that callers reading from
+    // the network can drain the remaining central directory bytes themselves.
+    public static void unzipStream(InputStream inputStream, String destination) throws IOException {
+        unzipStream(inputStream, destination, null);
+    }
 
-                    FileOutputStream fout = new FileOutputStream(file);
-                    try {
-                        int numBytesRead;
-                        while ((numBytesRead = zipStream.read(buffer)) != -1) {
-                            fout.write(buffer, 0, numBytesRead);
-                        }
-                    } finally {
-                        fout.close();
+    // Also records the hash of every extracted file in updateContentsManifest, if one is given.
+    public static void unzipStream(InputStream inputStream, String destination, UpdateContentsManifest updateContentsManifest) throws IOException {
+        ZipInputStream zipStream = new ZipInputStream(inputStream);
+        ZipEntry entry;
+
+        File destinationFolder = new File(destination);
+        if (destinationFolder.exists()) {
+            deleteFileOrFolderSilently(destinationFolder);
+        }
+
+        destinationFolder.mkdirs();
+
+        // One buffer is shared by all entries and only grows for the large ones.
+        byte[] buffer = new byte[MIN_BUFFER_SIZE];
+        MessageDigest messageDigest = updateContentsManifest != null ? GreatPushUpdateUtils.createHashDigest() : null;
+        String destinationFolderPath = destinationFolder.getPath();
+        while ((entry = zipStream.getNextEntry()) != null) {
+            String fileName = entry.getName();
+            File file = new File(destinationFolder, fileName);
+            if (entry.isDirectory()) {
+                file.mkdirs();
+            } else {
+                File parent = file.getParentFile();
+                if (!parent.exists()) {
+                    parent.mkdirs();
+                }
+
+                long entrySize = entry.getSize();
+                if (entrySize > buffer.length && buffer.length < MAX_BUFFER_SIZE) {
+                    buffer = new byte[getBufferSize(entrySize)];
+                }
+
+                FileOutputStream fout = new FileOutputStream(file);
+                try {
+                    int numBytesRead;
+                    while ((numBytesRead = zipStream.read(buffer)) != -1) {
+                        fout.write(buffer, 0, numBytesRead);
+                        if (messageDigest != null) messageDigest.update(buffer, 0, numBytesRead);
                     }
+                } finally {
+                    fout.close();
                 }
-                long time = entry.getTime();
-                if (time > 0) {
-                    file.setLastModified(time);
+
+                if (messageDigest != null) {
+                    // Derive the key from the resolved file so that it matches the path a walk of
+                    // the folder would produce, whatever the form of the entry name.
+                    String relativePath = file.getPath().substring(destinationFolderPath.length() + 1).replace(File.separatorChar, '/');
+                    updateContentsManifest.put(relativePath, GreatPushUpdateUtils.getHashString(messageDigest));
                 }
             }
-        } finally {
-            try {
-                if (zipStream != null) zipStream.close();
-                if (bufferedStream != null) bufferedStream.close();
-                if (fileStream != null) fileStream.close();
-            } catch (IOException e) {
-                throw new GreatPushUnknownException("Error closing IO resources.", e);
+            long time = entry.getTime();
+            if (time > 0) {
+                file.setLastModified(time);
             }
         }
     }
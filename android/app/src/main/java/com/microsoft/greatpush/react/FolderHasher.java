@@ -0,0 +1,180 @@
+package com.microsoft.greatpush.react;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Hashes the files of a folder on several threads. The folder is listed up front, and each worker
+// then takes the next file that nobody has started on yet, reusing its own digest and buffer. The
+// largest files are handed out first so that the bundle does not end up being hashed last, on its own.
+// Files that are unchanged since they were added to the hash index of the folder are not read at all.
+class FolderHasher {
+    private static final int BUFFER_SIZE = 1024 * 64;
+
+    private final int mParallelism;
+
+    public FolderHasher(int parallelism) {
+        mParallelism = Math.max(parallelism, 1);
+    }
+
+    // Returns the entries in the <relativeFilePath>:<sha256FileHash> format used by the CLI, in no
+    // particular order and without the files that are not part of the package hash. If a hash index
+    // is given, it is used for the files it covers and updated with the hashes of the others.
+    public ArrayList<String> hashFolder(String folderPath, PackageHashIndex hashIndex) {
+        return hashFolder(folderPath, "", hashIndex);
+    }
+
+    // Only hashes the files under the relative directory path, but the entries keep the paths
+    // relative to folderPath.
+    public ArrayList<String> hashFolder(String folderPath, String relativeDirectoryPath, PackageHashIndex hashIndex) {
+        List<HashedFile> allFiles = new ArrayList<>();
+        listFiles(relativeDirectoryPath.isEmpty() ? new File(folderPath) : new File(folderPath, relativeDirectoryPath), relativeDirectoryPath, allFiles);
+        List<HashedFile> files = new ArrayList<>();
+        for (HashedFile file : allFiles) {
+            file.mHash = hashIndex != null ? hashIndex.getHash(file.mRelativePath, file.mFile) : null;
+            if (file.mHash == null) {
+                files.add(file);
+            }
+        }
+
+        Collections.sort(files, new Comparator<HashedFile>() {
+            @Override
+            public int compare(HashedFile file1, HashedFile file2) {
+                return file1.mLength < file2.mLength ? 1 : (file1.mLength == file2.mLength ? 0 : -1);
+            }
+        });
+
+        HashWorker worker = new HashWorker(files);
+        int workerCount = Math.min(mParallelism, files.size());
+        try {
+            if (workerCount <= 1) {
+                worker.call();
+            } else {
+                runWorkers(worker, workerCount);
+            }
+        } catch (IOException e) {
+            throw new GreatPushUnknownException("Unable to compute hash of update contents.", e);
+        }
+
+        if (hashIndex != null) {
+            GreatPushUtils.log("Hashed " + files.size() + " of " + allFiles.size() + " files, the others were unchanged.");
+            for (HashedFile file : files) {
+                hashIndex.put(file.mRelativePath, file.mLength, file.mLastModified, file.mHash);
+            }
+        }
+
+        ArrayList<String> manifest = new ArrayList<>(allFiles.size());
+        for (HashedFile file : allFiles) {
+            manifest.add(file.mRelativePath + ":" + file.mHash);
+        }
+
+        return manifest;
+    }
+
+    private static void runWorkers(HashWorker worker, int workerCount) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(workerCount);
+        try {
+            List<Future<Void>> workers = new ArrayList<>(workerCount);
+            for (int i = 0; i < workerCount; i++) {
+                workers.add(executor.submit(worker));
+            }
+
+            for (Future<Void> future : workers) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+
+                    throw new GreatPushUnknownException("Unable to compute hash of update contents.", e.getCause());
+                } catch (InterruptedException e) {
+                    throw new GreatPushUnknownException("Interrupted while computing hash of update contents.", e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void listFiles(File folder, String pathPrefix, List<HashedFile> files) {
+        for (File file : folder.listFiles()) {
+            String relativePath = (pathPrefix.isEmpty() ? "" : (pathPrefix + "/")) + file.getName();
+            // The app.json of an installed package is written by the device, not part of its contents.
+            if (GreatPushUpdateUtils.isHashIgnored(relativePath) || GreatPushUpdateUtils.isLocalPackageFile(relativePath)
+                    || relativePath.equals(GreatPushConstants.PACKAGE_FILE_NAME)) {
+                continue;
+            }
+
+            if (file.isDirectory()) {
+                listFiles(file, relativePath, files);
+            } else {
+                files.add(new HashedFile(file, relativePath));
+            }
+        }
+    }
+
+    private static String computeHash(File file, MessageDigest messageDigest, byte[] buffer) throws IOException {
+        FileInputStream fileStream = new FileInputStream(file);
+        try {
+            int numBytesRead;
+            while ((numBytesRead = fileStream.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, numBytesRead);
+            }
+        } finally {
+            fileStream.close();
+        }
+
+        return GreatPushUpdateUtils.getHashString(messageDigest);
+    }
+
+    // Every thread runs the same worker, each call with its own digest and buffer.
+    private static class HashWorker implements Callable<Void> {
+        private final List<HashedFile> mFiles;
+        private final AtomicInteger mNextFileIndex = new AtomicInteger();
+
+        HashWorker(List<HashedFile> files) {
+            mFiles = files;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            MessageDigest messageDigest = GreatPushUpdateUtils.createHashDigest();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int fileIndex;
+            while ((fileIndex = mNextFileIndex.getAndIncrement()) < mFiles.size()) {
+                HashedFile file = mFiles.get(fileIndex);
+                file.mHash = computeHash(file.mFile, messageDigest, buffer);
+            }
+
+            return null;
+        }
+    }
+
+    private static class HashedFile {
+        final File mFile;
+        final String mRelativePath;
+        final long mLength;
+        final long mLastModified;
+        // Written by the worker that hashed the file, and read after all workers have completed.
+        String mHash;
+
+        HashedFile(File file, String relativePath) {
+            mFile = file;
+            mRelativePath = relativePath;
+            mLength = file.length();
+            mLastModified = file.lastModified();
+        }
+    }
+}
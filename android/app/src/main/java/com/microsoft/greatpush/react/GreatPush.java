@@ -19,20 +19,44 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 public class GreatPush implements ReactPackage {
 
-    private static boolean sIsRunningBinaryVersion = false;
-    private static boolean sNeedToReportRollback = false;
+    // Changed by the state writer and by the bundle resolution, and read from any thread.
+    private static volatile boolean sIsRunningBinaryVersion = false;
+    private static volatile boolean sNeedToReportRollback = false;
     private static boolean sTestConfigurationFlag = false;
     private static String sAppVersion = null;
 
-    private boolean mDidUpdate = false;
+    private volatile boolean mDidUpdate = false;
 
     private String mAssetsBundleFileName;
 
+    // Read once at startup, and only used until the bundle has been resolved for the first time.
+    private BootRecord mBootRecord;
+    private File mBootRecordFile;
+    private long mApkModifiedTime;
+    private Long mBinaryResourcesModifiedTime;
+    private Integer mBinaryBytecodeVersion;
+
+    // The package whose bundle was resolved last, null while the binary bundle is used. Segments
+    // are looked up in that package even after another one has been installed, as they have to
+    // match the main segment that is running.
+    private String mRunningPackageHash;
+    private BundleSegmentTable mRunningSegmentTable;
+
+    private final BundlePrewarmer mBundlePrewarmer = new BundlePrewarmer();
+    private final UpdateTaskExecutor mTaskExecutor = new UpdateTaskExecutor(GreatPushConstants.DEFAULT_QUERY_LANE_SIZE,
+            GreatPushConstants.DEFAULT_IO_LANE_SIZE);
+    private boolean mIsBundlePrewarmingEnabled = false;
+    private volatile boolean mIsPackageVerificationOnInstallEnabled = false;
+    private boolean mIsBundleVerificationOnLoadEnabled = false;
+    private List<String> mPrewarmedAssetPaths = new ArrayList<>();
+
     // Helper classes.
     private GreatPushUpdateManager mUpdateManager;
     private GreatPushTelemetryManager mTelemetryManager;
@@ -48,7 +72,7 @@ public class GreatPush implements ReactPackage {
     private static String mPublicKey;
 
     private static ReactInstanceHolder mReactInstanceHolder;
-    private static GreatPush mCurrentInstance;
+    private static volatile GreatPush mCurrentInstance;
 
     public GreatPush(String deploymentKey, Context context) {
         this(deploymentKey, context, false);
@@ -59,6 +83,7 @@ public class GreatPush implements ReactPackage {
     }
 
     public GreatPush(String deploymentKey, Context context, boolean isDebugMode) {
+        long startTime = System.nanoTime();
         mContext = context.getApplicationContext();
 
         mUpdateManager = new GreatPushUpdateManager(context.getFilesDir().getAbsolutePath());
@@ -78,8 +103,17 @@ public class GreatPush implements ReactPackage {
 
         mCurrentInstance = this;
 
+        loadBootRecord();
+        if (mBootRecord == null) {
+            // Preparing an install deletes the boot record, so an install can only be left
+            // prepared if the app was stopped before restarting into it.
+            commitPreparedInstall();
+        }
+
         clearDebugCacheIfNeeded(null);
         initializeUpdateAfterRestart();
+        checkBlobStoreInBackground();
+        logStartupTime("Initialized", startTime, mBootRecord != null);
     }
 
     public GreatPush(String deploymentKey, Context context, boolean isDebugMode, @NonNull String serverUrl) {
@@ -103,6 +137,108 @@ public class GreatPush implements ReactPackage {
         mServerUrl = serverUrl;
     }
 
+    void checkBlobStoreInBackground() {
+        mTaskExecutor.executeIO(new Runnable() {
+            @Override
+            public void run() {
+                mUpdateManager.collectBlobGarbage();
+            }
+        });
+    }
+
+    private void loadBootRecord() {
+        mBootRecordFile = BootRecord.getRecordFile(mContext.getFilesDir().getAbsolutePath());
+        // An update of the app replaces the APK, so its modification time tells whether the record
+        // was written by this binary without looking up the binary build time.
+        mApkModifiedTime = new File(mContext.getPackageCodePath()).lastModified();
+        BootRecord bootRecord = BootRecord.read(mBootRecordFile);
+        if (bootRecord != null && bootRecord.isValidFor(isUsingTestConfiguration(), sAppVersion, mApkModifiedTime)) {
+            mBootRecord = bootRecord;
+            if (bootRecord.getBinaryResourcesModifiedTime() != -1) {
+                mBinaryResourcesModifiedTime = bootRecord.getBinaryResourcesModifiedTime();
+            }
+        }
+    }
+
+    // Called once the bundle has been resolved from the full state, which is read again under the
+    // lock of the record so that a change made in the meantime is either included or deletes it.
+    private void saveBootRecord(String assetsBundleFileName, String bundleUrl, boolean isRunningBinaryVersion) {
+        synchronized (BootRecord.getLock()) {
+            try {
+                JSONObject pendingUpdate = mSettingsManager.getPendingUpdate();
+                String pendingUpdateHash = null;
+                boolean pendingUpdateIsLoading = false;
+                if (pendingUpdate != null) {
+                    pendingUpdateHash = pendingUpdate.getString(GreatPushConstants.PENDING_UPDATE_HASH_KEY);
+                    pendingUpdateIsLoading = pendingUpdate.getBoolean(GreatPushConstants.PENDING_UPDATE_IS_LOADING_KEY);
+                }
+
+                String packageHash = mUpdateManager.getCurrentPackageHash();
+                String currentBundleUrl = mUpdateManager.getCurrentPackageBundlePath(assetsBundleFileName);
+                if (isRunningBinaryVersion ? currentBundleUrl != null : !bundleUrl.equals(currentBundleUrl)) {
+                    // The packages changed since the bundle was resolved.
+                    return;
+                }
+
+                if (mUpdateManager.hasPreparedInstall()) {
+                    // The packages are about to change.
+                    return;
+                }
+
+                new BootRecord(isUsingTestConfiguration(), sAppVersion, mApkModifiedTime,
+                        mBinaryResourcesModifiedTime != null ? mBinaryResourcesModifiedTime : -1,
+                        assetsBundleFileName, bundleUrl, isRunningBinaryVersion, packageHash,
+                        pendingUpdateHash, pendingUpdateIsLoading).write(mBootRecordFile);
+            } catch (IOException | JSONException e) {
+                // Only the next start is slower without the record.
+                GreatPushUtils.log("Unable to write the boot record: " + e.getMessage());
+            }
+        }
+    }
+
+    // Starts reading the bundle of the current package, and the hot assets configured by the app,
+    // into the page cache in the background. Does nothing while the binary bundle is used.
+    void prewarmCurrentPackage(String reason) {
+        if (!mIsBundlePrewarmingEnabled) {
+            return;
+        }
+
+        String packageHash;
+        String bundlePath;
+        BootRecord bootRecord = mBootRecord;
+        if (bootRecord != null) {
+            // Keeps the startup from reading the package metadata before the bundle is resolved.
+            packageHash = bootRecord.isRunningBinaryVersion() ? null : bootRecord.getPackageHash();
+            bundlePath = bootRecord.getBundleUrl();
+        } else {
+            packageHash = mUpdateManager.getCurrentPackageHash();
+            bundlePath = mUpdateManager.getCurrentPackageBundlePath(mAssetsBundleFileName != null
+                    ? mAssetsBundleFileName : GreatPushConstants.DEFAULT_JS_BUNDLE_NAME);
+        }
+
+        if (packageHash == null || bundlePath == null) {
+            return;
+        }
+
+        List<File> files = new ArrayList<>();
+        files.add(new File(bundlePath));
+        String packageFolderPath = mUpdateManager.getPackageFolderPath(packageHash);
+        for (String assetPath : mPrewarmedAssetPaths) {
+            files.add(new File(packageFolderPath, assetPath));
+        }
+
+        mBundlePrewarmer.prewarm(reason, files);
+    }
+
+    public GreatPushPrewarmStats getPrewarmStats() {
+        return mBundlePrewarmer.getStats();
+    }
+
+    private void logStartupTime(String step, long startTime, boolean usedBootRecord) {
+        GreatPushUtils.log(step + " in " + (System.nanoTime() - startTime) / 1000 + " us, "
+                + (usedBootRecord ? "using" : "without") + " the boot record.");
+    }
+
     private String getPublicKeyByResourceDescriptor(int publicKeyResourceDescriptor){
         String publicKey;
         try {
@@ -160,18 +296,47 @@ public class GreatPush implements ReactPackage {
     }
 
     long getBinaryResourcesModifiedTime() {
+        // The binary cannot change while the app is running.
+        if (mBinaryResourcesModifiedTime != null) {
+            return mBinaryResourcesModifiedTime;
+        }
+
         try {
             String packageName = this.mContext.getPackageName();
             int greatPushApkBuildTimeId = this.mContext.getResources().getIdentifier(GreatPushConstants.GREAT_PUSH_APK_BUILD_TIME_KEY, "string", packageName);
             // replace double quotes needed for correct restoration of long value from strings.xml
             // https://github.com/Microsoft/cordova-plugin-great-push/issues/264
             String greatPushApkBuildTime = this.mContext.getResources().getString(greatPushApkBuildTimeId).replaceAll("\"","");
-            return Long.parseLong(greatPushApkBuildTime);
+            mBinaryResourcesModifiedTime = Long.parseLong(greatPushApkBuildTime);
+            return mBinaryResourcesModifiedTime;
         } catch (Exception e) {
             throw new GreatPushUnknownException("Error in getting binary resources modified time", e);
         }
     }
 
+    // The bytecode version run by the JS engine of the binary, as set by the app or read from the
+    // header of the binary's own bundle. BundleFormat.NO_BYTECODE_VERSION if the binary ships a
+    // plain JS bundle.
+    int getBinaryBytecodeVersion() {
+        if (mBinaryBytecodeVersion != null) {
+            return mBinaryBytecodeVersion;
+        }
+
+        String assetsBundleFileName = mAssetsBundleFileName != null ? mAssetsBundleFileName : GreatPushConstants.DEFAULT_JS_BUNDLE_NAME;
+        try {
+            mBinaryBytecodeVersion = BundleFormat.read(mContext.getAssets().open(assetsBundleFileName)).getBytecodeVersion();
+        } catch (IOException e) {
+            GreatPushUtils.log("Unable to read the format of the binary's JS bundle: " + e.getMessage());
+            mBinaryBytecodeVersion = BundleFormat.NO_BYTECODE_VERSION;
+        }
+
+        return mBinaryBytecodeVersion;
+    }
+
+    void setBytecodeVersion(int bytecodeVersion) {
+        mBinaryBytecodeVersion = bytecodeVersion;
+    }
+
     public String getPackageFolder() {
         JSONObject greatPushLocalPackage = mUpdateManager.getCurrentPackage();
         if (greatPushLocalPackage == null) {
@@ -210,7 +375,106 @@ public class GreatPush implements ReactPackage {
         return mCurrentInstance.getJSBundleFileInternal(assetsBundleFileName);
     }
 
+    // Returns the path of a lazily loaded segment of the running bundle, or null if the running
+    // bundle is the binary's or is not split into segments, in which case the app should load the
+    // segment it shipped with.
+    public static String getJSBundleSegmentFile(int segmentId) {
+        if (mCurrentInstance == null) {
+            throw new GreatPushNotInitializedException("A GreatPush instance has not been created yet. Have you added it to your app's list of ReactPackages?");
+        }
+
+        return mCurrentInstance.getJSBundleSegmentFileInternal(segmentId);
+    }
+
+    public synchronized String getJSBundleSegmentFileInternal(int segmentId) {
+        if (mRunningPackageHash == null) {
+            return null;
+        }
+
+        if (mRunningSegmentTable == null) {
+            mRunningSegmentTable = mUpdateManager.getSegmentTable(mRunningPackageHash);
+            if (mRunningSegmentTable == null) {
+                return null;
+            }
+        }
+
+        String relativeSegmentPath = mRunningSegmentTable.getSegmentPath(segmentId);
+        if (relativeSegmentPath == null) {
+            return null;
+        }
+
+        return GreatPushUtils.appendPathComponent(mUpdateManager.getPackageFolderPath(mRunningPackageHash), relativeSegmentPath);
+    }
+
+    private synchronized String getRunningPackageHash() {
+        return mRunningPackageHash;
+    }
+
+    private synchronized void setRunningPackage(String packageHash) {
+        mRunningPackageHash = packageHash;
+        mRunningSegmentTable = null;
+    }
+
     public String getJSBundleFileInternal(String assetsBundleFileName) {
+        long startTime = System.nanoTime();
+        BootRecord bootRecord = mBootRecord;
+        mBootRecord = null;
+        boolean usedBootRecord = bootRecord != null && bootRecord.getAssetsBundleFileName().equals(assetsBundleFileName);
+        if (usedBootRecord && !bootRecord.isRunningBinaryVersion() && !new File(bootRecord.getBundleUrl()).exists()) {
+            // The bundle was deleted behind the back of the state store, which decides what to load
+            // instead, e.g. the bundle of the previous package or the binary one.
+            GreatPushUtils.log("The bundle of the boot record does not exist, resolving it from the saved state.");
+            BootRecord.invalidate(mBootRecordFile);
+            usedBootRecord = false;
+        }
+
+        String bundleUrl;
+        if (usedBootRecord) {
+            this.mAssetsBundleFileName = assetsBundleFileName;
+            bundleUrl = bootRecord.getBundleUrl();
+            GreatPushUtils.logBundleUrl(bundleUrl);
+            sIsRunningBinaryVersion = bootRecord.isRunningBinaryVersion();
+            setRunningPackage(sIsRunningBinaryVersion ? null : bootRecord.getPackageHash());
+            if (!sIsRunningBinaryVersion) {
+                mBundlePrewarmer.onBundleLoading(bundleUrl);
+            }
+        } else {
+            bundleUrl = resolveJSBundleFile(assetsBundleFileName);
+        }
+
+        while (mIsBundleVerificationOnLoadEnabled && !sIsRunningBinaryVersion && !verifyBundle(getRunningPackageHash(), bundleUrl)) {
+            // The package has been rolled back, so the bundle of the previous one is checked next.
+            bundleUrl = resolveJSBundleFile(assetsBundleFileName);
+        }
+
+        logStartupTime("Resolved the bundle", startTime, usedBootRecord);
+        return bundleUrl;
+    }
+
+    // Checks the bundle against the Merkle tree of its package before it is loaded. A bundle that
+    // fails the check is handled like an update that failed to load, and its package is rolled back.
+    private boolean verifyBundle(String packageHash, String bundlePath) {
+        String packageFolderPath = mUpdateManager.getPackageFolderPath(packageHash);
+        if (!bundlePath.startsWith(packageFolderPath + "/")) {
+            return true;
+        }
+
+        long startTime = System.nanoTime();
+        try {
+            if (mUpdateManager.verifyPackageContents(packageHash, bundlePath.substring(packageFolderPath.length() + 1))) {
+                logStartupTime("Verified the bundle", startTime, false);
+            }
+
+            return true;
+        } catch (GreatPushInvalidUpdateException | GreatPushMalformedDataException | IOException e) {
+            GreatPushUtils.log("The JS bundle of the current package cannot be loaded, rolling back to a previous version: " + e.getMessage());
+            sNeedToReportRollback = true;
+            rollbackPackage();
+            return false;
+        }
+    }
+
+    private String resolveJSBundleFile(String assetsBundleFileName) {
         this.mAssetsBundleFileName = assetsBundleFileName;
         String binaryJsBundleUrl = GreatPushConstants.ASSETS_BUNDLE_PREFIX + assetsBundleFileName;
 
@@ -219,16 +483,23 @@ public class GreatPush implements ReactPackage {
             // There has not been any downloaded updates.
             GreatPushUtils.logBundleUrl(binaryJsBundleUrl);
             sIsRunningBinaryVersion = true;
+            setRunningPackage(null);
+            saveBootRecord(assetsBundleFileName, binaryJsBundleUrl, true);
             return binaryJsBundleUrl;
         }
 
         JSONObject packageMetadata = this.mUpdateManager.getCurrentPackage();
-        if (isPackageBundleLatest(packageMetadata)) {
+        if (isPackageBundleLatest(packageMetadata) && isPackageBundleSupported(packageMetadata)) {
             GreatPushUtils.logBundleUrl(packageFilePath);
             sIsRunningBinaryVersion = false;
+            setRunningPackage(packageMetadata.optString(GreatPushConstants.PACKAGE_HASH_KEY, null));
+            mBundlePrewarmer.onBundleLoading(packageFilePath);
+            saveBootRecord(assetsBundleFileName, packageFilePath, false);
             return packageFilePath;
         } else {
-            // The binary version is newer.
+            // No boot record is written here: the next start has to go through this check again
+            // until the outdated package has been cleared.
+            // The binary version is newer, or cannot run the bundle of the package.
             this.mDidUpdate = false;
             if (!this.mIsDebugMode || hasBinaryVersionChanged(packageMetadata)) {
                 this.clearUpdates();
@@ -236,6 +507,7 @@ public class GreatPush implements ReactPackage {
 
             GreatPushUtils.logBundleUrl(binaryJsBundleUrl);
             sIsRunningBinaryVersion = true;
+            setRunningPackage(null);
             return binaryJsBundleUrl;
         }
     }
@@ -249,6 +521,23 @@ public class GreatPush implements ReactPackage {
         // the app was just freshly updated.
         mDidUpdate = false;
 
+        if (mBootRecord != null && !mBootRecord.hasPendingUpdate()) {
+            // Without a pending update there is nothing to do, and the record says so without
+            // reading the state store.
+            return;
+        }
+
+        // Handling the pending update changes the state the record was written from.
+        mBootRecord = null;
+        GreatPushStateWriter.getInstance().write(new Runnable() {
+            @Override
+            public void run() {
+                handlePendingUpdateAfterRestart();
+            }
+        });
+    }
+
+    private void handlePendingUpdateAfterRestart() {
         JSONObject pendingUpdate = mSettingsManager.getPendingUpdate();
         if (pendingUpdate != null) {
             JSONObject packageMetadata = this.mUpdateManager.getCurrentPackage();
@@ -277,7 +566,7 @@ public class GreatPush implements ReactPackage {
                 }
             } catch (JSONException e) {
                 // Should not happen.
-                throw new GreatPushUnknownException("Unable to read pending update metadata stored in SharedPreferences", e);
+                throw new GreatPushUnknownException("Unable to read pending update metadata stored in the state store", e);
             }
         }
     }
@@ -311,6 +600,21 @@ public class GreatPush implements ReactPackage {
         }
     }
 
+    private boolean isPackageBundleSupported(JSONObject packageMetadata) {
+        if (!BundleFormat.BYTECODE.equals(packageMetadata.optString(GreatPushConstants.BUNDLE_FORMAT_KEY, null))) {
+            return true;
+        }
+
+        int bytecodeVersion = packageMetadata.optInt(GreatPushConstants.BYTECODE_VERSION_KEY, BundleFormat.NO_BYTECODE_VERSION);
+        if (bytecodeVersion != getBinaryBytecodeVersion()) {
+            GreatPushUtils.log("The JS bundle of the current package was compiled to bytecode version " + bytecodeVersion
+                    + ", which the app's JS engine does not run. Falling back to the binary's bundle.");
+            return false;
+        }
+
+        return true;
+    }
+
     private boolean hasBinaryVersionChanged(JSONObject packageMetadata) {
         String packageAppVersion = packageMetadata.optString("appVersion", null);
         return !sAppVersion.equals(packageAppVersion);
@@ -325,10 +629,35 @@ public class GreatPush implements ReactPackage {
     }
 
     private void rollbackPackage() {
-        JSONObject failedPackage = mUpdateManager.getCurrentPackage();
-        mSettingsManager.saveFailedUpdate(failedPackage);
-        mUpdateManager.rollbackPackage();
-        mSettingsManager.removePendingUpdate();
+        GreatPushStateWriter.getInstance().write(new Runnable() {
+            @Override
+            public void run() {
+                JSONObject failedPackage = mUpdateManager.getCurrentPackage();
+                mSettingsManager.saveFailedUpdate(failedPackage);
+                mUpdateManager.rollbackPackage();
+                mSettingsManager.removePendingUpdate();
+            }
+        });
+    }
+
+    // Switches to the install prepared by GreatPushUpdateManager.prepareInstall, if any. Besides the
+    // rename of the status file and the removal of the packages it replaces, this only saves the
+    // pending update: saving it while preparing would let the running bundle clear it with
+    // notifyApplicationReady before the restart.
+    // Returns whether an install had been prepared.
+    boolean commitPreparedInstall() {
+        return GreatPushStateWriter.getInstance().write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                String packageHash = mUpdateManager.getPreparedPackageHash();
+                if (packageHash == null) {
+                    return false;
+                }
+
+                mSettingsManager.savePendingUpdate(packageHash, /* isLoading */false);
+                return mUpdateManager.commitInstall();
+            }
+        });
     }
 
     public void setNeedToReportRollback(boolean needToReportRollback) {
@@ -344,14 +673,71 @@ public class GreatPush implements ReactPackage {
         mDeploymentKey = deploymentKey;
     }
 
+    void setDownloadSegmentation(int segmentCount, long minimumSegmentSize) {
+        mUpdateManager.setDownloadSegmentation(segmentCount, minimumSegmentSize);
+    }
+
+    void setDownloadProgressInterval(long intervalMillis, long intervalBytes) {
+        mUpdateManager.setDownloadProgressInterval(intervalMillis, intervalBytes);
+    }
+
+    void setHttpTransport(GreatPushHttpTransport httpTransport) {
+        mUpdateManager.setHttpTransport(httpTransport);
+    }
+
+    void setHashingParallelism(int hashingParallelism) {
+        GreatPushUpdateUtils.setHashingParallelism(hashingParallelism);
+    }
+
+    void setHashIndexEnabled(boolean isEnabled) {
+        GreatPushUpdateUtils.setHashIndexEnabled(isEnabled);
+    }
+
+    void setTaskLaneSizes(int queryLaneSize, int ioLaneSize) {
+        mTaskExecutor.setLaneSizes(queryLaneSize, ioLaneSize);
+    }
+
+    UpdateTaskExecutor getTaskExecutor() {
+        return mTaskExecutor;
+    }
+
+    void setFailedUpdateFilterEnabled(boolean isEnabled) {
+        mSettingsManager.setFailedUpdateFilterEnabled(isEnabled);
+    }
+
+    void setPackageVerificationOnInstallEnabled(boolean isEnabled) {
+        mIsPackageVerificationOnInstallEnabled = isEnabled;
+    }
+
+    boolean isPackageVerificationOnInstallEnabled() {
+        return mIsPackageVerificationOnInstallEnabled;
+    }
+
+    void setBundleVerificationOnLoadEnabled(boolean isEnabled) {
+        mIsBundleVerificationOnLoadEnabled = isEnabled;
+    }
+
+    // Also prewarms the current package right away, since the app is starting up.
+    void setBundlePrewarming(boolean isEnabled, List<String> prewarmedAssetPaths) {
+        mIsBundlePrewarmingEnabled = isEnabled;
+        mPrewarmedAssetPaths = new ArrayList<>(prewarmedAssetPaths);
+        prewarmCurrentPackage("after startup");
+    }
+
     public static void setUsingTestConfiguration(boolean shouldUseTestConfiguration) {
         sTestConfigurationFlag = shouldUseTestConfiguration;
     }
 
     public void clearUpdates() {
-        mUpdateManager.clearUpdates();
-        mSettingsManager.removePendingUpdate();
-        mSettingsManager.removeFailedUpdates();
+        mBootRecord = null;
+        GreatPushStateWriter.getInstance().write(new Runnable() {
+            @Override
+            public void run() {
+                mUpdateManager.clearUpdates();
+                mSettingsManager.removePendingUpdate();
+                mSettingsManager.removeFailedUpdates();
+            }
+        });
     }
 
     public static void setReactInstanceHolder(ReactInstanceHolder reactInstanceHolder) {
@@ -2,6 +2,9 @@ package com.microsoft.greatpush.react;
 
 import android.content.Context;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class GreatPushBuilder {
     private String mDeploymentKey;
     private Context mContext;
@@ -9,6 +12,21 @@ public class GreatPushBuilder {
     private boolean mIsDebugMode;
     private String mServerUrl;
     private Integer mPublicKeyResourceDescriptor;
+    private int mDownloadSegmentCount = 1;
+    private long mMinimumDownloadSegmentSize = GreatPushConstants.DEFAULT_MINIMUM_DOWNLOAD_SEGMENT_SIZE;
+    private long mDownloadProgressIntervalMillis = GreatPushConstants.DEFAULT_DOWNLOAD_PROGRESS_INTERVAL_MILLIS;
+    private long mDownloadProgressIntervalBytes = 0;
+    private GreatPushHttpTransport mHttpTransport;
+    private int mHashingParallelism = Runtime.getRuntime().availableProcessors();
+    private boolean mIsBundlePrewarmingEnabled = false;
+    private Integer mBytecodeVersion;
+    private boolean mIsFailedUpdateFilterEnabled = false;
+    private int mQueryLaneSize = GreatPushConstants.DEFAULT_QUERY_LANE_SIZE;
+    private int mIOLaneSize = GreatPushConstants.DEFAULT_IO_LANE_SIZE;
+    private boolean mIsPackageVerificationOnInstallEnabled = false;
+    private boolean mIsHashIndexEnabled = true;
+    private boolean mIsBundleVerificationOnLoadEnabled = false;
+    private List<String> mPrewarmedAssetPaths = new ArrayList<>();
 
     public GreatPushBuilder(String deploymentKey, Context context) {
         this.mDeploymentKey = deploymentKey;
@@ -31,7 +49,98 @@ public class GreatPushBuilder {
         return this;
     }
 
+    public GreatPushBuilder setDownloadSegmentCount(int downloadSegmentCount) {
+        this.mDownloadSegmentCount = downloadSegmentCount;
+        return this;
+    }
+
+    public GreatPushBuilder setMinimumDownloadSegmentSize(long minimumDownloadSegmentSize) {
+        this.mMinimumDownloadSegmentSize = minimumDownloadSegmentSize;
+        return this;
+    }
+
+    public GreatPushBuilder setDownloadProgressIntervalMillis(long downloadProgressIntervalMillis) {
+        this.mDownloadProgressIntervalMillis = downloadProgressIntervalMillis;
+        return this;
+    }
+
+    public GreatPushBuilder setDownloadProgressIntervalBytes(long downloadProgressIntervalBytes) {
+        this.mDownloadProgressIntervalBytes = downloadProgressIntervalBytes;
+        return this;
+    }
+
+    public GreatPushBuilder setHttpTransport(GreatPushHttpTransport httpTransport) {
+        this.mHttpTransport = httpTransport;
+        return this;
+    }
+
+    public GreatPushBuilder setHashingParallelism(int hashingParallelism) {
+        this.mHashingParallelism = hashingParallelism;
+        return this;
+    }
+
+    public GreatPushBuilder setBundlePrewarmingEnabled(boolean isBundlePrewarmingEnabled) {
+        this.mIsBundlePrewarmingEnabled = isBundlePrewarmingEnabled;
+        return this;
+    }
+
+    public GreatPushBuilder setPrewarmedAssetPaths(List<String> prewarmedAssetPaths) {
+        this.mPrewarmedAssetPaths = prewarmedAssetPaths;
+        return this;
+    }
+
+    public GreatPushBuilder setBytecodeVersion(int bytecodeVersion) {
+        this.mBytecodeVersion = bytecodeVersion;
+        return this;
+    }
+
+    public GreatPushBuilder setFailedUpdateFilterEnabled(boolean isFailedUpdateFilterEnabled) {
+        this.mIsFailedUpdateFilterEnabled = isFailedUpdateFilterEnabled;
+        return this;
+    }
+
+    public GreatPushBuilder setQueryLaneSize(int queryLaneSize) {
+        this.mQueryLaneSize = queryLaneSize;
+        return this;
+    }
+
+    public GreatPushBuilder setIOLaneSize(int ioLaneSize) {
+        this.mIOLaneSize = ioLaneSize;
+        return this;
+    }
+
+    public GreatPushBuilder setPackageVerificationOnInstallEnabled(boolean isPackageVerificationOnInstallEnabled) {
+        this.mIsPackageVerificationOnInstallEnabled = isPackageVerificationOnInstallEnabled;
+        return this;
+    }
+
+    public GreatPushBuilder setHashIndexEnabled(boolean isHashIndexEnabled) {
+        this.mIsHashIndexEnabled = isHashIndexEnabled;
+        return this;
+    }
+
+    public GreatPushBuilder setBundleVerificationOnLoadEnabled(boolean isBundleVerificationOnLoadEnabled) {
+        this.mIsBundleVerificationOnLoadEnabled = isBundleVerificationOnLoadEnabled;
+        return this;
+    }
+
     public GreatPush build() {
-        return new GreatPush(this.mDeploymentKey, this.mContext, this.mIsDebugMode, this.mServerUrl, this.mPublicKeyResourceDescriptor);
+        GreatPush greatPush = new GreatPush(this.mDeploymentKey, this.mContext, this.mIsDebugMode, this.mServerUrl, this.mPublicKeyResourceDescriptor);
+        greatPush.setDownloadSegmentation(this.mDownloadSegmentCount, this.mMinimumDownloadSegmentSize);
+        greatPush.setDownloadProgressInterval(this.mDownloadProgressIntervalMillis, this.mDownloadProgressIntervalBytes);
+        greatPush.setHashingParallelism(this.mHashingParallelism);
+        greatPush.setHashIndexEnabled(this.mIsHashIndexEnabled);
+        greatPush.setTaskLaneSizes(this.mQueryLaneSize, this.mIOLaneSize);
+        if (this.mHttpTransport != null) {
+            greatPush.setHttpTransport(this.mHttpTransport);
+        }
+        if (this.mBytecodeVersion != null) {
+            greatPush.setBytecodeVersion(this.mBytecodeVersion);
+        }
+        greatPush.setFailedUpdateFilterEnabled(this.mIsFailedUpdateFilterEnabled);
+        greatPush.setPackageVerificationOnInstallEnabled(this.mIsPackageVerificationOnInstallEnabled);
+        greatPush.setBundleVerificationOnLoadEnabled(this.mIsBundleVerificationOnLoadEnabled);
+        greatPush.setBundlePrewarming(this.mIsBundlePrewarmingEnabled, this.mPrewarmedAssetPaths);
+        return greatPush;
     }
 }
@@ -3,26 +3,48 @@ package com.microsoft.greatpush.react;
 public class GreatPushConstants {
     public static final String ASSETS_BUNDLE_PREFIX = "assets://";
     public static final String BINARY_MODIFIED_TIME_KEY = "binaryModifiedTime";
+    public static final String BLOBS_FOLDER_NAME = "blobs";
+    public static final String BOOT_RECORD_FILE_NAME = "boot.record";
+    public static final String BUNDLE_FORMAT_KEY = "bundleFormat";
+    public static final String BYTECODE_VERSION_KEY = "bytecodeVersion";
     public static final String GREAT_PUSH_FOLDER_PREFIX = "GreatPush";
     public static final String GREAT_PUSH_HASH_FILE_NAME = "GreatPushHash";
     public static final String GREAT_PUSH_OLD_HASH_FILE_NAME = "GreatPushHash.json";
     public static final String GREAT_PUSH_PREFERENCES = "GreatPush";
     public static final String CURRENT_PACKAGE_KEY = "currentPackage";
+    public static final String DECODED_DOWNLOAD_FILE_NAME = "download.decoded";
+    public static final long DEFAULT_DOWNLOAD_PROGRESS_INTERVAL_MILLIS = 100;
+    public static final long DEFAULT_MINIMUM_DOWNLOAD_SEGMENT_SIZE = 1024 * 1024;
+    public static final int DEFAULT_QUERY_LANE_SIZE = 2;
+    public static final int DEFAULT_IO_LANE_SIZE = 2;
     public static final String DEFAULT_JS_BUNDLE_NAME = "index.android.bundle";
     public static final String DIFF_MANIFEST_FILE_NAME = "hotgreatpush.json";
     public static final int DOWNLOAD_BUFFER_SIZE = 1024 * 256;
     public static final String DOWNLOAD_FILE_NAME = "download.zip";
+    public static final int DOWNLOAD_JOURNAL_COMMIT_INTERVAL = 1024 * 1024;
+    public static final String DOWNLOAD_JOURNAL_FILE_NAME = "download.journal";
     public static final String DOWNLOAD_PROGRESS_EVENT_NAME = "GreatPushDownloadProgress";
+    public static final String DOWNLOADS_FOLDER_NAME = "downloads";
     public static final String DOWNLOAD_URL_KEY = "downloadUrl";
+    public static final String FAILED_UPDATE_FILTER_KEY = "GREAT_PUSH_FAILED_UPDATE_FILTER";
+    public static final String FAILED_UPDATE_HASHES_KEY = "GREAT_PUSH_FAILED_UPDATE_HASHES";
+    public static final String FAILED_UPDATE_METADATA_KEY_PREFIX = "GREAT_PUSH_FAILED_UPDATE:";
     public static final String FAILED_UPDATES_KEY = "GREAT_PUSH_FAILED_UPDATES";
+    public static final int FAILED_UPDATES_LIMIT = 50;
     public static final String PACKAGE_FILE_NAME = "app.json";
+    public static final String PACKAGE_HASH_INDEX_FILE_NAME = "hashindex.json";
     public static final String PACKAGE_HASH_KEY = "packageHash";
+    public static final String PACKAGE_MERKLE_TREE_FILE_NAME = "merkle.json";
     public static final String PENDING_UPDATE_HASH_KEY = "hash";
     public static final String PENDING_UPDATE_IS_LOADING_KEY = "isLoading";
     public static final String PENDING_UPDATE_KEY = "GREAT_PUSH_PENDING_UPDATE";
+    public static final String PREPARED_STATUS_FILE = "greatpush.prepared.json";
     public static final String PREVIOUS_PACKAGE_KEY = "previousPackage";
     public static final String REACT_NATIVE_LOG_TAG = "ReactNative";
     public static final String RELATIVE_BUNDLE_PATH_KEY = "bundlePath";
+    public static final String RELATIVE_SEGMENT_TABLE_PATH_KEY = "segmentTablePath";
+    public static final String SEGMENT_TABLE_FILE_SUFFIX = ".segments.json";
+    public static final String STATE_STORE_FILE_NAME = "GreatPushState.log";
     public static final String STATUS_FILE = "greatpush.json";
     public static final String UNZIPPED_FOLDER_NAME = "unzipped";
     public static final String GREAT_PUSH_APK_BUILD_TIME_KEY = "GREAT_PUSH_APK_BUILD_TIME";
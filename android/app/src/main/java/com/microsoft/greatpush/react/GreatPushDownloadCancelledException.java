@@ -0,0 +1,9 @@
+package com.microsoft.greatpush.react;
+
+import java.io.IOException;
+
+public class GreatPushDownloadCancelledException extends IOException {
+    public GreatPushDownloadCancelledException(String packageHash) {
+        super("The download of the update " + packageHash + " was cancelled.");
+    }
+}
@@ -0,0 +1,24 @@
+package com.microsoft.greatpush.react;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+public interface GreatPushHttpResponse extends Closeable {
+    int getStatusCode();
+
+    // Returns null if the response does not have the header. Header names are case-insensitive.
+    String getHeader(String name);
+
+    // Returns the value of the Content-Length header, or -1 if it is missing.
+    long getContentLength();
+
+    // Returns the body exactly as it was sent, without decoding any content encoding that was
+    // requested explicitly.
+    InputStream getBody() throws IOException;
+
+    // Aborts the request, so that a read of the body that is blocked on the network fails. Unlike
+    // close, which is only called by the thread reading the body, this is called from other threads
+    // to cancel a download and must be safe to call concurrently with a read.
+    void cancel();
+}
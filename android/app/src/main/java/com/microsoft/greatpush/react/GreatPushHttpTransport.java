@@ -0,0 +1,13 @@
+package com.microsoft.greatpush.react;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Map;
+
+// Sends the HTTP requests that download updates. An app can provide its own implementation through
+// GreatPushBuilder, e.g. to share the client it already tuned for its servers, or a fake in tests.
+public interface GreatPushHttpTransport {
+    // Sends a request without a body and returns once the response headers have arrived. The
+    // caller closes the response, which lets the transport reuse the connection.
+    GreatPushHttpResponse execute(String method, URL url, Map<String, String> headers) throws IOException;
+}
@@ -1,7 +1,6 @@
 package com.microsoft.greatpush.react;
 
 import android.app.Activity;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
 import android.provider.Settings;
@@ -23,8 +22,6 @@ import com.facebook.react.modules.core.ChoreographerCompat;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 import com.facebook.react.modules.core.ReactChoreographer;
 
-import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
@@ -33,6 +30,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class GreatPushNativeModule extends ReactContextBaseJavaModule {
     private String mBinaryContentsHash = null;
@@ -118,6 +116,12 @@ public class GreatPushNativeModule extends ReactContextBaseJavaModule {
 
     private void loadBundle() {
         clearLifecycleEventListener();
+        // An IMMEDIATE install only switches packages now, everything else was done while preparing it.
+        if (mGreatPush.commitPreparedInstall()) {
+            // A restart does not construct GreatPush again, which is what releases the blobs of the
+            // replaced packages at startup.
+            mGreatPush.checkBlobStoreInBackground();
+        }
         try {
             mGreatPush.clearDebugCacheIfNeeded(resolveInstanceManager());
         } catch(Exception e) {
@@ -205,76 +209,115 @@ public class GreatPushNativeModule extends ReactContextBaseJavaModule {
         return instanceManager;
     }
 
+    // Resolves with whether a download of the update was running. Its downloadUpdate call is rejected
+    // once the download has stopped and its files have been deleted.
+    @ReactMethod
+    public void cancelDownload(String packageHash, Promise promise) {
+        promise.resolve(mUpdateManager.cancelDownload(packageHash));
+    }
+
     @ReactMethod
     public void downloadUpdate(final ReadableMap updatePackage, final boolean notifyProgress, final Promise promise) {
-        AsyncTask<Void, Void, Void> asyncTask = new AsyncTask<Void, Void, Void>() {
+        // The download is registered right away, so that a download of the same update asked for while
+        // this one is queued or running joins it instead of taking a thread only to wait for it.
+        final String packageHash = GreatPushUtils.tryGetString(updatePackage, GreatPushConstants.PACKAGE_HASH_KEY);
+        final JSONObject mutableUpdatePackage = GreatPushUtils.convertReadableToJsonObject(updatePackage);
+        try {
+            GreatPushUtils.setJSONValueForKey(mutableUpdatePackage, GreatPushConstants.BINARY_MODIFIED_TIME_KEY, "" + mGreatPush.getBinaryResourcesModifiedTime());
+        } catch (GreatPushUnknownException e) {
+            GreatPushUtils.log(e);
+            promise.reject(e);
+            return;
+        }
+
+        final PackageDownload download = mUpdateManager.registerDownload(packageHash, createDownloadProgressCallback(notifyProgress), new PackageDownload.CompletionListener() {
+            @Override
+            public void onComplete(Throwable failure) {
+                if (failure == null) {
+                    try {
+                        JSONObject newPackage = mUpdateManager.getPackage(packageHash);
+                        promise.resolve(GreatPushUtils.convertJsonObjectToWritable(newPackage));
+                    } catch (GreatPushUnknownException e) {
+                        GreatPushUtils.log(e);
+                        promise.reject(e);
+                    }
+                    return;
+                }
+
+                GreatPushUtils.log(failure);
+                if (failure instanceof GreatPushInvalidUpdateException) {
+                    mSettingsManager.saveFailedUpdate(GreatPushUtils.convertReadableToJsonObject(updatePackage));
+                }
+
+                promise.reject(failure);
+            }
+        });
+        if (download == null) {
+            return;
+        }
+
+        mGreatPush.getTaskExecutor().executeIO(new Runnable() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public void run() {
                 try {
-                    JSONObject mutableUpdatePackage = GreatPushUtils.convertReadableToJsonObject(updatePackage);
-                    GreatPushUtils.setJSONValueForKey(mutableUpdatePackage, GreatPushConstants.BINARY_MODIFIED_TIME_KEY, "" + mGreatPush.getBinaryResourcesModifiedTime());
-                    mUpdateManager.downloadPackage(mutableUpdatePackage, mGreatPush.getAssetsBundleFileName(), new DownloadProgressCallback() {
-                        private boolean hasScheduledNextFrame = false;
-                        private DownloadProgress latestDownloadProgress = null;
+                    mUpdateManager.runDownload(download, mutableUpdatePackage, mGreatPush.getAssetsBundleFileName(), mGreatPush.getBinaryBytecodeVersion(), mGreatPush.getPublicKey());
+                } catch (IOException | RuntimeException e) {
+                    // Already reported to the promise by the completion listener.
+                }
+            }
+        });
+    }
 
-                        @Override
-                        public void call(DownloadProgress downloadProgress) {
-                            if (!notifyProgress) {
-                                return;
-                            }
+    private DownloadProgressCallback createDownloadProgressCallback(final boolean notifyProgress) {
+        return new DownloadProgressCallback() {
+            private final AtomicBoolean hasScheduledNextFrame = new AtomicBoolean(false);
+            private volatile DownloadProgress latestDownloadProgress = null;
 
-                            latestDownloadProgress = downloadProgress;
-                            // If the download is completed, synchronously send the last event.
-                            if (latestDownloadProgress.isCompleted()) {
-                                dispatchDownloadProgressEvent();
-                                return;
-                            }
+            // The download reuses a single progress object, so the same callbacks can be
+            // posted for every frame instead of allocating new ones.
+            private final ChoreographerCompat.FrameCallback frameCallback = new ChoreographerCompat.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    hasScheduledNextFrame.set(false);
+                    if (!latestDownloadProgress.isCompleted()) {
+                        dispatchDownloadProgressEvent();
+                    }
+                }
+            };
 
-                            if (hasScheduledNextFrame) {
-                                return;
-                            }
+            private final Runnable scheduleFrameCallback = new Runnable() {
+                @Override
+                public void run() {
+                    ReactChoreographer.getInstance().postFrameCallback(ReactChoreographer.CallbackType.TIMERS_EVENTS, frameCallback);
+                }
+            };
 
-                            hasScheduledNextFrame = true;
-                            getReactApplicationContext().runOnUiQueueThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    ReactChoreographer.getInstance().postFrameCallback(ReactChoreographer.CallbackType.TIMERS_EVENTS, new ChoreographerCompat.FrameCallback() {
-                                        @Override
-                                        public void doFrame(long frameTimeNanos) {
-                                            if (!latestDownloadProgress.isCompleted()) {
-                                                dispatchDownloadProgressEvent();
-                                            }
-
-                                            hasScheduledNextFrame = false;
-                                        }
-                                    });
-                                }
-                            });
-                        }
+            @Override
+            public void call(DownloadProgress downloadProgress) {
+                if (!notifyProgress) {
+                    return;
+                }
 
-                        public void dispatchDownloadProgressEvent() {
-                            getReactApplicationContext()
-                                    .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                                    .emit(GreatPushConstants.DOWNLOAD_PROGRESS_EVENT_NAME, latestDownloadProgress.createWritableMap());
-                        }
-                    }, mGreatPush.getPublicKey());
+                latestDownloadProgress = downloadProgress;
+                // If the download is completed, synchronously send the last event.
+                if (latestDownloadProgress.isCompleted()) {
+                    dispatchDownloadProgressEvent();
+                    return;
+                }
 
-                    JSONObject newPackage = mUpdateManager.getPackage(GreatPushUtils.tryGetString(updatePackage, GreatPushConstants.PACKAGE_HASH_KEY));
-                    promise.resolve(GreatPushUtils.convertJsonObjectToWritable(newPackage));
-                } catch (GreatPushInvalidUpdateException e) {
-                    GreatPushUtils.log(e);
-                    mSettingsManager.saveFailedUpdate(GreatPushUtils.convertReadableToJsonObject(updatePackage));
-                    promise.reject(e);
-                } catch (IOException | GreatPushUnknownException e) {
-                    GreatPushUtils.log(e);
-                    promise.reject(e);
+                if (!hasScheduledNextFrame.compareAndSet(false, true)) {
+                    return;
                 }
 
-                return null;
+                getReactApplicationContext().runOnUiQueueThread(scheduleFrameCallback);
             }
-        };
 
-        asyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            public void dispatchDownloadProgressEvent() {
+                getReactApplicationContext()
+                        .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                        .emit(GreatPushConstants.DOWNLOAD_PROGRESS_EVENT_NAME, latestDownloadProgress.createWritableMap());
+            }
+        };
     }
 
     @ReactMethod
@@ -300,22 +343,34 @@ public class GreatPushNativeModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void getUpdateMetadata(final int updateState, final Promise promise) {
-        AsyncTask<Void, Void, Void> asyncTask = new AsyncTask<Void, Void, Void>() {
+        mGreatPush.getTaskExecutor().executeQuery(new Runnable() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public void run() {
                 try {
                     JSONObject currentPackage = mUpdateManager.getCurrentPackage();
+                    JSONObject installedPackage = currentPackage;
+                    Boolean currentUpdateIsPending = false;
+
+                    if (currentPackage != null && currentPackage.has(GreatPushConstants.PACKAGE_HASH_KEY)) {
+                        String currentHash = currentPackage.optString(GreatPushConstants.PACKAGE_HASH_KEY, null);
+                        currentUpdateIsPending = mSettingsManager.isPendingUpdate(currentHash);
+                    }
+
+                    // An IMMEDIATE install only becomes the current package when the app restarts
+                    // into it, and until then it is the pending update.
+                    String preparedPackageHash = mUpdateManager.getPreparedPackageHash();
+                    if (preparedPackageHash != null) {
+                        currentPackage = mUpdateManager.getPackage(preparedPackageHash);
+                    }
 
                     if (currentPackage == null) {
                         promise.resolve(null);
-                        return null;
+                        return;
                     }
 
-                    Boolean currentUpdateIsPending = false;
-
-                    if (currentPackage.has(GreatPushConstants.PACKAGE_HASH_KEY)) {
-                        String currentHash = currentPackage.optString(GreatPushConstants.PACKAGE_HASH_KEY, null);
-                        currentUpdateIsPending = mSettingsManager.isPendingUpdate(currentHash);
+                    boolean installedUpdateIsPending = currentUpdateIsPending;
+                    if (preparedPackageHash != null) {
+                        currentUpdateIsPending = true;
                     }
 
                     if (updateState == GreatPushUpdateState.PENDING.getValue() && !currentUpdateIsPending) {
@@ -324,12 +379,14 @@ public class GreatPushNativeModule extends ReactContextBaseJavaModule {
                         promise.resolve(null);
                     } else if (updateState == GreatPushUpdateState.RUNNING.getValue() && currentUpdateIsPending) {
                         // The caller wants the running update, but the current
-                        // one is pending, so we need to grab the previous.
-                        JSONObject previousPackage = mUpdateManager.getPreviousPackage();
+                        // one is pending, so we need to grab the previous. While an install is
+                        // prepared, that is the installed package unless it is pending itself.
+                        JSONObject previousPackage = preparedPackageHash != null && !installedUpdateIsPending
+                                ? installedPackage : mUpdateManager.getPreviousPackage();
 
                         if (previousPackage == null) {
                             promise.resolve(null);
-                            return null;
+                            return;
                         }
 
                         promise.resolve(GreatPushUtils.convertJsonObjectToWritable(previousPackage));
@@ -353,34 +410,25 @@ public class GreatPushNativeModule extends ReactContextBaseJavaModule {
                     GreatPushUtils.log(e);
                     promise.reject(e);
                 }
-
-                return null;
             }
-        };
-
-        asyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        });
     }
 
     @ReactMethod
     public void getNewStatusReport(final Promise promise) {
-        AsyncTask<Void, Void, Void> asyncTask = new AsyncTask<Void, Void, Void>() {
+        mGreatPush.getTaskExecutor().executeQuery(new Runnable() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public void run() {
                 try {
                     if (mGreatPush.needToReportRollback()) {
                         mGreatPush.setNeedToReportRollback(false);
-                        JSONArray failedUpdates = mSettingsManager.getFailedUpdates();
-                        if (failedUpdates != null && failedUpdates.length() > 0) {
-                            try {
-                                JSONObject lastFailedPackageJSON = failedUpdates.getJSONObject(failedUpdates.length() - 1);
-                                WritableMap lastFailedPackage = GreatPushUtils.convertJsonObjectToWritable(lastFailedPackageJSON);
-                                WritableMap failedStatusReport = mTelemetryManager.getRollbackReport(lastFailedPackage);
-                                if (failedStatusReport != null) {
-                                    promise.resolve(failedStatusReport);
-                                    return null;
-                                }
-                            } catch (JSONException e) {
-                                throw new GreatPushUnknownException("Unable to read failed updates information stored in SharedPreferences.", e);
+                        JSONObject lastFailedPackageJSON = mSettingsManager.getLastFailedUpdate();
+                        if (lastFailedPackageJSON != null) {
+                            WritableMap lastFailedPackage = GreatPushUtils.convertJsonObjectToWritable(lastFailedPackageJSON);
+                            WritableMap failedStatusReport = mTelemetryManager.getRollbackReport(lastFailedPackage);
+                            if (failedStatusReport != null) {
+                                promise.resolve(failedStatusReport);
+                                return;
                             }
                         }
                     } else if (mGreatPush.didUpdate()) {
@@ -389,20 +437,20 @@ public class GreatPushNativeModule extends ReactContextBaseJavaModule {
                             WritableMap newPackageStatusReport = mTelemetryManager.getUpdateReport(GreatPushUtils.convertJsonObjectToWritable(currentPackage));
                             if (newPackageStatusReport != null) {
                                 promise.resolve(newPackageStatusReport);
-                                return null;
+                                return;
                             }
                         }
                     } else if (mGreatPush.isRunningBinaryVersion()) {
                         WritableMap newAppVersionStatusReport = mTelemetryManager.getBinaryUpdateReport(mGreatPush.getAppVersion());
                         if (newAppVersionStatusReport != null) {
                             promise.resolve(newAppVersionStatusReport);
-                            return null;
+                            return;
                         }
                     } else {
                         WritableMap retryStatusReport = mTelemetryManager.getRetryStatusReport();
                         if (retryStatusReport != null) {
                             promise.resolve(retryStatusReport);
-                            return null;
+                            return;
                         }
                     }
 
@@ -411,26 +459,49 @@ public class GreatPushNativeModule extends ReactContextBaseJavaModule {
                     GreatPushUtils.log(e);
                     promise.reject(e);
                 }
-                return null;
             }
-        };
-
-        asyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        });
     }
 
     @ReactMethod
     public void installUpdate(final ReadableMap updatePackage, final int installMode, final int minimumBackgroundDuration, final Promise promise) {
-        AsyncTask<Void, Void, Void> asyncTask = new AsyncTask<Void, Void, Void>() {
+        mGreatPush.getTaskExecutor().executeIO(new Runnable() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public void run() {
                 try {
-                    mUpdateManager.installPackage(GreatPushUtils.convertReadableToJsonObject(updatePackage), mSettingsManager.isPendingUpdate(null));
+                    // The files are hashed before the state change, so that other changes do not wait on it.
+                    String packageHash = GreatPushUtils.tryGetString(updatePackage, GreatPushConstants.PACKAGE_HASH_KEY);
+                    if (mGreatPush.isPackageVerificationOnInstallEnabled() && packageHash != null) {
+                        mUpdateManager.verifyPackage(packageHash);
+                    }
 
-                    String pendingHash = GreatPushUtils.tryGetString(updatePackage, GreatPushConstants.PACKAGE_HASH_KEY);
-                    if (pendingHash == null) {
-                        throw new GreatPushUnknownException("Update package to be installed has no hash.");
-                    } else {
-                        mSettingsManager.savePendingUpdate(pendingHash, /* isLoading */false);
+                    // Whether an update is pending is only read and acted on by a single change.
+                    GreatPushStateWriter.getInstance().write(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (installMode == GreatPushInstallMode.IMMEDIATE.getValue()) {
+                                // The restart that follows only has to commit the install.
+                                if (GreatPushUtils.tryGetString(updatePackage, GreatPushConstants.PACKAGE_HASH_KEY) == null) {
+                                    throw new GreatPushUnknownException("Update package to be installed has no hash.");
+                                }
+
+                                mUpdateManager.prepareInstall(GreatPushUtils.convertReadableToJsonObject(updatePackage), mSettingsManager.isPendingUpdate(null));
+                            } else {
+                                mUpdateManager.installPackage(GreatPushUtils.convertReadableToJsonObject(updatePackage), mSettingsManager.isPendingUpdate(null));
+
+                                String pendingHash = GreatPushUtils.tryGetString(updatePackage, GreatPushConstants.PACKAGE_HASH_KEY);
+                                if (pendingHash == null) {
+                                    throw new GreatPushUnknownException("Update package to be installed has no hash.");
+                                } else {
+                                    mSettingsManager.savePendingUpdate(pendingHash, /* isLoading */false);
+                                }
+                            }
+                        }
+                    });
+
+                    if (installMode != GreatPushInstallMode.IMMEDIATE.getValue()) {
+                        // The new bundle is only loaded later, which leaves time to read it ahead.
+                        mGreatPush.prewarmCurrentPackage("after install");
                     }
 
                     if (installMode == GreatPushInstallMode.ON_NEXT_RESUME.getValue() ||
@@ -494,16 +565,12 @@ public class GreatPushNativeModule extends ReactContextBaseJavaModule {
                     }
 
                     promise.resolve("");
-                } catch(GreatPushUnknownException e) {
+                } catch(GreatPushInvalidUpdateException | GreatPushUnknownException e) {
                     GreatPushUtils.log(e);
                     promise.reject(e);
                 }
-
-                return null;
             }
-        };
-
-        asyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        });
     }
 
     @ReactMethod
@@ -555,7 +622,7 @@ public class GreatPushNativeModule extends ReactContextBaseJavaModule {
         try {
             // If this is an unconditional restart request, or there
             // is current pending update, then reload the app.
-            if (!onlyIfUpdateIsPending || mSettingsManager.isPendingUpdate(null)) {
+            if (!onlyIfUpdateIsPending || mSettingsManager.isPendingUpdate(null) || mUpdateManager.hasPreparedInstall()) {
                 loadBundle();
                 promise.resolve(true);
                 return;
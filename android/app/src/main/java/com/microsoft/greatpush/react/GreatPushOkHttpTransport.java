@@ -0,0 +1,83 @@
+package com.microsoft.greatpush.react;
+
+import com.facebook.react.modules.network.OkHttpClientProvider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+// The default transport. It shares the OkHttp client of React Native unless the app passes its own,
+// so downloads reuse pooled keep-alive and HTTP/2 connections and the TLS session cache.
+public class GreatPushOkHttpTransport implements GreatPushHttpTransport {
+    private OkHttpClient mClient;
+
+    public GreatPushOkHttpTransport() {
+    }
+
+    public GreatPushOkHttpTransport(OkHttpClient client) {
+        mClient = client;
+    }
+
+    private synchronized OkHttpClient getClient() {
+        if (mClient == null) {
+            mClient = OkHttpClientProvider.getOkHttpClient();
+        }
+
+        return mClient;
+    }
+
+    @Override
+    public GreatPushHttpResponse execute(String method, URL url, Map<String, String> headers) throws IOException {
+        Request.Builder requestBuilder = new Request.Builder().url(url).method(method, null);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            requestBuilder.header(header.getKey(), header.getValue());
+        }
+
+        final Call call = getClient().newCall(requestBuilder.build());
+        final Response response = call.execute();
+        return new GreatPushHttpResponse() {
+            @Override
+            public int getStatusCode() {
+                return response.code();
+            }
+
+            @Override
+            public String getHeader(String name) {
+                return response.header(name);
+            }
+
+            @Override
+            public long getContentLength() {
+                // The body of a HEAD response is empty, so the length comes from the header.
+                String contentLength = response.header("Content-Length");
+                try {
+                    return contentLength != null ? Long.parseLong(contentLength.trim()) : -1;
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+
+            @Override
+            public InputStream getBody() {
+                return response.body().byteStream();
+            }
+
+            @Override
+            public void close() {
+                response.body().close();
+            }
+
+            @Override
+            public void cancel() {
+                // Unlike closing the body, cancelling the call is safe from any thread.
+                call.cancel();
+            }
+        };
+    }
+}
@@ -0,0 +1,59 @@
+package com.microsoft.greatpush.react;
+
+// A snapshot of what bundle prewarming did since the app started. A hit is a bundle that had been
+// read completely by the time React Native loaded it, and a miss is one that was still being read.
+public class GreatPushPrewarmStats {
+    private final int mRunCount;
+    private final int mFileCount;
+    private final long mByteCount;
+    private final long mTotalDurationMillis;
+    private final long mLastDurationMillis;
+    private final int mHitCount;
+    private final int mMissCount;
+
+    GreatPushPrewarmStats(int runCount, int fileCount, long byteCount, long totalDurationMillis, long lastDurationMillis,
+                          int hitCount, int missCount) {
+        mRunCount = runCount;
+        mFileCount = fileCount;
+        mByteCount = byteCount;
+        mTotalDurationMillis = totalDurationMillis;
+        mLastDurationMillis = lastDurationMillis;
+        mHitCount = hitCount;
+        mMissCount = missCount;
+    }
+
+    public int getRunCount() {
+        return mRunCount;
+    }
+
+    public int getFileCount() {
+        return mFileCount;
+    }
+
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    public long getTotalDurationMillis() {
+        return mTotalDurationMillis;
+    }
+
+    public long getLastDurationMillis() {
+        return mLastDurationMillis;
+    }
+
+    public int getHitCount() {
+        return mHitCount;
+    }
+
+    public int getMissCount() {
+        return mMissCount;
+    }
+
+    @Override
+    public String toString() {
+        return "GreatPushPrewarmStats{runs=" + mRunCount + ", files=" + mFileCount + ", bytes=" + mByteCount
+                + ", totalDurationMillis=" + mTotalDurationMillis + ", lastDurationMillis=" + mLastDurationMillis
+                + ", hits=" + mHitCount + ", misses=" + mMissCount + "}";
+    }
+}
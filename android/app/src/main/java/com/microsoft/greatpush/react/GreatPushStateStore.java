@@ -0,0 +1,268 @@
+package com.microsoft.greatpush.react;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// The state GreatPush keeps between launches (the pending update, the failed updates and the status
+// reports), in an append-only log of records mapped into memory. Every value is read from memory,
+// and every change is appended to the log: writing it is a copy into the mapping, which the OS
+// persists even if the app is killed right after. Durable writes also flush the mapping to storage
+// before returning, which is what a commit() of the SharedPreferences did for every change.
+//
+// Each record is stored as <body length><body><CRC32 of the body>, and reading the log stops at the
+// first record that does not check out, which is where a write was torn. When the log is full, or
+// when it is opened with more stale records than MAX_STALE_RECORDS, it is compacted into a new file
+// holding only the current values.
+class GreatPushStateStore {
+    private static final int MAGIC = 0x47505354;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int INITIAL_CAPACITY = 1024 * 16;
+    // Every launch reads the whole log, so records of values that have since been changed or removed
+    // are only kept up to this count, and the log is otherwise compacted when it is opened.
+    private static final int MAX_STALE_RECORDS = 64;
+
+    private static final byte RECORD_PUT_STRING = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // The SharedPreferences are shared by everybody in the process, and so is the store.
+    private static final Map<String, GreatPushStateStore> sStores = new HashMap<>();
+
+    private final File mStoreFile;
+    private final Map<String, String> mValues = new HashMap<>();
+    private MappedByteBuffer mLog;
+    private int mLogEnd;
+    private int mRecordCount;
+
+    private GreatPushStateStore(File storeFile) {
+        mStoreFile = storeFile;
+    }
+
+    public static synchronized GreatPushStateStore getInstance(Context applicationContext) {
+        File storeFile = new File(applicationContext.getFilesDir(), GreatPushConstants.STATE_STORE_FILE_NAME);
+        GreatPushStateStore store = sStores.get(storeFile.getAbsolutePath());
+        if (store == null) {
+            try {
+                if (storeFile.exists()) {
+                    store = open(storeFile);
+                } else {
+                    store = new GreatPushStateStore(storeFile);
+                    store.migrate(applicationContext.getSharedPreferences(GreatPushConstants.GREAT_PUSH_PREFERENCES, 0));
+                }
+            } catch (IOException e) {
+                throw new GreatPushUnknownException("Unable to open the GreatPush state store.", e);
+            }
+
+            sStores.put(storeFile.getAbsolutePath(), store);
+        }
+
+        return store;
+    }
+
+    // Opens the store in the given file without sharing it, unlike getInstance.
+    static GreatPushStateStore open(File storeFile) throws IOException {
+        GreatPushStateStore store = new GreatPushStateStore(storeFile);
+        store.load();
+        int staleRecordCount = store.getStaleRecordCount();
+        if (staleRecordCount > MAX_STALE_RECORDS) {
+            GreatPushUtils.log("Compacting the GreatPush state store, which holds " + staleRecordCount + " stale records.");
+            store.compact();
+        }
+
+        return store;
+    }
+
+    // The number of records in the log that no longer hold a current value.
+    synchronized int getStaleRecordCount() {
+        return mRecordCount - mValues.size();
+    }
+
+    public synchronized String getString(String key) {
+        return mValues.get(key);
+    }
+
+    public synchronized void putString(String key, String value, boolean isDurable) {
+        mValues.put(key, value);
+        append(RECORD_PUT_STRING, key, value, isDurable);
+    }
+
+    public synchronized void remove(String key, boolean isDurable) {
+        if (mValues.remove(key) != null) {
+            append(RECORD_REMOVE, key, null, isDurable);
+        }
+    }
+
+    // Moves the values of the GreatPush SharedPreferences into a new store, once. The preferences
+    // are only cleared once the store holding their values exists.
+    private void migrate(SharedPreferences settings) throws IOException {
+        for (Map.Entry<String, ?> setting : settings.getAll().entrySet()) {
+            if (setting.getValue() instanceof String) {
+                mValues.put(setting.getKey(), (String) setting.getValue());
+            }
+        }
+
+        compact();
+        if (!mValues.isEmpty()) {
+            GreatPushUtils.log("Moved " + mValues.size() + " values from the SharedPreferences to the GreatPush state store.");
+            settings.edit().clear().commit();
+        }
+    }
+
+    private void load() throws IOException {
+        map();
+        if (mLog.capacity() < HEADER_SIZE || mLog.getInt(0) != MAGIC || mLog.getInt(4) != VERSION) {
+            // The pending update is lost with it, so an update that crashes is not rolled back.
+            GreatPushUtils.log("The GreatPush state store is corrupted, starting over with an empty one.");
+            mValues.clear();
+            compact();
+            return;
+        }
+
+        int position = HEADER_SIZE;
+        while (position + 4 <= mLog.capacity()) {
+            int bodyLength = mLog.getInt(position);
+            if (bodyLength <= 0 || bodyLength > mLog.capacity() - position - 8) {
+                break;
+            }
+
+            byte[] body = new byte[bodyLength];
+            mLog.position(position + 4);
+            mLog.get(body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if (mLog.getInt(position + 4 + bodyLength) != (int) crc.getValue()) {
+                break;
+            }
+
+            applyRecord(body);
+            mRecordCount++;
+            position += bodyLength + 8;
+        }
+
+        mLogEnd = position;
+    }
+
+    private void applyRecord(byte[] body) {
+        ByteBuffer record = ByteBuffer.wrap(body);
+        byte recordType = record.get();
+        String key = readString(record);
+        if (recordType == RECORD_PUT_STRING) {
+            mValues.put(key, readString(record));
+        } else if (recordType == RECORD_REMOVE) {
+            mValues.remove(key);
+        }
+    }
+
+    private void append(byte recordType, String key, String value, boolean isDurable) {
+        byte[] record = encodeRecord(recordType, key, value);
+        try {
+            if (mLogEnd + record.length > mLog.capacity()) {
+                // mValues already holds the change, so the compacted log includes it.
+                compact();
+                return;
+            }
+
+            mLog.position(mLogEnd);
+            mLog.put(record);
+            mLogEnd += record.length;
+            mRecordCount++;
+            if (isDurable) {
+                mLog.force();
+            }
+        } catch (IOException e) {
+            throw new GreatPushUnknownException("Unable to write to the GreatPush state store.", e);
+        }
+    }
+
+    // Writes the current values into a new log, leaving at least as much room for new records as
+    // the values take, and replaces the store with it.
+    private void compact() throws IOException {
+        int size = HEADER_SIZE;
+        byte[][] records = new byte[mValues.size()][];
+        int recordIndex = 0;
+        for (Map.Entry<String, String> value : mValues.entrySet()) {
+            records[recordIndex] = encodeRecord(RECORD_PUT_STRING, value.getKey(), value.getValue());
+            size += records[recordIndex].length;
+            recordIndex++;
+        }
+
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < size * 2) {
+            capacity *= 2;
+        }
+
+        File tempStoreFile = new File(mStoreFile.getPath() + ".tmp");
+        RandomAccessFile tempStore = new RandomAccessFile(tempStoreFile, "rw");
+        try {
+            tempStore.setLength(0);
+            tempStore.setLength(capacity);
+            MappedByteBuffer log = tempStore.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            log.putInt(MAGIC);
+            log.putInt(VERSION);
+            for (byte[] record : records) {
+                log.put(record);
+            }
+
+            log.force();
+        } finally {
+            tempStore.close();
+        }
+
+        if (!tempStoreFile.renameTo(mStoreFile)) {
+            tempStoreFile.delete();
+            throw new IOException("Unable to replace the GreatPush state store.");
+        }
+
+        map();
+        mLogEnd = size;
+        mRecordCount = records.length;
+    }
+
+    private void map() throws IOException {
+        RandomAccessFile store = new RandomAccessFile(mStoreFile, "rw");
+        try {
+            mLog = store.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, store.length());
+        } finally {
+            store.close();
+        }
+    }
+
+    private static byte[] encodeRecord(byte recordType, String key, String value) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        byte[] valueBytes = value != null ? value.getBytes(UTF_8) : null;
+        int bodyLength = 1 + 4 + keyBytes.length + (valueBytes != null ? 4 + valueBytes.length : 0);
+        ByteBuffer record = ByteBuffer.allocate(bodyLength + 8);
+        record.putInt(bodyLength);
+        record.put(recordType);
+        record.putInt(keyBytes.length);
+        record.put(keyBytes);
+        if (valueBytes != null) {
+            record.putInt(valueBytes.length);
+            record.put(valueBytes);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, bodyLength);
+        record.putInt((int) crc.getValue());
+        return record.array();
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
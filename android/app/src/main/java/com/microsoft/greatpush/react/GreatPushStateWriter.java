@@ -0,0 +1,81 @@
+package com.microsoft.greatpush.react;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+// Runs every change to the state of the updates (greatpush.json, the package folders, the pending
+// and failed updates and the boot record) on a single thread, one change at a time. A change can
+// read the state, decide and write it without any other change interleaving, whichever thread asked
+// for it. Reads do not go through the writer: they use the PackageState snapshot and the values of
+// the state store, which changes replace rather than modify.
+//
+// Changes are run synchronously for their caller. A change made by another change runs right away
+// on the writer thread, as part of the change that made it.
+class GreatPushStateWriter {
+    private static final GreatPushStateWriter sInstance = new GreatPushStateWriter();
+
+    private final ExecutorService mExecutor;
+    private volatile Thread mWriterThread;
+
+    private GreatPushStateWriter() {
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "GreatPushStateWriter");
+                thread.setDaemon(true);
+                mWriterThread = thread;
+                return thread;
+            }
+        });
+    }
+
+    public static GreatPushStateWriter getInstance() {
+        return sInstance;
+    }
+
+    public void write(final Runnable change) {
+        write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                change.run();
+                return null;
+            }
+        });
+    }
+
+    // Returns the result of the change, and throws what it threw. Checked exceptions are wrapped in a
+    // GreatPushUnknownException.
+    public <T> T write(Callable<T> change) {
+        if (Thread.currentThread() == mWriterThread) {
+            try {
+                return change.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new GreatPushUnknownException("Unable to change the state of the updates.", e);
+            }
+        }
+
+        Future<T> result = mExecutor.submit(change);
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new GreatPushUnknownException("Unable to change the state of the updates.", cause);
+        } catch (InterruptedException e) {
+            // The change still runs, only its caller stops waiting for it.
+            Thread.currentThread().interrupt();
+            throw new GreatPushUnknownException("Interrupted while changing the state of the updates.", e);
+        }
+    }
+}
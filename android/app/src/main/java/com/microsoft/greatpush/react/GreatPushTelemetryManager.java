@@ -1,7 +1,6 @@
 package com.microsoft.greatpush.react;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReadableMap;
@@ -11,7 +10,9 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 public class GreatPushTelemetryManager {
-    private SharedPreferences mSettings;
+    // Losing a status report only means it is sent again, so its changes are not flushed to storage
+    // right away.
+    private GreatPushStateStore mSettings;
     private final String APP_VERSION_KEY = "appVersion";
     private final String DEPLOYMENT_FAILED_STATUS = "DeploymentFailed";
     private final String DEPLOYMENT_KEY_KEY = "deploymentKey";
@@ -25,7 +26,7 @@ public class GreatPushTelemetryManager {
     private final String STATUS_KEY = "status";
 
     public GreatPushTelemetryManager(Context applicationContext) {
-        mSettings = applicationContext.getSharedPreferences(GreatPushConstants.GREAT_PUSH_PREFERENCES, 0);
+        mSettings = GreatPushStateStore.getInstance(applicationContext);
     }
 
     public WritableMap getBinaryUpdateReport(String appVersion) {
@@ -55,7 +56,7 @@ public class GreatPushTelemetryManager {
     }
 
     public WritableMap getRetryStatusReport() {
-        String retryStatusReportString = mSettings.getString(RETRY_DEPLOYMENT_REPORT_KEY, null);
+        String retryStatusReportString = mSettings.getString(RETRY_DEPLOYMENT_REPORT_KEY);
         if (retryStatusReportString != null) {
             clearRetryStatusReport();
             try {
@@ -124,11 +125,11 @@ public class GreatPushTelemetryManager {
 
     public void saveStatusReportForRetry(ReadableMap statusReport) {
         JSONObject statusReportJSON = GreatPushUtils.convertReadableToJsonObject(statusReport);
-        mSettings.edit().putString(RETRY_DEPLOYMENT_REPORT_KEY, statusReportJSON.toString()).commit();
+        mSettings.putString(RETRY_DEPLOYMENT_REPORT_KEY, statusReportJSON.toString(), false);
     }
 
     private void clearRetryStatusReport() {
-        mSettings.edit().remove(RETRY_DEPLOYMENT_REPORT_KEY).commit();
+        mSettings.remove(RETRY_DEPLOYMENT_REPORT_KEY, false);
     }
 
     private String getDeploymentKeyFromStatusReportIdentifier(String statusReportIdentifier) {
@@ -153,7 +154,7 @@ public class GreatPushTelemetryManager {
     }
 
     private String getPreviousStatusReportIdentifier() {
-        return mSettings.getString(LAST_DEPLOYMENT_REPORT_KEY, null);
+        return mSettings.getString(LAST_DEPLOYMENT_REPORT_KEY);
     }
 
     private String getVersionLabelFromStatusReportIdentifier(String statusReportIdentifier) {
@@ -170,6 +171,6 @@ public class GreatPushTelemetryManager {
     }
 
     private void saveStatusReportedForIdentifier(String appVersionOrPackageIdentifier) {
-        mSettings.edit().putString(LAST_DEPLOYMENT_REPORT_KEY, appVersionOrPackageIdentifier).commit();
+        mSettings.putString(LAST_DEPLOYMENT_REPORT_KEY, appVersionOrPackageIdentifier, false);
     }
 }
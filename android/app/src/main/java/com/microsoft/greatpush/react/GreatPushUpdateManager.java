@@ -5,27 +5,91 @@ import org.json.JSONObject;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
 
 public class GreatPushUpdateManager {
 
     private String mDocumentsDirectory;
+    private int mDownloadSegmentCount = 1;
+    private long mMinimumDownloadSegmentSize = GreatPushConstants.DEFAULT_MINIMUM_DOWNLOAD_SEGMENT_SIZE;
+    // Shared by all segmented downloads, so that downloads running at the same time do not start
+    // more threads than one download uses.
+    private final ThreadPoolExecutor mSegmentLane = UpdateTaskExecutor.createLane("GreatPushSegment", 1);
+    private long mDownloadProgressIntervalMillis = GreatPushConstants.DEFAULT_DOWNLOAD_PROGRESS_INTERVAL_MILLIS;
+    private long mDownloadProgressIntervalBytes = 0;
+    private GreatPushHttpTransport mHttpTransport = new GreatPushOkHttpTransport();
+
+    // Loaded on first use and dropped whenever the packages change. Loading and dropping share a
+    // lock, so a snapshot read before a change can never be published after it.
+    private volatile PackageState mPackageState;
+    private final Object mPackageStateLock = new Object();
+
+    // The downloads in progress, by package hash. A package is only downloaded once at a time, and
+    // each download stages its files in its own folder, so packages can be downloaded in parallel.
+    private final Map<String, PackageDownload> mActiveDownloads = new HashMap<>();
 
     public GreatPushUpdateManager(String documentsDirectory) {
         mDocumentsDirectory = documentsDirectory;
     }
 
-    private String getDownloadFilePath() {
-        return GreatPushUtils.appendPathComponent(getGreatPushPath(), GreatPushConstants.DOWNLOAD_FILE_NAME);
+    public void setDownloadSegmentation(int segmentCount, long minimumSegmentSize) {
+        mDownloadSegmentCount = segmentCount;
+        mMinimumDownloadSegmentSize = minimumSegmentSize;
+        UpdateTaskExecutor.resizeLane(mSegmentLane, segmentCount);
+    }
+
+    public void setDownloadProgressInterval(long intervalMillis, long intervalBytes) {
+        mDownloadProgressIntervalMillis = intervalMillis;
+        mDownloadProgressIntervalBytes = intervalBytes;
+    }
+
+    public void setHttpTransport(GreatPushHttpTransport httpTransport) {
+        mHttpTransport = httpTransport;
+    }
+
+    private String getDownloadsFolderPath() {
+        return GreatPushUtils.appendPathComponent(getGreatPushPath(), GreatPushConstants.DOWNLOADS_FOLDER_NAME);
+    }
+
+    private String getDownloadFolderPath(String packageHash) {
+        return GreatPushUtils.appendPathComponent(getDownloadsFolderPath(), packageHash);
     }
 
-    private String getUnzippedFolderPath() {
-        return GreatPushUtils.appendPathComponent(getGreatPushPath(), GreatPushConstants.UNZIPPED_FOLDER_NAME);
+    private String getDownloadFilePath(String packageHash) {
+        return GreatPushUtils.appendPathComponent(getDownloadFolderPath(packageHash), GreatPushConstants.DOWNLOAD_FILE_NAME);
+    }
+
+    private String getDownloadJournalFilePath(String packageHash) {
+        return GreatPushUtils.appendPathComponent(getDownloadFolderPath(packageHash), GreatPushConstants.DOWNLOAD_JOURNAL_FILE_NAME);
+    }
+
+    private String getUnzippedFolderPath(String packageHash) {
+        return GreatPushUtils.appendPathComponent(getDownloadFolderPath(packageHash), GreatPushConstants.UNZIPPED_FOLDER_NAME);
+    }
+
+    private String getBlobsFolderPath() {
+        return GreatPushUtils.appendPathComponent(getGreatPushPath(), GreatPushConstants.BLOBS_FOLDER_NAME);
+    }
+
+    // Returns null on devices that cannot share package files through hard links.
+    private PackageBlobStore getBlobStore() {
+        return PackageBlobStore.isSupported() ? new PackageBlobStore(getBlobsFolderPath()) : null;
     }
 
     private String getDocumentsDirectory() {
@@ -45,7 +109,44 @@ public class GreatPushUpdateManager {
         return GreatPushUtils.appendPathComponent(getGreatPushPath(), GreatPushConstants.STATUS_FILE);
     }
 
+    private String getPreparedStatusFilePath() {
+        return GreatPushUtils.appendPathComponent(getGreatPushPath(), GreatPushConstants.PREPARED_STATUS_FILE);
+    }
+
+    private PackageState getPackageState() {
+        PackageState packageState = mPackageState;
+        if (packageState != null) {
+            return packageState;
+        }
+
+        synchronized (mPackageStateLock) {
+            if (mPackageState == null) {
+                JSONObject packageInfo = readCurrentPackageInfo();
+                String currentPackageHash = packageInfo.optString(GreatPushConstants.CURRENT_PACKAGE_KEY, null);
+                String previousPackageHash = packageInfo.optString(GreatPushConstants.PREVIOUS_PACKAGE_KEY, null);
+                mPackageState = new PackageState(packageInfo,
+                        currentPackageHash != null ? readPackage(currentPackageHash) : null,
+                        previousPackageHash != null ? readPackage(previousPackageHash) : null);
+            }
+
+            return mPackageState;
+        }
+    }
+
+    // Must be called after every change to greatpush.json or to the current or previous package.
+    private void invalidatePackageState() {
+        synchronized (mPackageStateLock) {
+            mPackageState = null;
+        }
+
+        BootRecord.invalidate(BootRecord.getRecordFile(getDocumentsDirectory()));
+    }
+
     public JSONObject getCurrentPackageInfo() {
+        return getPackageState().getPackageInfo();
+    }
+
+    private JSONObject readCurrentPackageInfo() {
         String statusFilePath = getStatusFilePath();
         if (!FileUtils.fileAtPathExists(statusFilePath)) {
             return new JSONObject();
@@ -65,12 +166,13 @@ public class GreatPushUpdateManager {
         } catch (IOException e) {
             // Should not happen.
             throw new GreatPushUnknownException("Error updating current package info", e);
+        } finally {
+            invalidatePackageState();
         }
     }
 
     public String getCurrentPackageFolderPath() {
-        JSONObject info = getCurrentPackageInfo();
-        String packageHash = info.optString(GreatPushConstants.CURRENT_PACKAGE_KEY, null);
+        String packageHash = getCurrentPackageHash();
         if (packageHash == null) {
             return null;
         }
@@ -79,17 +181,14 @@ public class GreatPushUpdateManager {
     }
 
     public String getCurrentPackageBundlePath(String bundleFileName) {
-        String packageFolder = getCurrentPackageFolderPath();
-        if (packageFolder == null) {
-            return null;
-        }
-
-        JSONObject currentPackage = getCurrentPackage();
-        if (currentPackage == null) {
+        PackageState packageState = getPackageState();
+        String packageHash = packageState.getCurrentPackageHash();
+        if (packageHash == null || !packageState.hasCurrentPackage()) {
             return null;
         }
 
-        String relativeBundlePath = currentPackage.optString(GreatPushConstants.RELATIVE_BUNDLE_PATH_KEY, null);
+        String packageFolder = getPackageFolderPath(packageHash);
+        String relativeBundlePath = packageState.getCurrentPackageString(GreatPushConstants.RELATIVE_BUNDLE_PATH_KEY);
         if (relativeBundlePath == null) {
             return GreatPushUtils.appendPathComponent(packageFolder, bundleFileName);
         } else {
@@ -102,34 +201,49 @@ public class GreatPushUpdateManager {
     }
 
     public String getCurrentPackageHash() {
-        JSONObject info = getCurrentPackageInfo();
-        return info.optString(GreatPushConstants.CURRENT_PACKAGE_KEY, null);
+        return getPackageState().getCurrentPackageHash();
     }
 
     public String getPreviousPackageHash() {
-        JSONObject info = getCurrentPackageInfo();
-        return info.optString(GreatPushConstants.PREVIOUS_PACKAGE_KEY, null);
+        return getPackageState().getPreviousPackageHash();
     }
 
     public JSONObject getCurrentPackage() {
-        String packageHash = getCurrentPackageHash();
-        if (packageHash == null) {
-            return null;
+        return getPackageState().getCurrentPackage();
+    }
+
+    public JSONObject getPreviousPackage() {
+        return getPackageState().getPreviousPackage();
+    }
+
+    public JSONObject getPackage(String packageHash) {
+        PackageState packageState = getPackageState();
+        if (packageHash != null && packageHash.equals(packageState.getCurrentPackageHash())) {
+            return packageState.getCurrentPackage();
+        } else if (packageHash != null && packageHash.equals(packageState.getPreviousPackageHash())) {
+            return packageState.getPreviousPackage();
         }
 
-        return getPackage(packageHash);
+        return readPackage(packageHash);
     }
 
-    public JSONObject getPreviousPackage() {
-        String packageHash = getPreviousPackageHash();
-        if (packageHash == null) {
+    // Returns null if the bundle of the package is not split into segments.
+    BundleSegmentTable getSegmentTable(String packageHash) {
+        JSONObject packageMetadata = getPackage(packageHash);
+        String relativeSegmentTablePath = packageMetadata != null
+                ? packageMetadata.optString(GreatPushConstants.RELATIVE_SEGMENT_TABLE_PATH_KEY, null) : null;
+        if (relativeSegmentTablePath == null) {
             return null;
         }
 
-        return getPackage(packageHash);
+        try {
+            return BundleSegmentTable.load(getPackageFolderPath(packageHash), relativeSegmentTablePath);
+        } catch (IOException e) {
+            throw new GreatPushUnknownException("Unable to read the segment table of package " + packageHash, e);
+        }
     }
 
-    public JSONObject getPackage(String packageHash) {
+    private JSONObject readPackage(String packageHash) {
         String folderPath = getPackageFolderPath(packageHash);
         String packageFilePath = GreatPushUtils.appendPathComponent(folderPath, GreatPushConstants.PACKAGE_FILE_NAME);
         try {
@@ -139,84 +253,214 @@ public class GreatPushUpdateManager {
         }
     }
 
-    public void downloadPackage(JSONObject updatePackage, String expectedBundleFileName,
+    // expectedBytecodeVersion is the bytecode version run by the JS engine of the binary, or
+    // BundleFormat.NO_BYTECODE_VERSION if it is not known to run bytecode. Throws a
+    // GreatPushDownloadCancelledException if the download is cancelled with cancelDownload.
+    //
+    // If the package is already being downloaded, this waits for that download instead, reporting
+    // its progress, and fails if it fails. Callers that should not block a thread while waiting use
+    // registerDownload and runDownload instead.
+    public void downloadPackage(JSONObject updatePackage, String expectedBundleFileName, int expectedBytecodeVersion,
                                 DownloadProgressCallback progressCallback,
                                 String stringPublicKey) throws IOException {
         String newUpdateHash = updatePackage.optString(GreatPushConstants.PACKAGE_HASH_KEY, null);
-        String newUpdateFolderPath = getPackageFolderPath(newUpdateHash);
-        String newUpdateMetadataPath = GreatPushUtils.appendPathComponent(newUpdateFolderPath, GreatPushConstants.PACKAGE_FILE_NAME);
-        if (FileUtils.fileAtPathExists(newUpdateFolderPath)) {
-            // This removes any stale data in newPackageFolderPath that could have been left
-            // uncleared due to a crash or error during the download or install process.
-            FileUtils.deleteDirectoryAtPath(newUpdateFolderPath);
+        PackageDownload download;
+        boolean isDownloadInProgress;
+        synchronized (mActiveDownloads) {
+            download = mActiveDownloads.get(newUpdateHash);
+            isDownloadInProgress = download != null;
+            if (!isDownloadInProgress) {
+                download = addDownload(newUpdateHash, progressCallback);
+            }
         }
 
-        String downloadUrlString = updatePackage.optString(GreatPushConstants.DOWNLOAD_URL_KEY, null);
-        HttpURLConnection connection = null;
-        BufferedInputStream bin = null;
-        FileOutputStream fos = null;
-        BufferedOutputStream bout = null;
-        File downloadFile = null;
-        boolean isZip = false;
+        if (isDownloadInProgress) {
+            GreatPushUtils.log("Waiting for the download of " + newUpdateHash + " that is already in progress.");
+            download.attach(progressCallback);
+            download.await();
+            return;
+        }
 
-        // Download the file while checking if it is a zip and notifying client of progress.
-        try {
-            URL downloadUrl = new URL(downloadUrlString);
-            connection = (HttpURLConnection) (downloadUrl.openConnection());
-            connection.setRequestProperty("Accept-Encoding", "identity");
-            bin = new BufferedInputStream(connection.getInputStream());
+        runDownload(download, updatePackage, expectedBundleFileName, expectedBytecodeVersion, stringPublicKey);
+    }
 
-            long totalBytes = connection.getContentLength();
-            long receivedBytes = 0;
+    // Registers a download of the package and returns it, for the caller to pass to runDownload, e.g.
+    // on another thread. The completion listener is called once the download has completed. If the
+    // package is already being downloaded, or registered to be, the callbacks are attached to that
+    // download instead and this returns null, so that the caller does not take a thread only to wait
+    // for it.
+    public PackageDownload registerDownload(String packageHash, DownloadProgressCallback progressCallback,
+                                            PackageDownload.CompletionListener completionListener) {
+        PackageDownload download;
+        synchronized (mActiveDownloads) {
+            download = mActiveDownloads.get(packageHash);
+            if (download == null) {
+                PackageDownload newDownload = addDownload(packageHash, progressCallback);
+                newDownload.addCompletionListener(completionListener);
+                return newDownload;
+            }
+        }
 
-            File downloadFolder = new File(getGreatPushPath());
-            downloadFolder.mkdirs();
-            downloadFile = new File(downloadFolder, GreatPushConstants.DOWNLOAD_FILE_NAME);
-            fos = new FileOutputStream(downloadFile);
-            bout = new BufferedOutputStream(fos, GreatPushConstants.DOWNLOAD_BUFFER_SIZE);
-            byte[] data = new byte[GreatPushConstants.DOWNLOAD_BUFFER_SIZE];
-            byte[] header = new byte[4];
+        GreatPushUtils.log("Joining the download of " + packageHash + " that is already in progress.");
+        download.attach(progressCallback);
+        download.addCompletionListener(completionListener);
+        return null;
+    }
 
-            int numBytesRead = 0;
-            while ((numBytesRead = bin.read(data, 0, GreatPushConstants.DOWNLOAD_BUFFER_SIZE)) >= 0) {
-                if (receivedBytes < 4) {
-                    for (int i = 0; i < numBytesRead; i++) {
-                        int headerOffset = (int) (receivedBytes) + i;
-                        if (headerOffset >= 4) {
-                            break;
-                        }
+    // Runs a download returned by registerDownload. Throws what the download fails with, like
+    // downloadPackage, after reporting it to the completion listeners.
+    public void runDownload(PackageDownload download, JSONObject updatePackage, String expectedBundleFileName,
+                            int expectedBytecodeVersion, String stringPublicKey) throws IOException {
+        String newUpdateHash = updatePackage.optString(GreatPushConstants.PACKAGE_HASH_KEY, null);
+        synchronized (mActiveDownloads) {
+            deleteStaleDownloads();
+        }
 
-                        header[headerOffset] = data[i];
-                    }
+        Throwable failure = null;
+        DownloadCancellation cancellation = download.getCancellation();
+        try {
+            downloadPackage(updatePackage, expectedBundleFileName, expectedBytecodeVersion, download, stringPublicKey, cancellation);
+            FileUtils.deleteDirectoryAtPath(getDownloadFolderPath(newUpdateHash));
+        } catch (IOException | RuntimeException | Error e) {
+            // Closing the response of a cancelled download fails its read with whatever error the
+            // HTTP client reports.
+            if (!cancellation.isCancelled()) {
+                failure = e;
+                throw e;
+            }
+
+            FileUtils.deleteDirectoryAtPath(getDownloadFolderPath(newUpdateHash));
+            final String newUpdateFolderPath = getPackageFolderPath(newUpdateHash);
+            GreatPushStateWriter.getInstance().write(new Runnable() {
+                @Override
+                public void run() {
+                    FileUtils.deleteDirectoryAtPath(newUpdateFolderPath);
+                    invalidatePackageState();
                 }
+            });
+            failure = new GreatPushDownloadCancelledException(newUpdateHash);
+            throw (GreatPushDownloadCancelledException) failure;
+        } finally {
+            synchronized (mActiveDownloads) {
+                if (mActiveDownloads.get(newUpdateHash) == download) {
+                    mActiveDownloads.remove(newUpdateHash);
+                }
+            }
 
-                receivedBytes += numBytesRead;
-                bout.write(data, 0, numBytesRead);
-                progressCallback.call(new DownloadProgress(totalBytes, receivedBytes));
+            download.complete(failure);
+        }
+    }
+
+    // Returns whether the package was being downloaded. The download stops at its next read and
+    // deletes what it downloaded so far, including what a later attempt could have resumed. Every
+    // caller waiting for it fails, and so does a caller asking for the package before the download
+    // has stopped, since the download still deletes the package folder.
+    public boolean cancelDownload(String packageHash) {
+        PackageDownload download;
+        synchronized (mActiveDownloads) {
+            download = mActiveDownloads.get(packageHash);
+        }
+
+        if (download == null) {
+            return false;
+        }
+
+        GreatPushUtils.log("Cancelling the download of " + packageHash + ".");
+        download.getCancellation().cancel();
+        return true;
+    }
+
+    // Registers a new download of the package. Must be called with the active downloads locked.
+    private PackageDownload addDownload(String packageHash, DownloadProgressCallback progressCallback) {
+        PackageDownload download = new PackageDownload(packageHash, progressCallback);
+        mActiveDownloads.put(packageHash, download);
+        return download;
+    }
+
+    // Deletes the files that failed downloads kept to be resumed, unless the package is being
+    // downloaded again, so that abandoned downloads do not pile up. Also deletes the files of
+    // downloads started before each download had its own folder. Must be called with the active
+    // downloads locked, so that no download starts staging its files meanwhile.
+    private void deleteStaleDownloads() {
+        FileUtils.deleteFileOrFolderSilently(new File(getGreatPushPath(), GreatPushConstants.DOWNLOAD_FILE_NAME));
+        FileUtils.deleteFileOrFolderSilently(new File(getGreatPushPath(), GreatPushConstants.DOWNLOAD_JOURNAL_FILE_NAME));
+        FileUtils.deleteFileOrFolderSilently(new File(getGreatPushPath(), GreatPushConstants.UNZIPPED_FOLDER_NAME));
+
+        File[] downloadFolders = new File(getDownloadsFolderPath()).listFiles();
+        if (downloadFolders == null) {
+            return;
+        }
+
+        for (File downloadFolder : downloadFolders) {
+            if (!mActiveDownloads.containsKey(downloadFolder.getName())) {
+                FileUtils.deleteFileOrFolderSilently(downloadFolder);
             }
+        }
+    }
 
-            if (totalBytes != receivedBytes) {
-                throw new GreatPushUnknownException("Received " + receivedBytes + " bytes, expected " + totalBytes);
+    private void downloadPackage(final JSONObject updatePackage, String expectedBundleFileName, int expectedBytecodeVersion,
+                                 DownloadProgressCallback progressCallback, String stringPublicKey,
+                                 DownloadCancellation cancellation) throws IOException {
+        String newUpdateHash = updatePackage.optString(GreatPushConstants.PACKAGE_HASH_KEY, null);
+        final String newUpdateFolderPath = getPackageFolderPath(newUpdateHash);
+        final String newUpdateMetadataPath = GreatPushUtils.appendPathComponent(newUpdateFolderPath, GreatPushConstants.PACKAGE_FILE_NAME);
+        GreatPushStateWriter.getInstance().write(new Runnable() {
+            @Override
+            public void run() {
+                if (FileUtils.fileAtPathExists(newUpdateFolderPath)) {
+                    // This removes any stale data in newPackageFolderPath that could have been left
+                    // uncleared due to a crash or error during the download or install process.
+                    FileUtils.deleteDirectoryAtPath(newUpdateFolderPath);
+                    // Downloading the current package again replaces its folder.
+                    invalidatePackageState();
+                }
             }
+        });
 
-            isZip = ByteBuffer.wrap(header).getInt() == 0x504b0304;
-        } catch (MalformedURLException e) {
-            throw new GreatPushMalformedDataException(downloadUrlString, e);
-        } finally {
+        String downloadUrlString = updatePackage.optString(GreatPushConstants.DOWNLOAD_URL_KEY, null);
+        String unzippedFolderPath = getUnzippedFolderPath(newUpdateHash);
+        File downloadFolder = new File(getDownloadFolderPath(newUpdateHash));
+        downloadFolder.mkdirs();
+        File downloadFile = new File(getDownloadFilePath(newUpdateHash));
+        File journalFile = new File(getDownloadJournalFilePath(newUpdateHash));
+
+        DownloadProgress downloadProgress = new DownloadProgress(mDownloadProgressIntervalMillis, mDownloadProgressIntervalBytes);
+        boolean isDownloadedInSegments = false;
+        if (mDownloadSegmentCount > 1 && !journalFile.exists()) {
+            // Segmented downloads cannot be resumed, so they are only attempted when there is no
+            // interrupted download to continue.
             try {
-                if (bout != null) bout.close();
-                if (fos != null) fos.close();
-                if (bin != null) bin.close();
-                if (connection != null) connection.disconnect();
-            } catch (IOException e) {
-                throw new GreatPushUnknownException("Error closing IO resources.", e);
+                SegmentedDownloader segmentedDownloader = new SegmentedDownloader(mHttpTransport, new URL(downloadUrlString),
+                        mDownloadSegmentCount, mMinimumDownloadSegmentSize, downloadProgress, progressCallback, cancellation, mSegmentLane);
+                isDownloadedInSegments = segmentedDownloader.download(downloadFile.getAbsolutePath());
+            } catch (MalformedURLException e) {
+                throw new GreatPushMalformedDataException(downloadUrlString, e);
+            } catch (IOException | GreatPushUnknownException e) {
+                // A failed probe or segment is retried over a single connection, which does not
+                // depend on range requests and can be resumed if it is interrupted as well.
+                downloadFile.delete();
+                cancellation.throwIfCancelled();
+                GreatPushUtils.log("Unable to download the package in segments, downloading it over a single connection: " + e.getMessage());
+            }
+        }
+
+        // Hashes of the extracted files, relative to the package folder, so that the package can be
+        // verified without reading it back.
+        UpdateContentsManifest updateContentsManifest = new UpdateContentsManifest();
+        boolean isZip;
+        if (isDownloadedInSegments) {
+            isZip = isZipFile(downloadFile);
+            if (isZip) {
+                FileUtils.unzipFile(downloadFile, unzippedFolderPath, updateContentsManifest);
             }
+        } else {
+            isZip = downloadPackageStream(newUpdateHash, downloadUrlString, downloadFile, journalFile, unzippedFolderPath,
+                    updateContentsManifest, downloadProgress, progressCallback, cancellation);
         }
 
+        cancellation.throwIfCancelled();
+
         if (isZip) {
-            // Unzip the downloaded file and then delete the zip
-            String unzippedFolderPath = getUnzippedFolderPath();
-            FileUtils.unzipFile(downloadFile, unzippedFolderPath);
             FileUtils.deleteFileOrFolderSilently(downloadFile);
 
             // Merge contents with current update based on the manifest
@@ -224,14 +468,15 @@ public class GreatPushUpdateManager {
                     GreatPushConstants.DIFF_MANIFEST_FILE_NAME);
             boolean isDiffUpdate = FileUtils.fileAtPathExists(diffManifestFilePath);
             if (isDiffUpdate) {
-                String currentPackageFolderPath = getCurrentPackageFolderPath();
-                GreatPushUpdateUtils.copyNecessaryFilesFromCurrentPackage(diffManifestFilePath, currentPackageFolderPath, newUpdateFolderPath);
-                File diffManifestFile = new File(diffManifestFilePath);
-                diffManifestFile.delete();
+                // Add the files that the update keeps from the current package to the staging folder,
+                // around the ones it replaces.
+                GreatPushUpdateUtils.addUnchangedFilesFromCurrentPackage(diffManifestFilePath, getCurrentPackageFolderPath(), unzippedFolderPath,
+                        updateContentsManifest, getBlobStore());
             }
 
-            FileUtils.copyDirectoryContents(unzippedFolderPath, newUpdateFolderPath);
-            FileUtils.deleteFileAtPathSilently(unzippedFolderPath);
+            // The staging folder now holds the complete package, so it only needs to be renamed.
+            cancellation.throwIfCancelled();
+            FileUtils.moveDirectory(unzippedFolderPath, newUpdateFolderPath);
 
             // For zip updates, we need to find the relative path to the jsBundle and save it in the
             // metadata so that we can find and run it easily the next time.
@@ -245,6 +490,24 @@ public class GreatPushUpdateManager {
                     metadataFileFromOldUpdate.delete();
                 }
 
+                updateContentsManifest.remove(GreatPushConstants.PACKAGE_FILE_NAME);
+
+                // A bundle the engine cannot run is refused now, rather than failing to load
+                // after a restart and being rolled back.
+                BundleFormat bundleFormat = BundleFormat.detect(new File(GreatPushUtils.appendPathComponent(newUpdateFolderPath, relativeBundlePath)));
+                bundleFormat.verifyBytecodeVersion(expectedBytecodeVersion);
+                setBundleFormat(updatePackage, bundleFormat);
+
+                // The segments of a split bundle are only installed together: after a diff update
+                // has replaced some of them, the table must still match the files of the package.
+                String relativeSegmentTablePath = BundleSegmentTable.getTablePath(relativeBundlePath);
+                BundleSegmentTable segmentTable = BundleSegmentTable.load(newUpdateFolderPath, relativeSegmentTablePath);
+                if (segmentTable != null) {
+                    segmentTable.verifySegments(newUpdateFolderPath);
+                    GreatPushUtils.setJSONValueForKey(updatePackage, GreatPushConstants.RELATIVE_SEGMENT_TABLE_PATH_KEY, relativeSegmentTablePath);
+                    GreatPushUtils.log("The JS bundle is split into " + segmentTable.size() + " segments.");
+                }
+
                 if (isDiffUpdate) {
                     GreatPushUtils.log("Applying diff update.");
                 } else {
@@ -258,7 +521,7 @@ public class GreatPushUpdateManager {
 
                 if (isSignatureVerificationEnabled) {
                     if (isSignatureAppearedInBundle) {
-                        GreatPushUpdateUtils.verifyFolderHash(newUpdateFolderPath, newUpdateHash);
+                        GreatPushUpdateUtils.verifyManifestHash(updateContentsManifest, newUpdateHash);
                         GreatPushUpdateUtils.verifyUpdateSignature(newUpdateFolderPath, newUpdateHash, stringPublicKey);
                     } else {
                         throw new GreatPushInvalidUpdateException(
@@ -274,73 +537,540 @@ public class GreatPushUpdateManager {
                                 "Warning! JWT signature exists in greatpush update but code integrity check couldn't be performed because there is no public key configured. " +
                                 "Please ensure that public key is properly configured within your application."
                         );
-                        GreatPushUpdateUtils.verifyFolderHash(newUpdateFolderPath, newUpdateHash);
+                        GreatPushUpdateUtils.verifyManifestHash(updateContentsManifest, newUpdateHash);
                     } else {
                         if (isDiffUpdate) {
-                            GreatPushUpdateUtils.verifyFolderHash(newUpdateFolderPath, newUpdateHash);
+                            GreatPushUpdateUtils.verifyManifestHash(updateContentsManifest, newUpdateHash);
                         }
                     }
                 }
 
+                PackageBlobStore blobStore = getBlobStore();
+                if (blobStore != null) {
+                    blobStore.addPackageFiles(newUpdateFolderPath, updateContentsManifest);
+                }
+
+                // Linking to blobs replaces files, so the index is only taken once the files are final.
+                try {
+                    PackageHashIndex.fromManifest(newUpdateFolderPath, updateContentsManifest).save(newUpdateFolderPath);
+                    PackageMerkleTree.fromManifest(newUpdateHash, updateContentsManifest).save(newUpdateFolderPath);
+                } catch (IOException e) {
+                    GreatPushUtils.log("Unable to save the hash index of the new package: " + e.getMessage());
+                }
+
                 GreatPushUtils.setJSONValueForKey(updatePackage, GreatPushConstants.RELATIVE_BUNDLE_PATH_KEY, relativeBundlePath);
             }
         } else {
             // File is a jsbundle, move it to a folder with the packageHash as its name
             FileUtils.moveFile(downloadFile, newUpdateFolderPath, expectedBundleFileName);
+            BundleFormat bundleFormat = BundleFormat.detect(new File(newUpdateFolderPath, expectedBundleFileName));
+            bundleFormat.verifyBytecodeVersion(expectedBytecodeVersion);
+            setBundleFormat(updatePackage, bundleFormat);
         }
 
         // Save metadata to the folder.
-        GreatPushUtils.writeJsonToFile(updatePackage, newUpdateMetadataPath);
+        GreatPushStateWriter.getInstance().write(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                GreatPushUtils.writeJsonToFile(updatePackage, newUpdateMetadataPath);
+                invalidatePackageState();
+                return null;
+            }
+        });
+    }
+
+    private static void setBundleFormat(JSONObject updatePackage, BundleFormat bundleFormat) {
+        GreatPushUtils.setJSONValueForKey(updatePackage, GreatPushConstants.BUNDLE_FORMAT_KEY, bundleFormat.getFormat());
+        if (bundleFormat.isBytecode()) {
+            GreatPushUtils.setJSONValueForKey(updatePackage, GreatPushConstants.BYTECODE_VERSION_KEY, bundleFormat.getBytecodeVersion());
+        }
+    }
+
+    // Downloads the package over a single connection, continuing an interrupted download of the same
+    // package if possible. Returns whether the package is a zip, in which case it has been extracted
+    // into unzippedFolderPath; otherwise the package has been written to downloadFile.
+    private boolean downloadPackageStream(String packageHash, String downloadUrlString, File downloadFile, File journalFile,
+                                          String unzippedFolderPath, UpdateContentsManifest updateContentsManifest,
+                                          DownloadProgress downloadProgress, DownloadProgressCallback progressCallback,
+                                          DownloadCancellation cancellation) throws IOException {
+        // Continue from where a previous attempt at downloading this package was interrupted.
+        long resumeOffset = 0;
+        String resumeValidator = null;
+        boolean isResumeGzipEncoded = false;
+        DownloadJournal previousJournal = DownloadJournal.load(journalFile);
+        if (previousJournal != null && previousJournal.canResume(packageHash, downloadUrlString) && downloadFile.exists()) {
+            resumeOffset = Math.min(previousJournal.getCommittedBytes(), downloadFile.length());
+            resumeValidator = previousJournal.getValidator();
+            isResumeGzipEncoded = previousJournal.isGzipEncoded();
+        }
+
+        GreatPushHttpResponse response = null;
+        DownloadJournal journal = null;
+        JournaledInputStream journaledStream = null;
+        BufferedInputStream bin = null;
+        OutputStream decodedFileStream = null;
+        File decodedFile = new File(downloadFile.getParentFile(), GreatPushConstants.DECODED_DOWNLOAD_FILE_NAME);
+        boolean isZip = false;
+        boolean discardPartialDownload = false;
+
+        // Download the file while checking if it is a zip and notifying client of progress. Zip
+        // packages are extracted from the stream into the staging folder as they arrive, while the
+        // bytes as sent are appended to the download file so that an interrupted download can resume.
+        try {
+            URL downloadUrl = new URL(downloadUrlString);
+            response = sendDownloadRequest(downloadUrl, resumeOffset, resumeValidator, isResumeGzipEncoded);
+            cancellation.register(response);
+
+            long totalBytes = response.getContentLength();
+            if (resumeOffset > 0) {
+                long resumedTotalBytes = getResumedContentLength(response, resumeOffset);
+                if (resumedTotalBytes >= 0 && isGzipEncoded(response) != isResumeGzipEncoded) {
+                    // The rest of the file is in another encoding than the part already on disk.
+                    resumedTotalBytes = -1;
+                }
+
+                if (resumedTotalBytes >= 0) {
+                    GreatPushUtils.log("Resuming download of " + packageHash + " from byte " + resumeOffset + ".");
+                    totalBytes = resumedTotalBytes;
+                } else {
+                    // The server ignored or rejected the range request, so start over.
+                    resumeOffset = 0;
+                    if (response.getStatusCode() != HttpURLConnection.HTTP_OK) {
+                        cancellation.unregister(response);
+                        response.close();
+                        response = sendDownloadRequest(downloadUrl, 0, null, false);
+                        cancellation.register(response);
+                    }
+
+                    totalBytes = response.getContentLength();
+                }
+            }
+
+            checkDownloadResponseStatus(response, downloadUrlString);
+
+            // Progress is reported on the bytes as they are sent over the network.
+            downloadProgress.start(totalBytes, resumeOffset);
+            DownloadProgressInputStream progressStream = new DownloadProgressInputStream(response.getBody(), downloadProgress, progressCallback, cancellation);
+            boolean isEncoded = isGzipEncoded(response);
+            String validator = resumeOffset > 0 ? resumeValidator : getDownloadValidator(response, isEncoded);
+            journal = new DownloadJournal(journalFile, packageHash, downloadUrlString, validator, isEncoded);
+
+            RandomAccessFile partialDownloadFile = new RandomAccessFile(downloadFile, "rw");
+            try {
+                partialDownloadFile.setLength(resumeOffset);
+            } finally {
+                partialDownloadFile.close();
+            }
+
+            FileOutputStream fos = new FileOutputStream(downloadFile, /* append */true);
+            journaledStream = new JournaledInputStream(progressStream,
+                    new BufferedOutputStream(fos, GreatPushConstants.DOWNLOAD_BUFFER_SIZE), journal, resumeOffset);
+            journaledStream.commit();
+
+            InputStream downloadStream = journaledStream;
+            if (resumeOffset > 0) {
+                // The already downloaded bytes are read to their end before the first new byte is
+                // appended to the file, so both streams can share the download file.
+                downloadStream = new SequenceInputStream(new FileInputStream(downloadFile), journaledStream);
+            }
+
+            if (isEncoded) {
+                // Decodes the bytes on disk again when resuming, since they are kept compressed.
+                downloadStream = new GZIPInputStream(downloadStream, GreatPushConstants.DOWNLOAD_BUFFER_SIZE);
+            }
+
+            bin = new BufferedInputStream(downloadStream, GreatPushConstants.DOWNLOAD_BUFFER_SIZE);
+
+            byte[] header = new byte[4];
+            bin.mark(header.length);
+            int headerLength = 0;
+            int numBytesRead = 0;
+            while (headerLength < header.length && (numBytesRead = bin.read(header, headerLength, header.length - headerLength)) >= 0) {
+                headerLength += numBytesRead;
+            }
+            bin.reset();
+
+            isZip = isZipHeader(header, headerLength);
+            if (isZip) {
+                FileUtils.unzipStream(bin, unzippedFolderPath, updateContentsManifest);
+            } else if (isEncoded) {
+                // The download file holds the compressed bundle, so the decoded one is written
+                // next to it and replaces it once complete.
+                decodedFileStream = new BufferedOutputStream(new FileOutputStream(decodedFile), GreatPushConstants.DOWNLOAD_BUFFER_SIZE);
+            }
+
+            // Consume the rest of the stream (the zip central directory, or the whole file if this is
+            // not a zip) so that all of the advertised bytes are written and accounted for.
+            byte[] data = new byte[GreatPushConstants.DOWNLOAD_BUFFER_SIZE];
+            while ((numBytesRead = bin.read(data, 0, GreatPushConstants.DOWNLOAD_BUFFER_SIZE)) >= 0) {
+                if (decodedFileStream != null) {
+                    decodedFileStream.write(data, 0, numBytesRead);
+                }
+            }
+
+            // The gzip trailer already checks the length and checksum of the decoded bytes, which
+            // is all there is to check when the server streams compressed data without a length.
+            long receivedBytes = progressStream.getReceivedBytes();
+            if (totalBytes != receivedBytes && !(isEncoded && totalBytes < 0)) {
+                // A connection that ends early can be resumed, but any other mismatch cannot.
+                discardPartialDownload = receivedBytes > totalBytes;
+                throw new GreatPushUnknownException("Received " + receivedBytes + " bytes, expected " + totalBytes);
+            }
+
+            if (totalBytes < 0) {
+                downloadProgress.finish();
+                progressCallback.call(downloadProgress);
+            }
+        } catch (MalformedURLException e) {
+            throw new GreatPushMalformedDataException(downloadUrlString, e);
+        } catch (ZipException e) {
+            // The downloaded bytes are not a valid zip, so there is nothing worth resuming.
+            discardPartialDownload = true;
+            throw e;
+        } finally {
+            try {
+                if (bin != null) bin.close();
+                else if (journaledStream != null) journaledStream.close();
+                if (decodedFileStream != null) decodedFileStream.close();
+                if (response != null) {
+                    cancellation.unregister(response);
+                    response.close();
+                }
+            } catch (IOException e) {
+                throw new GreatPushUnknownException("Error closing IO resources.", e);
+            } finally {
+                if (discardPartialDownload) {
+                    journal.delete();
+                    downloadFile.delete();
+                }
+            }
+        }
+
+        if (decodedFileStream != null && (!downloadFile.delete() || !decodedFile.renameTo(downloadFile))) {
+            throw new GreatPushUnknownException("Unable to replace the download file with its decoded contents.");
+        }
+
+        journal.delete();
+        return isZip;
+    }
+
+    private GreatPushHttpResponse sendDownloadRequest(URL downloadUrl, long resumeOffset, String validator,
+                                                      boolean isGzipEncoded) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        if (resumeOffset > 0) {
+            // The rest of the file has to come in the same representation as the part already on disk.
+            headers.put("Accept-Encoding", isGzipEncoded ? "gzip" : "identity");
+            headers.put("Range", "bytes=" + resumeOffset + "-");
+            // Only accept the range if the file on the server has not changed in the meantime.
+            headers.put("If-Range", validator);
+        } else {
+            // Setting the header ourselves turns off the transparent decompression of the HTTP
+            // client, which would otherwise hide the length of the response.
+            headers.put("Accept-Encoding", "gzip");
+        }
+
+        return mHttpTransport.execute("GET", downloadUrl, headers);
+    }
+
+    private static void checkDownloadResponseStatus(GreatPushHttpResponse response, String downloadUrlString) throws IOException {
+        int statusCode = response.getStatusCode();
+        if (statusCode < 200 || statusCode >= 300) {
+            throw new IOException("Server returned HTTP response code: " + statusCode + " for URL: " + downloadUrlString);
+        }
+    }
+
+    // Returns the length of the whole file if the server responded with the requested range,
+    // or -1 if the response cannot be used to continue the download.
+    private long getResumedContentLength(GreatPushHttpResponse response, long resumeOffset) {
+        if (response.getStatusCode() != HttpURLConnection.HTTP_PARTIAL) {
+            return -1;
+        }
+
+        // Format: "bytes <first>-<last>/<length>"
+        String contentRange = response.getHeader("Content-Range");
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+
+        int dashIndex = contentRange.indexOf('-');
+        int slashIndex = contentRange.indexOf('/');
+        if (dashIndex < 0 || slashIndex < dashIndex) {
+            return -1;
+        }
+
+        try {
+            long firstBytePosition = Long.parseLong(contentRange.substring("bytes ".length(), dashIndex).trim());
+            long completeLength = Long.parseLong(contentRange.substring(slashIndex + 1).trim());
+            return firstBytePosition == resumeOffset ? completeLength : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean isZipHeader(byte[] header, int headerLength) {
+        return headerLength == 4 && ByteBuffer.wrap(header).getInt() == 0x504b0304;
+    }
+
+    private static boolean isZipFile(File file) throws IOException {
+        FileInputStream fileStream = new FileInputStream(file);
+        try {
+            byte[] header = new byte[4];
+            int headerLength = 0;
+            int numBytesRead;
+            while (headerLength < header.length && (numBytesRead = fileStream.read(header, headerLength, header.length - headerLength)) >= 0) {
+                headerLength += numBytesRead;
+            }
+
+            return isZipHeader(header, headerLength);
+        } finally {
+            fileStream.close();
+        }
     }
 
-    public void installPackage(JSONObject updatePackage, boolean removePendingUpdate) {
+    private static boolean isGzipEncoded(GreatPushHttpResponse response) {
+        String contentEncoding = response.getHeader("Content-Encoding");
+        if (contentEncoding == null || contentEncoding.equalsIgnoreCase("identity")) {
+            return false;
+        } else if (contentEncoding.equalsIgnoreCase("gzip")) {
+            return true;
+        }
+
+        throw new GreatPushUnknownException("Unsupported content encoding \"" + contentEncoding + "\" in the update download response.");
+    }
+
+    private String getDownloadValidator(GreatPushHttpResponse response, boolean isGzipEncoded) {
+        // Weak entity tags cannot be used with If-Range, so fall back to the modification date.
+        String eTag = response.getHeader("ETag");
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+
+        // Only a strong entity tag tells that a server compressing on the fly sends the same
+        // compressed bytes again, so such a download starts over if interrupted.
+        return isGzipEncoded ? null : response.getHeader("Last-Modified");
+    }
+
+    // Hashes all files of a downloaded package again and checks them against its package hash, to
+    // catch files that were damaged or replaced on disk since the download. Throws a
+    // GreatPushInvalidUpdateException if they do not match, and returns false if the package is a
+    // single bundle file, whose hash is not computed from its contents.
+    public boolean verifyPackage(String packageHash) {
+        JSONObject packageMetadata = getPackage(packageHash);
+        if (packageMetadata == null || packageMetadata.optString(GreatPushConstants.RELATIVE_BUNDLE_PATH_KEY, null) == null) {
+            return false;
+        }
+
+        GreatPushUpdateUtils.verifyFolderHash(getPackageFolderPath(packageHash), packageHash);
+        return true;
+    }
+
+    // Checks a single file or directory ("" for all files) of an installed package against its
+    // Merkle tree, e.g. to spot-check the bundle before loading it. Throws a
+    // GreatPushInvalidUpdateException if the contents do not match, and returns false if the
+    // package does not have a tree to check against.
+    public boolean verifyPackageContents(String packageHash, String relativePath) throws IOException {
+        String packageFolderPath = getPackageFolderPath(packageHash);
+        PackageMerkleTree merkleTree = PackageMerkleTree.load(packageFolderPath);
+        if (merkleTree == null) {
+            return false;
+        }
+
+        merkleTree.verifyPackageHash(packageHash);
+        if (merkleTree.isDirectory(relativePath)) {
+            merkleTree.verifyDirectory(packageFolderPath, relativePath);
+        } else {
+            merkleTree.verifyFile(packageFolderPath, relativePath);
+        }
+
+        return true;
+    }
+
+    public void installPackage(final JSONObject updatePackage, final boolean removePendingUpdate) {
+        GreatPushStateWriter.getInstance().write(new Runnable() {
+            @Override
+            public void run() {
+                // An install that is still prepared would switch back from this one.
+                discardPreparedInstall();
+                JSONObject previousInfo = getCurrentPackageInfo();
+                JSONObject info = getInstalledPackageInfo(updatePackage, removePendingUpdate);
+                if (info != null) {
+                    updateCurrentPackageInfo(info);
+                    deleteReplacedPackages(previousInfo, info);
+                    collectBlobGarbage();
+                }
+            }
+        });
+    }
+
+    // The first of the two phases of an install, which does its I/O ahead of the restart: it writes
+    // the package info the install switches to next to the current one. commitInstall then switches
+    // to it with a single rename, and only then removes the packages the install replaces. Until
+    // then, neither the current package nor the previous one changes, so the prepared install can
+    // be discarded at any point.
+    public void prepareInstall(final JSONObject updatePackage, final boolean removePendingUpdate) {
+        GreatPushStateWriter.getInstance().write(new Runnable() {
+            @Override
+            public void run() {
+                discardPreparedInstall();
+                JSONObject info = getInstalledPackageInfo(updatePackage, removePendingUpdate);
+                if (info == null) {
+                    // Reinstalling the current package still makes it pending once committed.
+                    info = getCurrentPackageInfo();
+                }
+
+                // Written under a temporary name first, since the prepared file becomes the status file as is.
+                File preparedStatusFile = new File(getPreparedStatusFilePath());
+                File tempPreparedStatusFile = new File(preparedStatusFile.getPath() + ".tmp");
+                try {
+                    GreatPushUtils.writeJsonToFile(info, tempPreparedStatusFile.getAbsolutePath());
+                } catch (IOException e) {
+                    throw new GreatPushUnknownException("Error preparing the install", e);
+                }
+
+                if (!tempPreparedStatusFile.renameTo(preparedStatusFile)) {
+                    tempPreparedStatusFile.delete();
+                    throw new GreatPushUnknownException("Unable to prepare the install of package " + updatePackage.optString(GreatPushConstants.PACKAGE_HASH_KEY));
+                }
+
+                // The next start has to find the prepared install.
+                BootRecord.invalidate(BootRecord.getRecordFile(getDocumentsDirectory()));
+            }
+        });
+    }
+
+    public boolean hasPreparedInstall() {
+        return new File(getPreparedStatusFilePath()).exists();
+    }
+
+    // Returns null if no install has been prepared.
+    public String getPreparedPackageHash() {
+        String preparedStatusFilePath = getPreparedStatusFilePath();
+        if (!FileUtils.fileAtPathExists(preparedStatusFilePath)) {
+            return null;
+        }
+
+        try {
+            return GreatPushUtils.getJsonObjectFromFile(preparedStatusFilePath).optString(GreatPushConstants.CURRENT_PACKAGE_KEY, null);
+        } catch (IOException e) {
+            throw new GreatPushUnknownException("Error reading the prepared install", e);
+        }
+    }
+
+    // The second phase of an install: makes the prepared package the current one, then removes the
+    // packages it replaces. Returns false if no install had been prepared. The blobs of the removed
+    // packages are released by the blob store check that GreatPush runs in the background at startup
+    // and after restarting into the install.
+    public boolean commitInstall() {
+        return GreatPushStateWriter.getInstance().write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                File preparedStatusFile = new File(getPreparedStatusFilePath());
+                JSONObject previousInfo = getCurrentPackageInfo();
+                try {
+                    if (!preparedStatusFile.renameTo(new File(getStatusFilePath()))) {
+                        if (!preparedStatusFile.exists()) {
+                            return false;
+                        }
+
+                        throw new GreatPushUnknownException("Unable to commit the prepared install.");
+                    }
+                } finally {
+                    invalidatePackageState();
+                }
+
+                deleteReplacedPackages(previousInfo, getCurrentPackageInfo());
+                return true;
+            }
+        });
+    }
+
+    // Only removes the prepared package info: the packages it names are still those of the status file.
+    private void discardPreparedInstall() {
+        File preparedStatusFile = new File(getPreparedStatusFilePath());
+        if (preparedStatusFile.exists()) {
+            preparedStatusFile.delete();
+        }
+    }
+
+    // Returns the package info to install updatePackage with, or null if it is already the current
+    // package. The packages it replaces are removed by deleteReplacedPackages once it is installed.
+    private JSONObject getInstalledPackageInfo(JSONObject updatePackage, boolean removePendingUpdate) {
         String packageHash = updatePackage.optString(GreatPushConstants.PACKAGE_HASH_KEY, null);
         JSONObject info = getCurrentPackageInfo();
 
         String currentPackageHash = info.optString(GreatPushConstants.CURRENT_PACKAGE_KEY, null);
         if (packageHash != null && packageHash.equals(currentPackageHash)) {
             // The current package is already the one being installed, so we should no-op.
-            return;
+            return null;
         }
 
-        if (removePendingUpdate) {
-            String currentPackageFolderPath = getCurrentPackageFolderPath();
-            if (currentPackageFolderPath != null) {
-                FileUtils.deleteDirectoryAtPath(currentPackageFolderPath);
-            }
-        } else {
-            String previousPackageHash = getPreviousPackageHash();
-            if (previousPackageHash != null && !previousPackageHash.equals(packageHash)) {
-                FileUtils.deleteDirectoryAtPath(getPackageFolderPath(previousPackageHash));
-            }
-
-            GreatPushUtils.setJSONValueForKey(info, GreatPushConstants.PREVIOUS_PACKAGE_KEY, info.optString(GreatPushConstants.CURRENT_PACKAGE_KEY, null));
+        if (!removePendingUpdate) {
+            GreatPushUtils.setJSONValueForKey(info, GreatPushConstants.PREVIOUS_PACKAGE_KEY, currentPackageHash);
         }
 
         GreatPushUtils.setJSONValueForKey(info, GreatPushConstants.CURRENT_PACKAGE_KEY, packageHash);
-        updateCurrentPackageInfo(info);
+        return info;
+    }
+
+    // Removes the folders of the packages that previousInfo names and info no longer does. Called
+    // once the status file has been switched to info, so that it never names a removed package.
+    private void deleteReplacedPackages(JSONObject previousInfo, JSONObject info) {
+        String currentPackageHash = info.optString(GreatPushConstants.CURRENT_PACKAGE_KEY, null);
+        String previousPackageHash = info.optString(GreatPushConstants.PREVIOUS_PACKAGE_KEY, null);
+        String[] replacedPackageHashes = {
+                previousInfo.optString(GreatPushConstants.CURRENT_PACKAGE_KEY, null),
+                previousInfo.optString(GreatPushConstants.PREVIOUS_PACKAGE_KEY, null)
+        };
+        for (String packageHash : replacedPackageHashes) {
+            if (packageHash != null && !packageHash.equals(currentPackageHash) && !packageHash.equals(previousPackageHash)) {
+                FileUtils.deleteDirectoryAtPath(getPackageFolderPath(packageHash));
+            }
+        }
     }
 
     public void rollbackPackage() {
-        JSONObject info = getCurrentPackageInfo();
-        String currentPackageFolderPath = getCurrentPackageFolderPath();
-        FileUtils.deleteDirectoryAtPath(currentPackageFolderPath);
-        GreatPushUtils.setJSONValueForKey(info, GreatPushConstants.CURRENT_PACKAGE_KEY, info.optString(GreatPushConstants.PREVIOUS_PACKAGE_KEY, null));
-        GreatPushUtils.setJSONValueForKey(info, GreatPushConstants.PREVIOUS_PACKAGE_KEY, null);
-        updateCurrentPackageInfo(info);
+        GreatPushStateWriter.getInstance().write(new Runnable() {
+            @Override
+            public void run() {
+                discardPreparedInstall();
+                JSONObject info = getCurrentPackageInfo();
+                String currentPackageFolderPath = getCurrentPackageFolderPath();
+                FileUtils.deleteDirectoryAtPath(currentPackageFolderPath);
+                GreatPushUtils.setJSONValueForKey(info, GreatPushConstants.CURRENT_PACKAGE_KEY, info.optString(GreatPushConstants.PREVIOUS_PACKAGE_KEY, null));
+                GreatPushUtils.setJSONValueForKey(info, GreatPushConstants.PREVIOUS_PACKAGE_KEY, null);
+                updateCurrentPackageInfo(info);
+                // Rollbacks happen during startup, the blobs of the failed package are released by the
+                // blob store check that GreatPush runs in the background right after.
+            }
+        });
+    }
+
+    // Deleting a package folder drops its links to the blob store, this removes the blobs that are
+    // no longer used by any package. It also serves as the consistency check of the store at startup.
+    public void collectBlobGarbage() {
+        PackageBlobStore blobStore = getBlobStore();
+        if (blobStore != null) {
+            blobStore.collectGarbage();
+        }
     }
 
     public void downloadAndReplaceCurrentBundle(String remoteBundleUrl, String bundleFileName) throws IOException {
         URL downloadUrl;
-        HttpURLConnection connection = null;
+        GreatPushHttpResponse response = null;
         BufferedInputStream bin = null;
         FileOutputStream fos = null;
         BufferedOutputStream bout = null;
         try {
             downloadUrl = new URL(remoteBundleUrl);
-            connection = (HttpURLConnection) (downloadUrl.openConnection());
-            bin = new BufferedInputStream(connection.getInputStream());
+            response = mHttpTransport.execute("GET", downloadUrl, new HashMap<String, String>());
+            checkDownloadResponseStatus(response, remoteBundleUrl);
+            bin = new BufferedInputStream(response.getBody());
             File downloadFile = new File(getCurrentPackageBundlePath(bundleFileName));
+            // The new bundle is not part of the package hash, so neither the hash index nor the Merkle
+            // tree hold for it any more. Without a tree the bundle is loaded unchecked.
+            String packageFolderPath = getPackageFolderPath(getCurrentPackageHash());
+            PackageHashIndex.getIndexFile(packageFolderPath).delete();
+            PackageMerkleTree.getTreeFile(packageFolderPath).delete();
             downloadFile.delete();
             fos = new FileOutputStream(downloadFile);
             bout = new BufferedOutputStream(fos, GreatPushConstants.DOWNLOAD_BUFFER_SIZE);
@@ -356,7 +1086,7 @@ public class GreatPushUpdateManager {
                 if (bout != null) bout.close();
                 if (fos != null) fos.close();
                 if (bin != null) bin.close();
-                if (connection != null) connection.disconnect();
+                if (response != null) response.close();
             } catch (IOException e) {
                 throw new GreatPushUnknownException("Error closing IO resources.", e);
             }
@@ -364,6 +1094,12 @@ public class GreatPushUpdateManager {
     }
 
     public void clearUpdates() {
-        FileUtils.deleteDirectoryAtPath(getGreatPushPath());
+        GreatPushStateWriter.getInstance().write(new Runnable() {
+            @Override
+            public void run() {
+                FileUtils.deleteDirectoryAtPath(getGreatPushPath());
+                invalidatePackageState();
+            }
+        });
     }
 }
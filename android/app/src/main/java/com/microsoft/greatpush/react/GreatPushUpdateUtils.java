@@ -16,7 +16,6 @@ import org.json.JSONObject;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.DigestInputStream;
@@ -27,12 +26,44 @@ import java.security.PublicKey;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 public class GreatPushUpdateUtils {
 
     public static final String NEW_LINE = System.getProperty("line.separator");
 
+    private static volatile int sHashingParallelism = Runtime.getRuntime().availableProcessors();
+
+    // Sets how many threads verifyFolderHash uses to hash the files of a folder.
+    static void setHashingParallelism(int hashingParallelism) {
+        sHashingParallelism = hashingParallelism;
+    }
+
+    static int getHashingParallelism() {
+        return sHashingParallelism;
+    }
+
+    private static volatile boolean sIsHashIndexEnabled = true;
+
+    // Sets whether the hash index of a package may stand in for reading its files, see PackageHashIndex.
+    static void setHashIndexEnabled(boolean isHashIndexEnabled) {
+        sIsHashIndexEnabled = isHashIndexEnabled;
+    }
+
+    // Returns null if the hash index is disabled, in which case every file is hashed.
+    static PackageHashIndex loadHashIndex(String packageFolderPath) {
+        return sIsHashIndexEnabled ? PackageHashIndex.load(packageFolderPath) : null;
+    }
+
+    // Files that the device keeps in a package folder to speed up its own checks. They are not part
+    // of the update contents, so they are neither hashed nor carried over to other packages.
+    static boolean isLocalPackageFile(String relativeFilePath) {
+        return relativeFilePath.equals(GreatPushConstants.PACKAGE_HASH_INDEX_FILE_NAME)
+                || relativeFilePath.equals(GreatPushConstants.PACKAGE_MERKLE_TREE_FILE_NAME);
+    }
+
     // Note: The hashing logic here must mirror the hashing logic in other native SDK's, as well as in the
     // CLI. Ensure that any changes here are propagated to these other locations.
     public static boolean isHashIgnored(String relativeFilePath) {
@@ -47,40 +78,14 @@ public class GreatPushUpdateUtils {
                 || relativeFilePath.endsWith("/" + GREATPUSH_METADATA);
     }
 
-    private static void addContentsOfFolderToManifest(String folderPath, String pathPrefix, ArrayList<String> manifest) {
-        File folder = new File(folderPath);
-        File[] folderFiles = folder.listFiles();
-        for (File file : folderFiles) {
-            String fileName = file.getName();
-            String fullFilePath = file.getAbsolutePath();
-            String relativePath = (pathPrefix.isEmpty() ? "" : (pathPrefix + "/")) + fileName;
-
-            if (GreatPushUpdateUtils.isHashIgnored(relativePath)) {
-                continue;
-            }
-
-            if (file.isDirectory()) {
-                addContentsOfFolderToManifest(fullFilePath, relativePath, manifest);
-            } else {
-                try {
-                    manifest.add(relativePath + ":" + computeHash(new FileInputStream(file)));
-                } catch (FileNotFoundException e) {
-                    // Should not happen.
-                    throw new GreatPushUnknownException("Unable to compute hash of update contents.", e);
-                }
-            }
-        }
-    }
-
-    private static String computeHash(InputStream dataStream) {
-        MessageDigest messageDigest = null;
+    static String computeHash(InputStream dataStream) {
+        MessageDigest messageDigest = createHashDigest();
         DigestInputStream digestInputStream = null;
         try {
-            messageDigest = MessageDigest.getInstance("SHA-256");
             digestInputStream = new DigestInputStream(dataStream, messageDigest);
             byte[] byteBuffer = new byte[1024 * 8];
             while (digestInputStream.read(byteBuffer) != -1) ;
-        } catch (NoSuchAlgorithmException | IOException e) {
+        } catch (IOException e) {
             // Should not happen.
             throw new GreatPushUnknownException("Unable to compute hash of update contents.", e);
         } finally {
@@ -92,25 +97,117 @@ public class GreatPushUpdateUtils {
             }
         }
 
+        return getHashString(messageDigest);
+    }
+
+    static MessageDigest createHashDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Should not happen.
+            throw new GreatPushUnknownException("Unable to compute hash of update contents.", e);
+        }
+    }
+
+    // Completes the digest, which also resets it so that it can be reused for the next file.
+    static String getHashString(MessageDigest messageDigest) {
         byte[] hash = messageDigest.digest();
         return String.format("%064x", new java.math.BigInteger(1, hash));
     }
 
-    public static void copyNecessaryFilesFromCurrentPackage(String diffManifestFilePath, String currentPackageFolderPath, String newPackageFolderPath) throws IOException {
-        FileUtils.copyDirectoryContents(currentPackageFolderPath, newPackageFolderPath);
+    // Completes the extracted contents of a diff update in its staging folder, so that the folder can
+    // become the new package as it is. Only the files that the update keeps unchanged are taken from
+    // the current package: files replaced by the update, deleted by it or patched by it are never
+    // copied. When a blob store is given, the files it holds are linked instead of copied.
+    //
+    // updateContentsManifest must hold the hashes of the extracted files. It ends up with the hashes
+    // of the complete package, and the diff manifest and patches are removed from the staging folder.
+    static void addUnchangedFilesFromCurrentPackage(String diffManifestFilePath, String currentPackageFolderPath, String stagingFolderPath,
+                                                    UpdateContentsManifest updateContentsManifest, PackageBlobStore blobStore) throws IOException {
         JSONObject diffManifest = GreatPushUtils.getJsonObjectFromFile(diffManifestFilePath);
         try {
+            Set<String> skippedFilePaths = new HashSet<>(updateContentsManifest.getFileHashes().keySet());
+            // The package metadata, hash index and Merkle tree are written for every package.
+            skippedFilePaths.add(GreatPushConstants.PACKAGE_FILE_NAME);
+            skippedFilePaths.add(GreatPushConstants.PACKAGE_HASH_INDEX_FILE_NAME);
+            skippedFilePaths.add(GreatPushConstants.PACKAGE_MERKLE_TREE_FILE_NAME);
             JSONArray deletedFiles = diffManifest.getJSONArray("deletedFiles");
             for (int i = 0; i < deletedFiles.length(); i++) {
-                String fileNameToDelete = deletedFiles.getString(i);
-                File fileToDelete = new File(newPackageFolderPath, fileNameToDelete);
-                if (fileToDelete.exists()) {
-                    fileToDelete.delete();
+                skippedFilePaths.add(deletedFiles.getString(i));
+            }
+
+            JSONArray patchedFiles = diffManifest.optJSONArray("patchedFiles");
+            if (patchedFiles != null) {
+                for (int i = 0; i < patchedFiles.length(); i++) {
+                    skippedFilePaths.add(patchedFiles.getJSONObject(i).getString("path"));
+                }
+            }
+
+            if (blobStore != null) {
+                blobStore.copyPackageFiles(currentPackageFolderPath, stagingFolderPath, updateContentsManifest, skippedFilePaths);
+            } else {
+                // Files that are unchanged since the current package was verified are copied without
+                // hashing them again.
+                FileUtils.copyDirectoryContents(currentPackageFolderPath, stagingFolderPath, updateContentsManifest, skippedFilePaths,
+                        loadHashIndex(currentPackageFolderPath));
+            }
+
+            if (patchedFiles != null) {
+                File updateFolder = new File(stagingFolderPath);
+                for (int i = 0; i < patchedFiles.length(); i++) {
+                    applyPatchedFile(patchedFiles.getJSONObject(i), updateFolder, currentPackageFolderPath, stagingFolderPath, updateContentsManifest);
                 }
             }
         } catch (JSONException e) {
             throw new GreatPushUnknownException("Unable to copy files from current package during diff update", e);
         }
+
+        new File(diffManifestFilePath).delete();
+        updateContentsManifest.remove(GreatPushConstants.DIFF_MANIFEST_FILE_NAME);
+    }
+
+    // A patched file entry describes a binary patch from the update folder that turns a file of the
+    // current package, identified by its hash, into the file of the new package. The patch is
+    // removed from the update folder once it has been applied.
+    private static void applyPatchedFile(JSONObject patchedFile, File updateFolder, String sourceFolderPath, String targetFolderPath,
+                                         UpdateContentsManifest updateContentsManifest) throws JSONException, IOException {
+        String relativeFilePath = patchedFile.getString("path");
+        String relativePatchPath = patchedFile.getString("patch");
+        String sourceHash = patchedFile.getString("sourceHash");
+        String targetHash = patchedFile.getString("targetHash");
+        File patchFile = new File(updateFolder, relativePatchPath);
+        File file = new File(sourceFolderPath, relativeFilePath);
+        File targetFile = new File(targetFolderPath, relativeFilePath);
+        if (!file.exists() || !patchFile.exists()) {
+            throw new GreatPushInvalidUpdateException("Update is invalid - the patch for \"" + relativeFilePath + "\" or the file it applies to is missing.");
+        }
+
+        if (!sourceHash.equals(computeHash(new FileInputStream(file)))) {
+            throw new GreatPushInvalidUpdateException("Update is invalid - the patch for \"" + relativeFilePath + "\" was made for a different version of the file.");
+        }
+
+        // The target may be a hard link shared with other packages, so the result is written to a new
+        // file that then replaces it.
+        targetFile.getParentFile().mkdirs();
+        File patchedTempFile = new File(targetFile.getPath() + ".patched");
+        try {
+            String patchedHash = BinaryPatcher.apply(file, patchFile, patchedTempFile);
+            if (!targetHash.equals(patchedHash)) {
+                throw new GreatPushInvalidUpdateException("Update is invalid - patching \"" + relativeFilePath + "\" did not produce the expected contents.");
+            }
+
+            if (!patchedTempFile.renameTo(targetFile)) {
+                throw new GreatPushUnknownException("Unable to replace " + relativeFilePath + " with its patched version.");
+            }
+        } finally {
+            patchedTempFile.delete();
+        }
+
+        updateContentsManifest.put(relativeFilePath, targetHash);
+        updateContentsManifest.remove(relativePatchPath);
+
+        patchFile.delete();
+        GreatPushUtils.log("Patched " + relativeFilePath + ".");
     }
 
     public static String findJSBundleInUpdateContents(String folderPath, String expectedFileName) {
@@ -157,8 +254,28 @@ public class GreatPushUpdateUtils {
     // 3. SHA256-hash the result
     public static void verifyFolderHash(String folderPath, String expectedHash) {
         GreatPushUtils.log("Verifying hash for folder path: " + folderPath);
-        ArrayList<String> updateContentsManifest = new ArrayList<>();
-        addContentsOfFolderToManifest(folderPath, "", updateContentsManifest);
+        PackageHashIndex hashIndex = loadHashIndex(folderPath);
+        ArrayList<String> updateContentsManifest = new FolderHasher(sHashingParallelism).hashFolder(folderPath, hashIndex);
+        verifyManifestHash(updateContentsManifest, expectedHash);
+        if (hashIndex == null) {
+            return;
+        }
+
+        try {
+            hashIndex.save(folderPath);
+        } catch (IOException e) {
+            GreatPushUtils.log("Unable to save the hash index of " + folderPath + ": " + e.getMessage());
+        }
+    }
+
+    // Same as verifyFolderHash, but uses the file hashes that were computed while the update
+    // contents were being written instead of reading the files again.
+    public static void verifyManifestHash(UpdateContentsManifest updateContentsManifest, String expectedHash) {
+        GreatPushUtils.log("Verifying hash of the update contents manifest.");
+        verifyManifestHash(updateContentsManifest.getEntries(), expectedHash);
+    }
+
+    private static void verifyManifestHash(ArrayList<String> updateContentsManifest, String expectedHash) {
         //sort manifest strings to make sure, that they are completely equal with manifest strings has been generated in cli!
         Collections.sort(updateContentsManifest);
         JSONArray updateContentsJSONArray = new JSONArray();
@@ -227,7 +344,8 @@ public class GreatPushUpdateUtils {
         final String signatureFilePath = getSignatureFilePath(folderPath);
 
         try {
-            return FileUtils.readFileToString(signatureFilePath);
+            // The file may end with a line break, which is not part of the JWT.
+            return FileUtils.readFileToString(signatureFilePath).trim();
         } catch (IOException e) {
             GreatPushUtils.log(e.getMessage());
             GreatPushUtils.log(e.getStackTrace().toString());
@@ -0,0 +1,41 @@
+package com.microsoft.greatpush.react;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.File;
+import java.io.IOException;
+
+// The calls to android.system.Os that the blob store needs, which was added in Lollipop. They are
+// kept out of PackageBlobStore so that older devices never load a class that refers to Os or
+// ErrnoException: this class must only be used once PackageBlobStore.isSupported() returned true.
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class HardLinks {
+    public static void link(File target, File link) throws IOException {
+        try {
+            Os.link(target.getAbsolutePath(), link.getAbsolutePath());
+        } catch (ErrnoException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    // Returns -1 if the file cannot be read.
+    public static long getInode(File file) {
+        try {
+            return Os.stat(file.getAbsolutePath()).st_ino;
+        } catch (ErrnoException e) {
+            return -1;
+        }
+    }
+
+    // Returns -1 if the file cannot be read.
+    public static long getLinkCount(File file) {
+        try {
+            return Os.stat(file.getAbsolutePath()).st_nlink;
+        } catch (ErrnoException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.microsoft.greatpush.react;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Appends every byte read from the network to the download file and periodically records the
+// number of bytes that have reached the file in the download journal.
+class JournaledInputStream extends FilterInputStream {
+    private final OutputStream mOutputStream;
+    private final DownloadJournal mJournal;
+    private long mWrittenBytes;
+    private long mLastCommittedBytes;
+
+    public JournaledInputStream(InputStream in, OutputStream outputStream, DownloadJournal journal, long writtenBytes) {
+        super(in);
+        mOutputStream = outputStream;
+        mJournal = journal;
+        mWrittenBytes = writtenBytes;
+        mLastCommittedBytes = writtenBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int data = super.read();
+        if (data >= 0) {
+            mOutputStream.write(data);
+            onBytesWritten(1);
+        }
+        return data;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int numBytesRead = super.read(buffer, offset, length);
+        if (numBytesRead > 0) {
+            mOutputStream.write(buffer, offset, numBytesRead);
+            onBytesWritten(numBytesRead);
+        }
+        return numBytesRead;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+        // Skipped bytes would leave a hole in the download file, so read them instead.
+        byte[] buffer = new byte[(int) Math.min(byteCount, GreatPushConstants.DOWNLOAD_BUFFER_SIZE)];
+        int numBytesRead = read(buffer, 0, buffer.length);
+        return numBytesRead < 0 ? 0 : numBytesRead;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    // Flushes the download file and records everything written so far in the journal.
+    public void commit() throws IOException {
+        mOutputStream.flush();
+        mJournal.commit(mWrittenBytes);
+        mLastCommittedBytes = mWrittenBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            commit();
+        } finally {
+            try {
+                mOutputStream.close();
+            } finally {
+                super.close();
+            }
+        }
+    }
+
+    private void onBytesWritten(long numBytesWritten) throws IOException {
+        mWrittenBytes += numBytesWritten;
+        if (mWrittenBytes - mLastCommittedBytes >= GreatPushConstants.DOWNLOAD_JOURNAL_COMMIT_INTERVAL) {
+            commit();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.microsoft.greatpush.react;
+
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Keeps a single copy of every package file under GreatPush/blobs/<sha256>. Package folders hold
+// hard links to these blobs, so a file shared by several packages is only stored once. The link
+// count of a blob is its reference count: a blob with no other link is not used by any package,
+// and deleting a package folder releases its references without any bookkeeping.
+class PackageBlobStore {
+    // Blobs are only ever created by linking complete files, but adding and collecting them must
+    // not interleave, whichever instance the caller is using.
+    private static final Object sLock = new Object();
+
+    private final String mBlobsFolderPath;
+
+    public PackageBlobStore(String blobsFolderPath) {
+        mBlobsFolderPath = blobsFolderPath;
+    }
+
+    // Hard links can only be created through android.system.Os, which was added in Lollipop. Must
+    // be checked before creating a store, since the store calls Os through HardLinks.
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    // Turns the files of a package that has just been written into links to their blobs, adding
+    // the files whose contents are not in the store yet.
+    public void addPackageFiles(String packageFolderPath, UpdateContentsManifest updateContentsManifest) {
+        synchronized (sLock) {
+            new File(mBlobsFolderPath).mkdirs();
+            int addedBlobs = 0;
+            int sharedBlobs = 0;
+            for (Map.Entry<String, String> fileHash : updateContentsManifest.getFileHashes().entrySet()) {
+                if (fileHash.getKey().equals(GreatPushConstants.PACKAGE_FILE_NAME)) {
+                    // The package metadata is rewritten in place, so it must never be shared.
+                    continue;
+                }
+
+                File file = new File(packageFolderPath, fileHash.getKey());
+                File blob = new File(mBlobsFolderPath, fileHash.getValue());
+                try {
+                    if (!blob.exists()) {
+                        HardLinks.link(file, blob);
+                        addedBlobs++;
+                    } else if (HardLinks.getInode(file) != HardLinks.getInode(blob)) {
+                        replaceWithLink(blob, file);
+                        sharedBlobs++;
+                    }
+                } catch (IOException e) {
+                    // The file still works as a standalone copy, it just isn't shared.
+                    GreatPushUtils.log("Unable to add " + fileHash.getKey() + " to the blob store: " + e.getMessage());
+                }
+            }
+
+            GreatPushUtils.log("Added " + addedBlobs + " blobs to the blob store, linked " + sharedBlobs + " files to existing blobs.");
+        }
+    }
+
+    // Adds the files of an installed package to a new package folder, leaving out the files whose
+    // relative path is in skippedFilePaths. Files that are already in the store are linked instead
+    // of copied, and their hashes are taken from the blob names.
+    public void copyPackageFiles(String sourceFolderPath, String destinationFolderPath, UpdateContentsManifest updateContentsManifest,
+                                 Set<String> skippedFilePaths) throws IOException {
+        synchronized (sLock) {
+            Map<Long, String> blobHashes = getBlobHashesByInode();
+            copyPackageFiles(new File(sourceFolderPath), new File(destinationFolderPath), "", blobHashes,
+                    updateContentsManifest, GreatPushUpdateUtils.createHashDigest(), skippedFilePaths);
+        }
+    }
+
+    private void copyPackageFiles(File sourceFolder, File destinationFolder, String pathPrefix, Map<Long, String> blobHashes,
+                                  UpdateContentsManifest updateContentsManifest, MessageDigest messageDigest,
+                                  Set<String> skippedFilePaths) throws IOException {
+        destinationFolder.mkdirs();
+        for (File sourceFile : sourceFolder.listFiles()) {
+            String relativePath = (pathPrefix.isEmpty() ? "" : (pathPrefix + "/")) + sourceFile.getName();
+            File destinationFile = new File(destinationFolder, sourceFile.getName());
+            if (sourceFile.isDirectory()) {
+                copyPackageFiles(sourceFile, destinationFile, relativePath, blobHashes, updateContentsManifest, messageDigest, skippedFilePaths);
+                continue;
+            }
+
+            if (skippedFilePaths.contains(relativePath)) {
+                continue;
+            }
+
+            String hash = blobHashes.get(HardLinks.getInode(sourceFile));
+            if (hash != null) {
+                try {
+                    destinationFile.delete();
+                    HardLinks.link(sourceFile, destinationFile);
+                    updateContentsManifest.put(relativePath, hash);
+                    continue;
+                } catch (IOException e) {
+                    GreatPushUtils.log("Unable to link " + relativePath + ", copying it instead: " + e.getMessage());
+                }
+            }
+
+            FileUtils.copyFile(sourceFile, destinationFile, messageDigest);
+            updateContentsManifest.put(relativePath, GreatPushUpdateUtils.getHashString(messageDigest));
+        }
+    }
+
+    // Removes the blobs that are no longer linked from any package folder, along with anything
+    // else that does not belong in the store, e.g. files left behind by a crash.
+    public void collectGarbage() {
+        synchronized (sLock) {
+            File[] blobs = new File(mBlobsFolderPath).listFiles();
+            if (blobs == null) {
+                return;
+            }
+
+            int removedBlobs = 0;
+            for (File blob : blobs) {
+                if (!isBlobName(blob.getName()) || HardLinks.getLinkCount(blob) == 1) {
+                    FileUtils.deleteFileOrFolderSilently(blob);
+                    removedBlobs++;
+                }
+            }
+
+            GreatPushUtils.log("Removed " + removedBlobs + " of " + blobs.length + " blobs from the blob store.");
+        }
+    }
+
+    private Map<Long, String> getBlobHashesByInode() {
+        Map<Long, String> blobHashes = new HashMap<>();
+        File[] blobs = new File(mBlobsFolderPath).listFiles();
+        if (blobs != null) {
+            for (File blob : blobs) {
+                long inode = HardLinks.getInode(blob);
+                if (inode != -1 && isBlobName(blob.getName())) {
+                    blobHashes.put(inode, blob.getName());
+                }
+            }
+        }
+
+        return blobHashes;
+    }
+
+    private static void replaceWithLink(File blob, File file) throws IOException {
+        // Link under a temporary name first, so that the file is never missing.
+        File link = new File(file.getPath() + ".link");
+        link.delete();
+        HardLinks.link(blob, link);
+        if (!link.renameTo(file)) {
+            link.delete();
+            GreatPushUtils.log("Unable to replace " + file.getName() + " with a link to its blob.");
+        }
+    }
+
+    private static boolean isBlobName(String fileName) {
+        if (fileName.length() != 64) {
+            return false;
+        }
+
+        for (int i = 0; i < fileName.length(); i++) {
+            if (Character.digit(fileName.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,97 @@
+package com.microsoft.greatpush.react;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+// A download of a package that several callers can wait for. The first caller runs it, and callers
+// that ask for the same package while it runs, or waits to run, attach to it: they receive its
+// progress and share its result, instead of downloading the package a second time.
+class PackageDownload implements DownloadProgressCallback {
+    interface CompletionListener {
+        // Called on the thread that ran the download, with the error it failed with, if any.
+        void onComplete(Throwable failure);
+    }
+
+    private final DownloadCancellation mCancellation;
+    private final List<DownloadProgressCallback> mProgressCallbacks = new CopyOnWriteArrayList<>();
+    private final List<CompletionListener> mCompletionListeners = new ArrayList<>();
+    private final CountDownLatch mCompletion = new CountDownLatch(1);
+    private volatile DownloadProgress mLatestProgress;
+    private volatile Throwable mFailure;
+    private boolean mIsCompleted;
+
+    public PackageDownload(String packageHash, DownloadProgressCallback progressCallback) {
+        mCancellation = new DownloadCancellation(packageHash);
+        mProgressCallbacks.add(progressCallback);
+    }
+
+    public DownloadCancellation getCancellation() {
+        return mCancellation;
+    }
+
+    // Also reports the progress made so far, so that a caller that attaches late starts from it.
+    public void attach(DownloadProgressCallback progressCallback) {
+        mProgressCallbacks.add(progressCallback);
+        DownloadProgress latestProgress = mLatestProgress;
+        if (latestProgress != null) {
+            progressCallback.call(latestProgress);
+        }
+    }
+
+    // Calls the listener right away, on this thread, if the download has already completed.
+    public void addCompletionListener(CompletionListener completionListener) {
+        synchronized (mCompletionListeners) {
+            if (!mIsCompleted) {
+                mCompletionListeners.add(completionListener);
+                return;
+            }
+        }
+
+        completionListener.onComplete(mFailure);
+    }
+
+    @Override
+    public void call(DownloadProgress downloadProgress) {
+        mLatestProgress = downloadProgress;
+        for (DownloadProgressCallback progressCallback : mProgressCallbacks) {
+            progressCallback.call(downloadProgress);
+        }
+    }
+
+    // Called by the caller that ran the download, with the error it failed with, if any.
+    public void complete(Throwable failure) {
+        List<CompletionListener> completionListeners;
+        synchronized (mCompletionListeners) {
+            mFailure = failure;
+            mIsCompleted = true;
+            completionListeners = new ArrayList<>(mCompletionListeners);
+            mCompletionListeners.clear();
+        }
+
+        mCompletion.countDown();
+        for (CompletionListener completionListener : completionListeners) {
+            completionListener.onComplete(failure);
+        }
+    }
+
+    // Waits for the download to complete, and throws the error it failed with.
+    public void await() throws IOException {
+        try {
+            mCompletion.await();
+        } catch (InterruptedException e) {
+            throw new GreatPushUnknownException("Interrupted while waiting for the download of the package.", e);
+        }
+
+        Throwable failure = mFailure;
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.microsoft.greatpush.react;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// The hashes of the files of a package as they were when the package was last verified, along with
+// their size and modification time. A file whose size and modification time are unchanged is not
+// read again to verify the package, so re-verifying a package only costs as much as the files that
+// changed since. Like the rest of the package, the index lives in the app's private storage.
+//
+// This trusts the file system: a file that is truncated, replaced or rewritten gets a new size or
+// modification time and is hashed again, but a change that keeps both, such as bits flipped by
+// failing storage or a write that restores the modification time, goes unnoticed. Both the
+// verification of a package on install and the copy of unchanged files for a diff update rely on
+// it; GreatPushBuilder.setHashIndexEnabled(false) has them read every file instead.
+class PackageHashIndex {
+    private static final int SIZE_INDEX = 0;
+    private static final int LAST_MODIFIED_INDEX = 1;
+    private static final int HASH_INDEX = 2;
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    public static File getIndexFile(String packageFolderPath) {
+        return new File(packageFolderPath, GreatPushConstants.PACKAGE_HASH_INDEX_FILE_NAME);
+    }
+
+    // Returns an empty index if the package does not have one, or it cannot be read.
+    public static PackageHashIndex load(String packageFolderPath) {
+        PackageHashIndex index = new PackageHashIndex();
+        File indexFile = getIndexFile(packageFolderPath);
+        if (!indexFile.exists()) {
+            return index;
+        }
+
+        try {
+            JSONObject json = GreatPushUtils.getJsonObjectFromFile(indexFile.getAbsolutePath());
+            Iterator<String> relativeFilePaths = json.keys();
+            while (relativeFilePaths.hasNext()) {
+                String relativeFilePath = relativeFilePaths.next();
+                JSONArray entry = json.getJSONArray(relativeFilePath);
+                index.mEntries.put(relativeFilePath, new Entry(entry.getLong(SIZE_INDEX), entry.getLong(LAST_MODIFIED_INDEX), entry.getString(HASH_INDEX)));
+            }
+        } catch (IOException | JSONException | GreatPushMalformedDataException e) {
+            // Without the index every file is hashed again, which is only slower.
+            GreatPushUtils.log("Unable to read the hash index of " + packageFolderPath + ", all files will be hashed.");
+            index.mEntries.clear();
+        }
+
+        return index;
+    }
+
+    // Returns the hash of the file if it has not changed since it was added to the index.
+    public String getHash(String relativeFilePath, File file) {
+        Entry entry = mEntries.get(relativeFilePath);
+        if (entry == null || entry.mSize != file.length() || entry.mLastModified != file.lastModified()) {
+            return null;
+        }
+
+        return entry.mHash;
+    }
+
+    public void put(String relativeFilePath, long size, long lastModified, String hash) {
+        mEntries.put(relativeFilePath, new Entry(size, lastModified, hash));
+    }
+
+    public void put(String relativeFilePath, File file, String hash) {
+        put(relativeFilePath, file.length(), file.lastModified(), hash);
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    // Replaces the index of the package, writing it under a temporary name first so that a crash
+    // never leaves a partial index behind.
+    public void save(String packageFolderPath) throws IOException {
+        JSONObject json = new JSONObject();
+        try {
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                JSONArray jsonEntry = new JSONArray();
+                jsonEntry.put(entry.getValue().mSize);
+                jsonEntry.put(entry.getValue().mLastModified);
+                jsonEntry.put(entry.getValue().mHash);
+                json.put(entry.getKey(), jsonEntry);
+            }
+        } catch (JSONException e) {
+            throw new GreatPushUnknownException("Unable to write the hash index of " + packageFolderPath, e);
+        }
+
+        File indexFile = getIndexFile(packageFolderPath);
+        File tempIndexFile = new File(indexFile.getPath() + ".tmp");
+        GreatPushUtils.writeJsonToFile(json, tempIndexFile.getAbsolutePath());
+        if (!tempIndexFile.renameTo(indexFile)) {
+            tempIndexFile.delete();
+            throw new IOException("Unable to replace the hash index of " + packageFolderPath);
+        }
+    }
+
+    // Builds the index of a package folder from the hashes that were computed while writing it.
+    public static PackageHashIndex fromManifest(String packageFolderPath, UpdateContentsManifest updateContentsManifest) {
+        PackageHashIndex index = new PackageHashIndex();
+        for (Map.Entry<String, String> fileHash : updateContentsManifest.getFileHashes().entrySet()) {
+            File file = new File(packageFolderPath, fileHash.getKey());
+            if (file.isFile()) {
+                index.put(fileHash.getKey(), file, fileHash.getValue());
+            }
+        }
+
+        return index;
+    }
+
+    private static class Entry {
+        final long mSize;
+        final long mLastModified;
+        final String mHash;
+
+        Entry(long size, long lastModified, String hash) {
+            mSize = size;
+            mLastModified = lastModified;
+            mHash = hash;
+        }
+    }
+}
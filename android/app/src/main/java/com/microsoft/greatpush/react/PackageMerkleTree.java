@@ -0,0 +1,225 @@
+package com.microsoft.greatpush.react;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// A Merkle tree over the files of a package, stored beside its app.json. The hash of a directory
+// is the SHA-256 of the sorted "<name>:<hash>\n" lines of its children, where subdirectory names
+// end with "/". A directory hash only depends on the contents of that directory, so any subtree
+// can be checked against the tree without reading the rest of the package.
+//
+// The packageHash stays the root of trust: the file hashes of a loaded tree are first checked
+// against it with the same flat manifest hash as the CLI, and the directory hashes are derived
+// from those file hashes.
+class PackageMerkleTree {
+    private static final String PACKAGE_HASH_KEY = "packageHash";
+    private static final String FILES_KEY = "files";
+    private static final String DIRECTORIES_KEY = "directories";
+
+    private final String mPackageHash;
+    private final Map<String, String> mFileHashes;
+    private final Map<String, String> mDirectoryHashes;
+
+    private PackageMerkleTree(String packageHash, Map<String, String> fileHashes) {
+        mPackageHash = packageHash;
+        mFileHashes = fileHashes;
+        mDirectoryHashes = computeDirectoryHashes(fileHashes);
+    }
+
+    // Builds the tree from the hashes recorded while the package was written, leaving out the files
+    // that are not part of the package hash.
+    public static PackageMerkleTree fromManifest(String packageHash, UpdateContentsManifest updateContentsManifest) {
+        Map<String, String> fileHashes = new HashMap<>();
+        for (Map.Entry<String, String> fileHash : updateContentsManifest.getFileHashes().entrySet()) {
+            String relativeFilePath = fileHash.getKey();
+            if (!GreatPushUpdateUtils.isHashIgnored(relativeFilePath) && !relativeFilePath.equals(GreatPushConstants.PACKAGE_FILE_NAME)
+                    && !GreatPushUpdateUtils.isLocalPackageFile(relativeFilePath)) {
+                fileHashes.put(relativeFilePath, fileHash.getValue());
+            }
+        }
+
+        return new PackageMerkleTree(packageHash, fileHashes);
+    }
+
+    public static File getTreeFile(String packageFolderPath) {
+        return new File(packageFolderPath, GreatPushConstants.PACKAGE_MERKLE_TREE_FILE_NAME);
+    }
+
+    // Returns null if the package does not have a tree, e.g. because it is a single bundle file or
+    // was installed by an older version.
+    public static PackageMerkleTree load(String packageFolderPath) throws IOException {
+        File treeFile = getTreeFile(packageFolderPath);
+        if (!treeFile.exists()) {
+            return null;
+        }
+
+        JSONObject json = GreatPushUtils.getJsonObjectFromFile(treeFile.getAbsolutePath());
+        try {
+            Map<String, String> fileHashes = new HashMap<>();
+            JSONObject files = json.getJSONObject(FILES_KEY);
+            Iterator<String> relativeFilePaths = files.keys();
+            while (relativeFilePaths.hasNext()) {
+                String relativeFilePath = relativeFilePaths.next();
+                fileHashes.put(relativeFilePath, files.getString(relativeFilePath));
+            }
+
+            // The directory hashes are derived again rather than trusted from the file.
+            return new PackageMerkleTree(json.getString(PACKAGE_HASH_KEY), fileHashes);
+        } catch (JSONException e) {
+            throw new GreatPushMalformedDataException(treeFile.getAbsolutePath(), e);
+        }
+    }
+
+    public void save(String packageFolderPath) throws IOException {
+        JSONObject json = new JSONObject();
+        try {
+            json.put(PACKAGE_HASH_KEY, mPackageHash);
+            json.put(FILES_KEY, new JSONObject(mFileHashes));
+            json.put(DIRECTORIES_KEY, new JSONObject(mDirectoryHashes));
+        } catch (JSONException e) {
+            throw new GreatPushUnknownException("Unable to write the Merkle tree of " + packageFolderPath, e);
+        }
+
+        GreatPushUtils.writeJsonToFile(json, getTreeFile(packageFolderPath).getAbsolutePath());
+    }
+
+    // Checks the file hashes of the tree against the package hash, without reading any package file.
+    public void verifyPackageHash(String expectedPackageHash) {
+        if (!expectedPackageHash.equals(mPackageHash)) {
+            throw new GreatPushInvalidUpdateException("The Merkle tree belongs to a different package.");
+        }
+
+        UpdateContentsManifest updateContentsManifest = new UpdateContentsManifest();
+        for (Map.Entry<String, String> fileHash : mFileHashes.entrySet()) {
+            updateContentsManifest.put(fileHash.getKey(), fileHash.getValue());
+        }
+
+        GreatPushUpdateUtils.verifyManifestHash(updateContentsManifest, expectedPackageHash);
+    }
+
+    // Hashes the files under relativeDirectoryPath ("" for the whole package) and compares the
+    // resulting directory hash with the tree.
+    public void verifyDirectory(String packageFolderPath, String relativeDirectoryPath) {
+        String expectedHash = mDirectoryHashes.get(relativeDirectoryPath);
+        if (expectedHash == null) {
+            throw new GreatPushInvalidUpdateException("The directory \"" + relativeDirectoryPath + "\" is not part of the package.");
+        }
+
+        Map<String, String> fileHashes = new HashMap<>();
+        ArrayList<String> entries = new FolderHasher(GreatPushUpdateUtils.getHashingParallelism())
+                .hashFolder(packageFolderPath, relativeDirectoryPath, null);
+        for (String entry : entries) {
+            int separatorIndex = entry.lastIndexOf(':');
+            fileHashes.put(entry.substring(0, separatorIndex), entry.substring(separatorIndex + 1));
+        }
+
+        if (!expectedHash.equals(computeDirectoryHashes(fileHashes).get(relativeDirectoryPath))) {
+            throw new GreatPushInvalidUpdateException("The contents of \"" + relativeDirectoryPath + "\" failed the data integrity check.");
+        }
+    }
+
+    public void verifyFile(String packageFolderPath, String relativeFilePath) throws IOException {
+        String expectedHash = mFileHashes.get(relativeFilePath);
+        if (expectedHash == null) {
+            throw new GreatPushInvalidUpdateException("The file \"" + relativeFilePath + "\" is not part of the package.");
+        }
+
+        String actualHash = GreatPushUpdateUtils.computeHash(new FileInputStream(new File(packageFolderPath, relativeFilePath)));
+        if (!expectedHash.equals(actualHash)) {
+            throw new GreatPushInvalidUpdateException("The file \"" + relativeFilePath + "\" failed the data integrity check.");
+        }
+    }
+
+    public boolean isDirectory(String relativePath) {
+        return mDirectoryHashes.containsKey(relativePath);
+    }
+
+    private static Map<String, String> computeDirectoryHashes(Map<String, String> fileHashes) {
+        // The children of every directory, keyed by name. Hashes of subdirectories are filled in
+        // once they have been computed.
+        Map<String, TreeMap<String, String>> children = new HashMap<>();
+        children.put("", new TreeMap<String, String>());
+        for (Map.Entry<String, String> fileHash : fileHashes.entrySet()) {
+            String path = fileHash.getKey();
+            String parentPath = getParentPath(path);
+            getChildren(children, parentPath).put(getName(path), fileHash.getValue());
+            while (!parentPath.isEmpty()) {
+                String grandparentPath = getParentPath(parentPath);
+                getChildren(children, grandparentPath).put(getName(parentPath) + "/", null);
+                parentPath = grandparentPath;
+            }
+        }
+
+        // Deeper directories first, so that every subdirectory is done before its parent.
+        List<String> directoryPaths = new ArrayList<>(children.keySet());
+        Collections.sort(directoryPaths, new Comparator<String>() {
+            @Override
+            public int compare(String path1, String path2) {
+                return getDepth(path2) - getDepth(path1);
+            }
+        });
+
+        Map<String, String> directoryHashes = new HashMap<>();
+        MessageDigest messageDigest = GreatPushUpdateUtils.createHashDigest();
+        for (String directoryPath : directoryPaths) {
+            for (Map.Entry<String, String> child : children.get(directoryPath).entrySet()) {
+                messageDigest.update((child.getKey() + ":" + child.getValue() + "\n").getBytes());
+            }
+
+            String directoryHash = GreatPushUpdateUtils.getHashString(messageDigest);
+            directoryHashes.put(directoryPath, directoryHash);
+            if (!directoryPath.isEmpty()) {
+                children.get(getParentPath(directoryPath)).put(getName(directoryPath) + "/", directoryHash);
+            }
+        }
+
+        return directoryHashes;
+    }
+
+    private static TreeMap<String, String> getChildren(Map<String, TreeMap<String, String>> children, String directoryPath) {
+        TreeMap<String, String> directoryChildren = children.get(directoryPath);
+        if (directoryChildren == null) {
+            directoryChildren = new TreeMap<>();
+            children.put(directoryPath, directoryChildren);
+        }
+
+        return directoryChildren;
+    }
+
+    private static String getParentPath(String path) {
+        int separatorIndex = path.lastIndexOf('/');
+        return separatorIndex < 0 ? "" : path.substring(0, separatorIndex);
+    }
+
+    private static String getName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private static int getDepth(String path) {
+        if (path.isEmpty()) {
+            return 0;
+        }
+
+        int depth = 1;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                depth++;
+            }
+        }
+
+        return depth;
+    }
+}
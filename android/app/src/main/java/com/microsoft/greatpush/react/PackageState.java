@@ -0,0 +1,70 @@
+package com.microsoft.greatpush.react;
+
+import org.json.JSONObject;
+
+import java.util.Iterator;
+
+// An immutable snapshot of greatpush.json and the metadata of the current and previous packages,
+// so that the bundle path and package metadata can be looked up without reading them from disk
+// every time. The JSON objects are never handed out directly: callers get copies they may modify.
+class PackageState {
+    private final JSONObject mPackageInfo;
+    private final String mCurrentPackageHash;
+    private final String mPreviousPackageHash;
+    private final JSONObject mCurrentPackage;
+    private final JSONObject mPreviousPackage;
+
+    public PackageState(JSONObject packageInfo, JSONObject currentPackage, JSONObject previousPackage) {
+        mPackageInfo = packageInfo;
+        mCurrentPackageHash = packageInfo.optString(GreatPushConstants.CURRENT_PACKAGE_KEY, null);
+        mPreviousPackageHash = packageInfo.optString(GreatPushConstants.PREVIOUS_PACKAGE_KEY, null);
+        mCurrentPackage = currentPackage;
+        mPreviousPackage = previousPackage;
+    }
+
+    public JSONObject getPackageInfo() {
+        return copyOf(mPackageInfo);
+    }
+
+    public String getCurrentPackageHash() {
+        return mCurrentPackageHash;
+    }
+
+    public String getPreviousPackageHash() {
+        return mPreviousPackageHash;
+    }
+
+    public JSONObject getCurrentPackage() {
+        return copyOf(mCurrentPackage);
+    }
+
+    public JSONObject getPreviousPackage() {
+        return copyOf(mPreviousPackage);
+    }
+
+    // Reads a single value of the current package without copying it.
+    public String getCurrentPackageString(String key) {
+        return mCurrentPackage != null ? mCurrentPackage.optString(key, null) : null;
+    }
+
+    public boolean hasCurrentPackage() {
+        return mCurrentPackage != null;
+    }
+
+    // Package metadata only holds plain values at its top level, so a shallow copy is enough to
+    // keep callers from modifying the snapshot.
+    private static JSONObject copyOf(JSONObject json) {
+        if (json == null) {
+            return null;
+        }
+
+        JSONObject copy = new JSONObject();
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            GreatPushUtils.setJSONValueForKey(copy, key, json.opt(key));
+        }
+
+        return copy;
+    }
+}
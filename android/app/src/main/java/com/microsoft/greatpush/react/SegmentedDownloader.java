@@ -0,0 +1,225 @@
+package com.microsoft.greatpush.react;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Downloads a file over several connections at once, each fetching its own byte range and writing
+// it at the matching position of a preallocated file. The segments run on an executor shared by
+// all downloads, so segments beyond its size wait for a free thread.
+class SegmentedDownloader {
+    private final GreatPushHttpTransport mHttpTransport;
+    private final URL mDownloadUrl;
+    private final int mSegmentCount;
+    private final long mMinimumSegmentSize;
+    private final DownloadProgress mDownloadProgress;
+    private final DownloadProgressCallback mProgressCallback;
+    private final DownloadCancellation mCancellation;
+    private final Executor mExecutor;
+    // Stops the other segments once one of them has failed, with the error of that segment.
+    private final DownloadCancellation mSegmentCancellation;
+    private final AtomicReference<Exception> mSegmentFailure = new AtomicReference<>();
+
+    private long mTotalBytes;
+    private String mValidator;
+
+    public SegmentedDownloader(GreatPushHttpTransport httpTransport, URL downloadUrl, int segmentCount, long minimumSegmentSize,
+                               DownloadProgress downloadProgress, DownloadProgressCallback progressCallback,
+                               DownloadCancellation cancellation, Executor executor) {
+        mHttpTransport = httpTransport;
+        mDownloadUrl = downloadUrl;
+        mSegmentCount = segmentCount;
+        mMinimumSegmentSize = minimumSegmentSize;
+        mDownloadProgress = downloadProgress;
+        mProgressCallback = progressCallback;
+        mCancellation = cancellation;
+        mExecutor = executor;
+        mSegmentCancellation = new DownloadCancellation(downloadUrl.toString());
+    }
+
+    // Returns false without writing anything if the server does not support range requests or the
+    // file is too small to be worth splitting, in which case the caller should use a single stream.
+    // If a segment fails, the others are stopped before the error is thrown, so that nothing writes
+    // to the file anymore once this returns.
+    public boolean download(String destinationPath) throws IOException {
+        int segmentCount = probe();
+        if (segmentCount < 2) {
+            return false;
+        }
+
+        GreatPushUtils.log("Downloading " + mTotalBytes + " bytes in " + segmentCount + " segments.");
+        mDownloadProgress.start(mTotalBytes, 0);
+        RandomAccessFile destinationFile = new RandomAccessFile(destinationPath, "rw");
+        List<Future<Void>> segments = new ArrayList<>();
+        try {
+            destinationFile.setLength(mTotalBytes);
+            final FileChannel channel = destinationFile.getChannel();
+
+            long segmentSize = mTotalBytes / segmentCount;
+            for (int i = 0; i < segmentCount; i++) {
+                final long firstByte = i * segmentSize;
+                final long lastByte = (i == segmentCount - 1) ? mTotalBytes - 1 : firstByte + segmentSize - 1;
+                FutureTask<Void> segment = new FutureTask<>(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        try {
+                            downloadSegment(channel, firstByte, lastByte);
+                        } catch (IOException | RuntimeException e) {
+                            if (mSegmentFailure.compareAndSet(null, e)) {
+                                mSegmentCancellation.cancel();
+                            }
+
+                            throw e;
+                        }
+
+                        return null;
+                    }
+                });
+                segments.add(segment);
+                mExecutor.execute(segment);
+            }
+
+            for (Future<Void> segment : segments) {
+                try {
+                    segment.get();
+                } catch (ExecutionException e) {
+                    // The segments stopped by a failed one fail as well, but only the first error is reported.
+                    Throwable failure = mSegmentFailure.get() != null ? mSegmentFailure.get() : e.getCause();
+                    if (failure instanceof IOException) {
+                        throw (IOException) failure;
+                    }
+
+                    throw new GreatPushUnknownException("Error downloading package segment.", failure);
+                } catch (InterruptedException e) {
+                    throw new GreatPushUnknownException("Interrupted while downloading package segments.", e);
+                }
+            }
+        } finally {
+            stopSegments(segments);
+            destinationFile.close();
+        }
+
+        long receivedBytes = mDownloadProgress.getReceivedBytes();
+        if (receivedBytes != mTotalBytes) {
+            throw new GreatPushUnknownException("Received " + receivedBytes + " bytes, expected " + mTotalBytes);
+        }
+
+        return true;
+    }
+
+    // Waits for the segments that are still running, after cancelling their requests. Segments that
+    // have not started yet are dropped.
+    private void stopSegments(List<Future<Void>> segments) {
+        mSegmentCancellation.cancel();
+        for (Future<Void> segment : segments) {
+            if (segment.cancel(false)) {
+                continue;
+            }
+
+            try {
+                segment.get();
+            } catch (ExecutionException e) {
+                // Only the first error is reported.
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private int probe() throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Accept-Encoding", "identity");
+        GreatPushHttpResponse response = mHttpTransport.execute("HEAD", mDownloadUrl, headers);
+        mCancellation.register(response);
+        try {
+            if (response.getStatusCode() != HttpURLConnection.HTTP_OK) {
+                return 0;
+            }
+
+            String acceptRanges = response.getHeader("Accept-Ranges");
+            mTotalBytes = response.getContentLength();
+            mValidator = response.getHeader("ETag");
+            if (mValidator == null || mValidator.startsWith("W/")) {
+                mValidator = response.getHeader("Last-Modified");
+            }
+
+            if (acceptRanges == null || !acceptRanges.contains("bytes") || mTotalBytes <= 0) {
+                return 0;
+            }
+
+            return (int) Math.min(mSegmentCount, mTotalBytes / Math.max(mMinimumSegmentSize, 1));
+        } finally {
+            mCancellation.unregister(response);
+            response.close();
+        }
+    }
+
+    private void downloadSegment(FileChannel channel, long firstByte, long lastByte) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Accept-Encoding", "identity");
+        headers.put("Range", "bytes=" + firstByte + "-" + lastByte);
+        if (mValidator != null) {
+            // Make sure that every segment comes from the same version of the file.
+            headers.put("If-Range", mValidator);
+        }
+
+        GreatPushHttpResponse response = mHttpTransport.execute("GET", mDownloadUrl, headers);
+        mCancellation.register(response);
+        try {
+            mSegmentCancellation.register(response);
+        } catch (IOException e) {
+            mCancellation.unregister(response);
+            throw e;
+        }
+
+        InputStream inputStream = null;
+        try {
+            String contentRange = response.getHeader("Content-Range");
+            if (response.getStatusCode() != HttpURLConnection.HTTP_PARTIAL
+                    || contentRange == null || !contentRange.startsWith("bytes " + firstByte + "-")) {
+                throw new IOException("The server did not return the requested range " + firstByte + "-" + lastByte + ".");
+            }
+
+            inputStream = response.getBody();
+            byte[] data = new byte[GreatPushConstants.DOWNLOAD_BUFFER_SIZE];
+            long position = firstByte;
+            int numBytesRead;
+            while (position <= lastByte && (numBytesRead = inputStream.read(data, 0, (int) Math.min(data.length, lastByte - position + 1))) >= 0) {
+                mCancellation.throwIfCancelled();
+                mSegmentCancellation.throwIfCancelled();
+                ByteBuffer buffer = ByteBuffer.wrap(data, 0, numBytesRead);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+
+                if (mDownloadProgress.addReceivedBytes(numBytesRead)) {
+                    mProgressCallback.call(mDownloadProgress);
+                }
+            }
+
+            if (position != lastByte + 1) {
+                throw new IOException("Received " + (position - firstByte) + " bytes for range " + firstByte + "-" + lastByte + ".");
+            }
+        } finally {
+            if (inputStream != null) inputStream.close();
+            mCancellation.unregister(response);
+            mSegmentCancellation.unregister(response);
+            response.close();
+        }
+    }
+}
@@ -1,38 +1,33 @@
 package com.microsoft.greatpush.react;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+
 public class SettingsManager {
 
-    private SharedPreferences mSettings;
+    // Every change is written durably: losing the pending update would keep a crashing update
+    // from being rolled back.
+    private GreatPushStateStore mSettings;
+    private FailedUpdateRegistry mFailedUpdates;
+    private File mBootRecordFile;
 
     public SettingsManager(Context applicationContext) {
-        mSettings = applicationContext.getSharedPreferences(GreatPushConstants.GREAT_PUSH_PREFERENCES, 0);
+        mSettings = GreatPushStateStore.getInstance(applicationContext);
+        mFailedUpdates = new FailedUpdateRegistry(mSettings);
+        mBootRecordFile = BootRecord.getRecordFile(applicationContext.getFilesDir().getAbsolutePath());
     }
 
-    public JSONArray getFailedUpdates() {
-        String failedUpdatesString = mSettings.getString(GreatPushConstants.FAILED_UPDATES_KEY, null);
-        if (failedUpdatesString == null) {
-            return new JSONArray();
-        }
-
-        try {
-            return new JSONArray(failedUpdatesString);
-        } catch (JSONException e) {
-            // Unrecognized data format, clear and replace with expected format.
-            JSONArray emptyArray = new JSONArray();
-            mSettings.edit().putString(GreatPushConstants.FAILED_UPDATES_KEY, emptyArray.toString()).commit();
-            return emptyArray;
-        }
+    // Returns the metadata of the update that failed last, or null if no update failed.
+    public JSONObject getLastFailedUpdate() {
+        return mFailedUpdates.getLastFailedUpdate();
     }
 
     public JSONObject getPendingUpdate() {
-        String pendingUpdateString = mSettings.getString(GreatPushConstants.PENDING_UPDATE_KEY, null);
+        String pendingUpdateString = mSettings.getString(GreatPushConstants.PENDING_UPDATE_KEY);
         if (pendingUpdateString == null) {
             return null;
         }
@@ -42,29 +37,13 @@ public class SettingsManager {
         } catch (JSONException e) {
             // Should not happen.
             GreatPushUtils.log("Unable to parse pending update metadata " + pendingUpdateString +
-                    " stored in SharedPreferences");
+                    " stored in the state store");
             return null;
         }
     }
 
-
     public boolean isFailedHash(String packageHash) {
-        JSONArray failedUpdates = getFailedUpdates();
-        if (packageHash != null) {
-            for (int i = 0; i < failedUpdates.length(); i++) {
-                try {
-                    JSONObject failedPackage = failedUpdates.getJSONObject(i);
-                    String failedPackageHash = failedPackage.getString(GreatPushConstants.PACKAGE_HASH_KEY);
-                    if (packageHash.equals(failedPackageHash)) {
-                        return true;
-                    }
-                } catch (JSONException e) {
-                    throw new GreatPushUnknownException("Unable to read failedUpdates data stored in SharedPreferences.", e);
-                }
-            }
-        }
-
-        return false;
+        return mFailedUpdates.contains(packageHash);
     }
 
     public boolean isPendingUpdate(String packageHash) {
@@ -81,42 +60,55 @@ public class SettingsManager {
     }
 
     public void removeFailedUpdates() {
-        mSettings.edit().remove(GreatPushConstants.FAILED_UPDATES_KEY).commit();
+        GreatPushStateWriter.getInstance().write(new Runnable() {
+            @Override
+            public void run() {
+                mFailedUpdates.clear();
+            }
+        });
     }
 
     public void removePendingUpdate() {
-        mSettings.edit().remove(GreatPushConstants.PENDING_UPDATE_KEY).commit();
+        GreatPushStateWriter.getInstance().write(new Runnable() {
+            @Override
+            public void run() {
+                mSettings.remove(GreatPushConstants.PENDING_UPDATE_KEY, true);
+                BootRecord.invalidate(mBootRecordFile);
+            }
+        });
     }
 
-    public void saveFailedUpdate(JSONObject failedPackage) {
-        String failedUpdatesString = mSettings.getString(GreatPushConstants.FAILED_UPDATES_KEY, null);
-        JSONArray failedUpdates;
-        if (failedUpdatesString == null) {
-            failedUpdates = new JSONArray();
-        } else {
-            try {
-                failedUpdates = new JSONArray(failedUpdatesString);
-            } catch (JSONException e) {
-                // Should not happen.
-                throw new GreatPushMalformedDataException("Unable to parse failed updates information " +
-                        failedUpdatesString + " stored in SharedPreferences", e);
+    public void saveFailedUpdate(final JSONObject failedPackage) {
+        GreatPushStateWriter.getInstance().write(new Runnable() {
+            @Override
+            public void run() {
+                mFailedUpdates.add(failedPackage);
             }
-        }
+        });
+    }
 
-        failedUpdates.put(failedPackage);
-        mSettings.edit().putString(GreatPushConstants.FAILED_UPDATES_KEY, failedUpdates.toString()).commit();
+    void setFailedUpdateFilterEnabled(boolean isEnabled) {
+        mFailedUpdates.setFilterEnabled(isEnabled);
     }
 
-    public void savePendingUpdate(String packageHash, boolean isLoading) {
-        JSONObject pendingUpdate = new JSONObject();
-        try {
-            pendingUpdate.put(GreatPushConstants.PENDING_UPDATE_HASH_KEY, packageHash);
-            pendingUpdate.put(GreatPushConstants.PENDING_UPDATE_IS_LOADING_KEY, isLoading);
-            mSettings.edit().putString(GreatPushConstants.PENDING_UPDATE_KEY, pendingUpdate.toString()).commit();
-        } catch (JSONException e) {
-            // Should not happen.
-            throw new GreatPushUnknownException("Unable to save pending update.", e);
-        }
+    public void savePendingUpdate(final String packageHash, final boolean isLoading) {
+        GreatPushStateWriter.getInstance().write(new Runnable() {
+            @Override
+            public void run() {
+                JSONObject pendingUpdate = new JSONObject();
+                try {
+                    pendingUpdate.put(GreatPushConstants.PENDING_UPDATE_HASH_KEY, packageHash);
+                    pendingUpdate.put(GreatPushConstants.PENDING_UPDATE_IS_LOADING_KEY, isLoading);
+                    mSettings.putString(GreatPushConstants.PENDING_UPDATE_KEY, pendingUpdate.toString(), true);
+                    // The boot record holds a copy of the pending update, so it is only deleted once the
+                    // new value has been committed.
+                    BootRecord.invalidate(mBootRecordFile);
+                } catch (JSONException e) {
+                    // Should not happen.
+                    throw new GreatPushUnknownException("Unable to save pending update.", e);
+                }
+            }
+        });
     }
 
 }
@@ -0,0 +1,38 @@
+package com.microsoft.greatpush.react;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+// The SHA-256 hashes of the files of an update, keyed by their path relative to the update folder.
+// It is filled in while the files are being written, so that the update can be verified without
+// reading all of its contents back from disk.
+class UpdateContentsManifest {
+    private final Map<String, String> mFileHashes = new HashMap<>();
+
+    public void put(String relativeFilePath, String hash) {
+        mFileHashes.put(relativeFilePath, hash);
+    }
+
+    public void remove(String relativeFilePath) {
+        mFileHashes.remove(relativeFilePath);
+    }
+
+    public Map<String, String> getFileHashes() {
+        return Collections.unmodifiableMap(mFileHashes);
+    }
+
+    // Returns the entries in the <relativeFilePath>:<sha256FileHash> format used by the CLI,
+    // leaving out the files that are not part of the package hash.
+    public ArrayList<String> getEntries() {
+        ArrayList<String> entries = new ArrayList<>(mFileHashes.size());
+        for (Map.Entry<String, String> fileHash : mFileHashes.entrySet()) {
+            if (!GreatPushUpdateUtils.isHashIgnored(fileHash.getKey())) {
+                entries.add(fileHash.getKey() + ":" + fileHash.getValue());
+            }
+        }
+
+        return entries;
+    }
+}
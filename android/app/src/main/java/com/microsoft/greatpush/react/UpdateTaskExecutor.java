@@ -0,0 +1,83 @@
+package com.microsoft.greatpush.react;
+
+import android.os.Process;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The threads GreatPush runs its work on, instead of the pool of AsyncTask that is shared with the
+// rest of the app. Work is split into two lanes, so that a quick query for the update metadata
+// never waits behind a download or an install:
+//
+// - The query lane reads the state of the packages and the status reports.
+// - The IO lane downloads, installs and cleans up packages.
+//
+// Threads run at background priority, and are only kept while there is work to do.
+class UpdateTaskExecutor {
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor mQueryLane;
+    private final ThreadPoolExecutor mIOLane;
+
+    public UpdateTaskExecutor(int queryLaneSize, int ioLaneSize) {
+        mQueryLane = createLane("GreatPushQuery", queryLaneSize);
+        mIOLane = createLane("GreatPushIO", ioLaneSize);
+    }
+
+    public void executeQuery(Runnable task) {
+        mQueryLane.execute(task);
+    }
+
+    public void executeIO(Runnable task) {
+        mIOLane.execute(task);
+    }
+
+    // Tasks that are already queued run on the resized lanes.
+    public synchronized void setLaneSizes(int queryLaneSize, int ioLaneSize) {
+        resizeLane(mQueryLane, queryLaneSize);
+        resizeLane(mIOLane, ioLaneSize);
+    }
+
+    // Also used for the threads of segmented downloads, see GreatPushUpdateManager.
+    static ThreadPoolExecutor createLane(final String name, int size) {
+        ThreadPoolExecutor lane = new ThreadPoolExecutor(getValidSize(size), getValidSize(size), KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mThreadCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, name + "-" + mThreadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        lane.allowCoreThreadTimeOut(true);
+        return lane;
+    }
+
+    static void resizeLane(ThreadPoolExecutor lane, int size) {
+        size = getValidSize(size);
+        // The core size can never be larger than the maximum size, so the order depends on whether
+        // the lane grows or shrinks.
+        if (size > lane.getMaximumPoolSize()) {
+            lane.setMaximumPoolSize(size);
+            lane.setCorePoolSize(size);
+        } else {
+            lane.setCorePoolSize(size);
+            lane.setMaximumPoolSize(size);
+        }
+    }
+
+    private static int getValidSize(int size) {
+        return Math.max(size, 1);
+    }
+}
@@ -0,0 +1,108 @@
+package com.microsoft.greatpush.react;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DownloadCancellationTest {
+    @Test
+    public void cancelsTheRequestsWithoutClosingTheResponses() throws Exception {
+        DownloadCancellation cancellation = new DownloadCancellation("hash");
+        RecordingResponse response = new RecordingResponse();
+        cancellation.register(response);
+
+        cancellation.cancel();
+
+        assertTrue(cancellation.isCancelled());
+        assertEquals(1, response.mCancelCount);
+        assertEquals(0, response.mCloseCount);
+    }
+
+    @Test
+    public void unregisteredResponseIsNotCancelled() throws Exception {
+        DownloadCancellation cancellation = new DownloadCancellation("hash");
+        RecordingResponse response = new RecordingResponse();
+        cancellation.register(response);
+        cancellation.unregister(response);
+
+        cancellation.cancel();
+
+        assertEquals(0, response.mCancelCount);
+    }
+
+    @Test
+    public void responseRegisteredAfterCancellingIsClosedByTheRegisteringThread() throws Exception {
+        DownloadCancellation cancellation = new DownloadCancellation("hash");
+        cancellation.cancel();
+        RecordingResponse response = new RecordingResponse();
+
+        try {
+            cancellation.register(response);
+            fail("Registering with a cancelled download should throw.");
+        } catch (GreatPushDownloadCancelledException e) {
+            // Expected.
+        }
+
+        assertEquals(1, response.mCloseCount);
+        assertEquals(Thread.currentThread(), response.mClosingThread);
+        assertEquals(0, response.mCancelCount);
+    }
+
+    @Test
+    public void throwsOnlyOnceCancelled() throws Exception {
+        DownloadCancellation cancellation = new DownloadCancellation("hash");
+        cancellation.throwIfCancelled();
+        assertFalse(cancellation.isCancelled());
+
+        cancellation.cancel();
+        try {
+            cancellation.throwIfCancelled();
+            fail("A cancelled download should throw.");
+        } catch (GreatPushDownloadCancelledException e) {
+            // Expected.
+        }
+    }
+
+    private static class RecordingResponse implements GreatPushHttpResponse {
+        int mCancelCount;
+        int mCloseCount;
+        Thread mClosingThread;
+
+        @Override
+        public int getStatusCode() {
+            return 200;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return null;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            throw new IOException("No body.");
+        }
+
+        @Override
+        public void cancel() {
+            mCancelCount++;
+        }
+
+        @Override
+        public void close() {
+            mCloseCount++;
+            mClosingThread = Thread.currentThread();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.microsoft.greatpush.react;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadDedupTest {
+    private static final String BUNDLE_PATH = "GreatPush/index.android.bundle";
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private final CountDownLatch mBodySent = new CountDownLatch(1);
+    private volatile CountDownLatch mReleaseBody;
+
+    private TestHttpServer mServer;
+    private GreatPushUpdateManager mUpdateManager;
+    // A single thread, like an IO lane of size 1.
+    private ExecutorService mExecutor;
+    private Map<String, byte[]> mFiles;
+    private String mPackageHash;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new TestHttpServer() {
+            @Override
+            protected void onSendBody(String path) throws InterruptedException {
+                CountDownLatch releaseBody = mReleaseBody;
+                if (releaseBody != null) {
+                    mBodySent.countDown();
+                    releaseBody.await();
+                }
+            }
+        };
+        mUpdateManager = new GreatPushUpdateManager(mTemporaryFolder.getRoot().getAbsolutePath());
+        mUpdateManager.setHttpTransport(new UrlConnectionTransport());
+        mExecutor = Executors.newSingleThreadExecutor();
+
+        mFiles = new TreeMap<>();
+        mFiles.put(BUNDLE_PATH, TestPackages.randomBytes(1000000, 1));
+        mFiles.put("GreatPush/assets/image.png", TestPackages.randomBytes(5000, 2));
+        mPackageHash = TestPackages.packageHash(mFiles);
+        mServer.setFile("/package.zip", TestPackages.zip(mFiles));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        CountDownLatch releaseBody = mReleaseBody;
+        if (releaseBody != null) {
+            releaseBody.countDown();
+        }
+
+        mExecutor.shutdown();
+        assertTrue(mExecutor.awaitTermination(10, TimeUnit.SECONDS));
+        mServer.close();
+    }
+
+    @Test
+    public void duplicateJoinsADownloadThatIsWaitingForAThread() throws Exception {
+        RecordingListener firstListener = new RecordingListener();
+        RecordingListener secondListener = new RecordingListener();
+
+        PackageDownload download = mUpdateManager.registerDownload(mPackageHash, TestPackages.getProgressCallback(), firstListener);
+        assertNull(mUpdateManager.registerDownload(mPackageHash, TestPackages.getProgressCallback(), secondListener));
+        run(download);
+
+        firstListener.assertSucceeded();
+        secondListener.assertSucceeded();
+        assertEquals(1, getDownloadRequestCount());
+        assertInstalled();
+    }
+
+    @Test
+    public void duplicateJoinsARunningDownloadWithoutTakingAThread() throws Exception {
+        mReleaseBody = new CountDownLatch(1);
+        RecordingListener firstListener = new RecordingListener();
+        RecordingListener secondListener = new RecordingListener();
+
+        run(mUpdateManager.registerDownload(mPackageHash, TestPackages.getProgressCallback(), firstListener));
+        assertTrue(mBodySent.await(10, TimeUnit.SECONDS));
+        assertNull(mUpdateManager.registerDownload(mPackageHash, TestPackages.getProgressCallback(), secondListener));
+        mReleaseBody.countDown();
+
+        firstListener.assertSucceeded();
+        secondListener.assertSucceeded();
+        assertEquals(1, getDownloadRequestCount());
+        assertInstalled();
+    }
+
+    @Test
+    public void duplicateSharesTheFailureOfTheDownload() throws Exception {
+        mServer.setFile("/package.zip", null);
+        RecordingListener firstListener = new RecordingListener();
+        RecordingListener secondListener = new RecordingListener();
+
+        PackageDownload download = mUpdateManager.registerDownload(mPackageHash, TestPackages.getProgressCallback(), firstListener);
+        assertNull(mUpdateManager.registerDownload(mPackageHash, TestPackages.getProgressCallback(), secondListener));
+        run(download);
+
+        assertNotNull(firstListener.awaitFailure());
+        assertSame(firstListener.awaitFailure(), secondListener.awaitFailure());
+        assertEquals(1, getDownloadRequestCount());
+    }
+
+    @Test
+    public void listenerAddedAfterCompletionIsCalledRightAway() throws Exception {
+        PackageDownload download = new PackageDownload(mPackageHash, TestPackages.getProgressCallback());
+        IOException failure = new IOException("Failed.");
+        download.complete(failure);
+
+        RecordingListener listener = new RecordingListener();
+        download.addCompletionListener(listener);
+
+        assertEquals(0, listener.mCompletion.getCount());
+        assertSame(failure, listener.awaitFailure());
+    }
+
+    private void run(final PackageDownload download) throws Exception {
+        assertNotNull(download);
+        final JSONObject updatePackage = TestPackages.createUpdatePackage(mPackageHash, mServer.getUrl("/package.zip"));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mUpdateManager.runDownload(download, updatePackage, "index.android.bundle", BundleFormat.NO_BYTECODE_VERSION, null);
+                } catch (IOException | RuntimeException e) {
+                    // Reported to the completion listeners.
+                }
+            }
+        });
+    }
+
+    private int getDownloadRequestCount() {
+        List<String> requests = mServer.getRequests();
+        int downloadRequestCount = 0;
+        for (String request : requests) {
+            if (request.startsWith("GET")) {
+                downloadRequestCount++;
+            }
+        }
+
+        return downloadRequestCount;
+    }
+
+    private void assertInstalled() throws Exception {
+        Map<String, byte[]> installedFiles = TestPackages.readFolder(new File(mUpdateManager.getPackageFolderPath(mPackageHash)));
+        for (Map.Entry<String, byte[]> file : mFiles.entrySet()) {
+            assertArrayEquals(file.getKey(), file.getValue(), installedFiles.get(file.getKey()));
+        }
+    }
+
+    private static class RecordingListener implements PackageDownload.CompletionListener {
+        final CountDownLatch mCompletion = new CountDownLatch(1);
+        volatile Throwable mFailure;
+
+        @Override
+        public void onComplete(Throwable failure) {
+            mFailure = failure;
+            mCompletion.countDown();
+        }
+
+        Throwable awaitFailure() throws InterruptedException {
+            assertTrue(mCompletion.await(30, TimeUnit.SECONDS));
+            return mFailure;
+        }
+
+        void assertSucceeded() throws InterruptedException {
+            Throwable failure = awaitFailure();
+            assertNull(String.valueOf(failure), failure);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.microsoft.greatpush.react;
+
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadProgressTest {
+    private static final int MEGABYTE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void samplesOnceTheByteIntervalHasPassed() {
+        DownloadProgress downloadProgress = new DownloadProgress(/* sampleIntervalMillis */60000, /* sampleIntervalBytes */MEGABYTE);
+        downloadProgress.start(10 * MEGABYTE, 0);
+
+        assertFalse(downloadProgress.addReceivedBytes(MEGABYTE / 4));
+        assertFalse(downloadProgress.addReceivedBytes(MEGABYTE / 4));
+        assertFalse(downloadProgress.addReceivedBytes(MEGABYTE / 4));
+        assertTrue(downloadProgress.addReceivedBytes(MEGABYTE / 4));
+        assertFalse(downloadProgress.addReceivedBytes(MEGABYTE / 4));
+        assertEquals(MEGABYTE + MEGABYTE / 4, downloadProgress.getReceivedBytes());
+    }
+
+    @Test
+    public void samplesOnceTheTimeIntervalHasPassed() throws Exception {
+        DownloadProgress downloadProgress = new DownloadProgress(/* sampleIntervalMillis */50, /* sampleIntervalBytes */0);
+        downloadProgress.start(10 * MEGABYTE, 0);
+
+        assertFalse(downloadProgress.addReceivedBytes(1));
+        Thread.sleep(60);
+        assertTrue(downloadProgress.addReceivedBytes(1));
+        assertFalse(downloadProgress.addReceivedBytes(1));
+    }
+
+    @Test
+    public void alwaysReportsTheCompletion() {
+        DownloadProgress downloadProgress = new DownloadProgress(60000, 0);
+        downloadProgress.start(100, 0);
+
+        assertFalse(downloadProgress.addReceivedBytes(99));
+        assertTrue(downloadProgress.addReceivedBytes(1));
+        assertTrue(downloadProgress.isCompleted());
+    }
+
+    @Test
+    public void reportsTheCompletionOfADownloadWithoutALength() {
+        DownloadProgress downloadProgress = new DownloadProgress(60000, 0);
+        downloadProgress.start(-1, 0);
+
+        assertFalse(downloadProgress.addReceivedBytes(100));
+        assertFalse(downloadProgress.isCompleted());
+
+        downloadProgress.finish();
+        assertEquals(100, downloadProgress.getTotalBytes());
+        assertTrue(downloadProgress.isCompleted());
+    }
+
+    @Test
+    public void reportsTheCompletionOfAGzipDownloadWithoutALength() throws Exception {
+        TestHttpServer server = new TestHttpServer();
+        try {
+            server.setSupportsGzip(true);
+            server.setSendsContentLength(false);
+            server.setFile("/index.android.bundle", TestPackages.randomBytes(100000, 1));
+            GreatPushUpdateManager updateManager = new GreatPushUpdateManager(mTemporaryFolder.getRoot().getAbsolutePath());
+            updateManager.setHttpTransport(new UrlConnectionTransport());
+            JSONObject updatePackage = TestPackages.createUpdatePackage("bundlehash", server.getUrl("/index.android.bundle"));
+            final boolean[] isLastSampleCompleted = new boolean[1];
+
+            updateManager.downloadPackage(updatePackage, "index.android.bundle", BundleFormat.NO_BYTECODE_VERSION,
+                    new DownloadProgressCallback() {
+                        @Override
+                        public void call(DownloadProgress downloadProgress) {
+                            isLastSampleCompleted[0] = downloadProgress.isCompleted();
+                        }
+                    }, null);
+
+            assertTrue(server.getRequests().get(0), server.getRequests().get(0).contains("ae=gzip"));
+            assertTrue(isLastSampleCompleted[0]);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void startingOverResetsTheProgress() {
+        DownloadProgress downloadProgress = new DownloadProgress(60000, 0);
+        downloadProgress.start(100, 0);
+        downloadProgress.addReceivedBytes(60);
+
+        downloadProgress.start(200, 40);
+
+        assertEquals(200, downloadProgress.getTotalBytes());
+        assertEquals(40, downloadProgress.getReceivedBytes());
+        assertFalse(downloadProgress.isCompleted());
+    }
+
+    @Test
+    public void estimatesTheRemainingTimeFromTheRate() throws Exception {
+        DownloadProgress downloadProgress = new DownloadProgress(0, 0);
+        downloadProgress.start(-1, 0);
+        downloadProgress.addReceivedBytes(MEGABYTE);
+        Thread.sleep(20);
+        assertTrue(downloadProgress.getBytesPerSecond() > 0);
+        assertEquals(-1, downloadProgress.getEstimatedMillisRemaining());
+
+        downloadProgress.start(2 * MEGABYTE, 0);
+        downloadProgress.addReceivedBytes(MEGABYTE);
+        Thread.sleep(20);
+        assertTrue(downloadProgress.getEstimatedMillisRemaining() >= 0);
+    }
+
+    @Test
+    public void countsEveryByteReceivedByConcurrentSegments() throws Exception {
+        final int threadCount = 8;
+        final int readsPerThread = 10000;
+        final DownloadProgress downloadProgress = new DownloadProgress(60000, 64 * 1024);
+        downloadProgress.start(threadCount * readsPerThread * 1024L + 1, 0);
+        final AtomicInteger samples = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int read = 0; read < readsPerThread; read++) {
+                        if (downloadProgress.addReceivedBytes(1024)) {
+                            samples.incrementAndGet();
+                        }
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(threadCount * readsPerThread * 1024L, downloadProgress.getReceivedBytes());
+        // About one sample per 64 KB, rather than one per read.
+        assertTrue("Reported " + samples.get() + " samples", samples.get() > 0 && samples.get() <= 2 * threadCount * readsPerThread / 64);
+    }
+
+    // Reporting the progress of a download used to allocate a progress object per read and a map per
+    // reported event. Any object allocated per read takes at least 16 bytes.
+    @Test
+    public void reportingProgressDoesNotAllocatePerRead() throws Exception {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled());
+
+        byte[] buffer = new byte[4096];
+        long megabytes = 16;
+        long readCount = megabytes * MEGABYTE / buffer.length;
+        // Warms up the code that is measured, which also loads its classes.
+        readThroughProgressStream(megabytes, buffer);
+
+        long threadId = Thread.currentThread().getId();
+        long allocatedBytesBefore = allocationBean.getThreadAllocatedBytes(threadId);
+        readThroughProgressStream(megabytes, buffer);
+        long allocatedBytes = allocationBean.getThreadAllocatedBytes(threadId) - allocatedBytesBefore;
+
+        assertTrue("Allocated " + allocatedBytes + " bytes over " + readCount + " reads", allocatedBytes < readCount * 8);
+    }
+
+    private static void readThroughProgressStream(long megabytes, byte[] buffer) throws IOException {
+        DownloadProgress downloadProgress = new DownloadProgress(GreatPushConstants.DEFAULT_DOWNLOAD_PROGRESS_INTERVAL_MILLIS, 0);
+        downloadProgress.start(megabytes * MEGABYTE, 0);
+        DownloadProgressInputStream progressStream = new DownloadProgressInputStream(new ZeroInputStream(megabytes * MEGABYTE), downloadProgress,
+                TestPackages.getProgressCallback(), new DownloadCancellation("hash"));
+        while (progressStream.read(buffer, 0, buffer.length) >= 0) ;
+    }
+
+    // Serves zeros without allocating, so that only the progress reporting is measured.
+    private static class ZeroInputStream extends InputStream {
+        private long mRemainingBytes;
+
+        ZeroInputStream(long length) {
+            mRemainingBytes = length;
+        }
+
+        @Override
+        public int read() {
+            if (mRemainingBytes == 0) {
+                return -1;
+            }
+
+            mRemainingBytes--;
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (mRemainingBytes == 0) {
+                return -1;
+            }
+
+            int numBytesRead = (int) Math.min(length, mRemainingBytes);
+            mRemainingBytes -= numBytesRead;
+            return numBytesRead;
+        }
+    }
+}
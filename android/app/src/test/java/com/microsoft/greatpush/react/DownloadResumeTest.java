@@ -0,0 +1,238 @@
+package com.microsoft.greatpush.react;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DownloadResumeTest {
+    private static final String BUNDLE_PATH = "GreatPush/index.android.bundle";
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private TestHttpServer mServer;
+    private GreatPushUpdateManager mUpdateManager;
+    private Map<String, byte[]> mFiles;
+    private String mPackageHash;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new TestHttpServer();
+        mUpdateManager = new GreatPushUpdateManager(mTemporaryFolder.getRoot().getAbsolutePath());
+        mUpdateManager.setHttpTransport(new UrlConnectionTransport());
+
+        mFiles = new TreeMap<>();
+        mFiles.put(BUNDLE_PATH, TestPackages.randomBytes(3000000, 1));
+        mFiles.put("GreatPush/assets/image.png", TestPackages.randomBytes(5000, 2));
+        mPackageHash = TestPackages.packageHash(mFiles);
+        mServer.setFile("/package.zip", TestPackages.zip(mFiles));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+    }
+
+    @Test
+    public void resumesAnInterruptedDownloadWithARangeRequest() throws Exception {
+        downloadUntilInterrupted(2500000);
+        assertTrue(getStagedFile("download.journal").exists());
+
+        download();
+
+        List<String> requests = mServer.getRequests();
+        assertEquals(2, requests.size());
+        assertTrue(requests.get(1), getResumeOffset(requests.get(1)) > 0);
+        assertTrue(requests.get(1), requests.get(1).contains("ifRange=\"v1\""));
+        assertInstalled();
+    }
+
+    @Test
+    public void startsOverWhenTheServerDoesNotSupportRanges() throws Exception {
+        mServer.setSupportsRanges(false);
+        downloadUntilInterrupted(2500000);
+
+        download();
+
+        assertInstalled();
+    }
+
+    @Test
+    public void startsOverWhenTheFileChangedOnTheServer() throws Exception {
+        downloadUntilInterrupted(2500000);
+        mServer.setETag("\"v2\"");
+
+        download();
+
+        List<String> requests = mServer.getRequests();
+        assertTrue(requests.get(1), requests.get(1).contains("ifRange=\"v1\""));
+        assertInstalled();
+    }
+
+    @Test
+    public void resumesAnInterruptedBundleDownload() throws Exception {
+        byte[] bundle = TestPackages.randomBytes(3000000, 4);
+        mServer.setFile("/index.android.bundle", bundle);
+        JSONObject updatePackage = TestPackages.createUpdatePackage("bundlehash", mServer.getUrl("/index.android.bundle"));
+        mServer.failNextResponseAfter(1000000);
+        try {
+            mUpdateManager.downloadPackage(updatePackage, "index.android.bundle", BundleFormat.NO_BYTECODE_VERSION,
+                    TestPackages.getProgressCallback(), null);
+            fail("The download should have been interrupted.");
+        } catch (IOException | GreatPushUnknownException e) {
+            // A connection that ends early either fails a read or leaves the download short.
+        }
+
+        mUpdateManager.downloadPackage(TestPackages.createUpdatePackage("bundlehash", mServer.getUrl("/index.android.bundle")),
+                "index.android.bundle", BundleFormat.NO_BYTECODE_VERSION, TestPackages.getProgressCallback(), null);
+
+        assertTrue(getResumeOffset(mServer.getRequests().get(1)) > 0);
+        assertArrayEquals(bundle, TestPackages.readFile(new File(mUpdateManager.getPackageFolderPath("bundlehash"), "index.android.bundle")));
+    }
+
+    @Test
+    public void resumesAnInterruptedGzipDownloadInTheSameEncoding() throws Exception {
+        mServer.setSupportsGzip(true);
+        downloadUntilInterrupted(2500000);
+        assertTrue(getStagedFile("download.journal").exists());
+
+        download();
+
+        List<String> requests = mServer.getRequests();
+        assertEquals(2, requests.size());
+        assertTrue(requests.get(1), getResumeOffset(requests.get(1)) > 0);
+        assertTrue(requests.get(1), requests.get(1).contains("ae=gzip"));
+        assertTrue(requests.get(1), requests.get(1).contains("ifRange=\"v1-gzip\""));
+        assertInstalled();
+    }
+
+    @Test
+    public void startsOverAnInterruptedGzipDownloadWithoutAStrongETag() throws Exception {
+        mServer.setSupportsGzip(true);
+        mServer.setETag("W/\"v1\"");
+        downloadUntilInterrupted(2500000);
+        assertFalse(getStagedFile("download.journal").exists());
+
+        download();
+
+        List<String> requests = mServer.getRequests();
+        assertTrue(requests.get(1), requests.get(1).contains("range=null"));
+        assertInstalled();
+    }
+
+    @Test
+    public void resumesAnInterruptedGzipBundleDownload() throws Exception {
+        mServer.setSupportsGzip(true);
+        byte[] bundle = TestPackages.randomBytes(3000000, 4);
+        mServer.setFile("/index.android.bundle", bundle);
+        mServer.failNextResponseAfter(2500000);
+        try {
+            mUpdateManager.downloadPackage(TestPackages.createUpdatePackage("bundlehash", mServer.getUrl("/index.android.bundle")),
+                    "index.android.bundle", BundleFormat.NO_BYTECODE_VERSION, TestPackages.getProgressCallback(), null);
+            fail("The download should have been interrupted.");
+        } catch (IOException | GreatPushUnknownException e) {
+            // A connection that ends early either fails a read or leaves the download short.
+        }
+
+        mUpdateManager.downloadPackage(TestPackages.createUpdatePackage("bundlehash", mServer.getUrl("/index.android.bundle")),
+                "index.android.bundle", BundleFormat.NO_BYTECODE_VERSION, TestPackages.getProgressCallback(), null);
+
+        assertTrue(getResumeOffset(mServer.getRequests().get(1)) > 0);
+        assertArrayEquals(bundle, TestPackages.readFile(new File(mUpdateManager.getPackageFolderPath("bundlehash"), "index.android.bundle")));
+    }
+
+    @Test
+    public void journalIsOnlyResumedForTheSamePackageAndUrl() throws Exception {
+        File journalFile = mTemporaryFolder.newFile("download.journal");
+        new DownloadJournal(journalFile, "hash", "http://host/package.zip", "\"v1\"", false).commit(1234);
+
+        DownloadJournal journal = DownloadJournal.load(journalFile);
+        assertNotNull(journal);
+        assertEquals(1234, journal.getCommittedBytes());
+        assertEquals("\"v1\"", journal.getValidator());
+        assertFalse(journal.isGzipEncoded());
+        assertTrue(journal.canResume("hash", "http://host/package.zip"));
+        assertFalse(journal.canResume("otherhash", "http://host/package.zip"));
+        assertFalse(journal.canResume("hash", "http://host/other.zip"));
+    }
+
+    @Test
+    public void journalWithoutValidatorIsNotKept() throws Exception {
+        File journalFile = mTemporaryFolder.newFile("download.journal");
+        new DownloadJournal(journalFile, "hash", "http://host/package.zip", null, false).commit(1234);
+
+        assertFalse(journalFile.exists());
+        assertNull(DownloadJournal.load(journalFile));
+    }
+
+    @Test
+    public void journaledStreamRecordsTheBytesThatReachedTheFile() throws Exception {
+        File journalFile = new File(mTemporaryFolder.getRoot(), "download.journal");
+        DownloadJournal journal = new DownloadJournal(journalFile, "hash", "http://host/package.zip", "\"v1\"", false);
+        byte[] data = TestPackages.randomBytes(GreatPushConstants.DOWNLOAD_JOURNAL_COMMIT_INTERVAL * 2 + 10, 5);
+        ByteArrayOutputStream downloadFile = new ByteArrayOutputStream();
+        JournaledInputStream journaledStream = new JournaledInputStream(new ByteArrayInputStream(data), downloadFile, journal, 100);
+
+        byte[] buffer = new byte[4096];
+        while (journaledStream.read(buffer, 0, buffer.length) >= 0) {
+            long committedBytes = DownloadJournal.load(journalFile) != null ? DownloadJournal.load(journalFile).getCommittedBytes() : 100;
+            assertTrue(committedBytes <= 100 + downloadFile.size());
+        }
+
+        journaledStream.close();
+        assertArrayEquals(data, downloadFile.toByteArray());
+        assertEquals(100 + data.length, DownloadJournal.load(journalFile).getCommittedBytes());
+    }
+
+    private void downloadUntilInterrupted(int failAfterBytes) throws Exception {
+        mServer.failNextResponseAfter(failAfterBytes);
+        try {
+            download();
+            fail("The download should have been interrupted.");
+        } catch (IOException | GreatPushUnknownException e) {
+            // A connection that ends early either fails a read or leaves the download short.
+        }
+    }
+
+    private void download() throws Exception {
+        mUpdateManager.downloadPackage(TestPackages.createUpdatePackage(mPackageHash, mServer.getUrl("/package.zip")),
+                "index.android.bundle", BundleFormat.NO_BYTECODE_VERSION, TestPackages.getProgressCallback(), null);
+    }
+
+    private static long getResumeOffset(String rangeRequest) {
+        int rangeIndex = rangeRequest.indexOf("range=bytes=") + "range=bytes=".length();
+        return Long.parseLong(rangeRequest.substring(rangeIndex, rangeRequest.indexOf('-', rangeIndex)));
+    }
+
+    private void assertInstalled() throws Exception {
+        Map<String, byte[]> installedFiles = TestPackages.readFolder(new File(mUpdateManager.getPackageFolderPath(mPackageHash)));
+        assertArrayEquals(mFiles.get(BUNDLE_PATH), installedFiles.get(BUNDLE_PATH));
+        assertArrayEquals(mFiles.get("GreatPush/assets/image.png"), installedFiles.get("GreatPush/assets/image.png"));
+        assertFalse(getStagedFile("download.journal").exists());
+        assertFalse(getStagedFile("download.zip").exists());
+    }
+
+    private File getStagedFile(String fileName) {
+        File downloadFolder = new File(new File(mTemporaryFolder.getRoot(), "GreatPush/" + GreatPushConstants.DOWNLOADS_FOLDER_NAME), mPackageHash);
+        return new File(downloadFolder, fileName);
+    }
+}
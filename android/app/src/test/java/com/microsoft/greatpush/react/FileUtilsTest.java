@@ -0,0 +1,105 @@
+package com.microsoft.greatpush.react;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FileUtilsTest {
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void readFileToStringKeepsTheContentsAsTheyAre() throws Exception {
+        String contents = "first line\r\nsecond line\né€ last line without a line break";
+        File file = writeFile("file.txt", contents.getBytes("UTF-8"));
+
+        assertEquals(contents, FileUtils.readFileToString(file.getAbsolutePath()));
+    }
+
+    @Test
+    public void readFileToStringReadsEmptyAndLargeFiles() throws Exception {
+        assertEquals("", FileUtils.readFileToString(writeFile("empty.txt", new byte[0]).getAbsolutePath()));
+
+        StringBuilder largeContents = new StringBuilder();
+        while (largeContents.length() < 3 * 1024 * 1024) {
+            largeContents.append("var module").append(largeContents.length()).append(" = require('é');\n");
+        }
+
+        File largeFile = writeFile("index.android.bundle", largeContents.toString().getBytes("UTF-8"));
+        assertEquals(largeContents.toString(), FileUtils.readFileToString(largeFile.getAbsolutePath()));
+    }
+
+    @Test
+    public void jsonIsReadWhateverItsLineEndings() throws Exception {
+        File file = writeFile("app.json", "{\r\n  \"packageHash\": \"hash\",\r\n  \"label\": \"v1\"\r\n}\r\n".getBytes("UTF-8"));
+
+        JSONObject json = GreatPushUtils.getJsonObjectFromFile(file.getAbsolutePath());
+
+        assertEquals("hash", json.getString("packageHash"));
+        assertEquals("v1", json.getString("label"));
+    }
+
+    @Test
+    public void signatureIsTrimmed() throws Exception {
+        File packageFolder = mTemporaryFolder.newFolder("package");
+        File signatureFile = new File(GreatPushUpdateUtils.getSignatureFilePath(packageFolder.getAbsolutePath()));
+        signatureFile.getParentFile().mkdirs();
+        FileUtils.writeStringToFile("header.payload.signature\n", signatureFile.getAbsolutePath());
+
+        assertEquals("header.payload.signature", GreatPushUpdateUtils.getSignature(packageFolder.getAbsolutePath()));
+    }
+
+    @Test
+    public void copyDirectoryContentsCopiesAndHashesTheFiles() throws Exception {
+        Map<String, byte[]> files = TestPackages.createPackageFiles(50, 1024 * 1024);
+        File sourceFolder = TestPackages.writeFolder(mTemporaryFolder.newFolder("source"), files);
+        File destinationFolder = new File(mTemporaryFolder.getRoot(), "destination");
+        Set<String> skippedFilePaths = new HashSet<>();
+        skippedFilePaths.add("GreatPush/assets/image0.png");
+        UpdateContentsManifest updateContentsManifest = new UpdateContentsManifest();
+
+        FileUtils.copyDirectoryContents(sourceFolder.getAbsolutePath(), destinationFolder.getAbsolutePath(), updateContentsManifest,
+                skippedFilePaths, null);
+
+        Map<String, byte[]> copiedFiles = TestPackages.readFolder(destinationFolder);
+        files.remove("GreatPush/assets/image0.png");
+        assertEquals(files.keySet(), copiedFiles.keySet());
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            assertArrayEquals(file.getKey(), file.getValue(), copiedFiles.get(file.getKey()));
+            assertEquals(file.getKey(), TestPackages.sha256(file.getValue()), updateContentsManifest.getFileHashes().get(file.getKey()));
+        }
+    }
+
+    @Test
+    public void unzipFileExtractsAndHashesTheEntries() throws Exception {
+        Map<String, byte[]> files = TestPackages.createPackageFiles(50, 1024 * 1024);
+        File zipFile = writeFile("package.zip", TestPackages.zip(files));
+        File destinationFolder = new File(mTemporaryFolder.getRoot(), "unzipped");
+        UpdateContentsManifest updateContentsManifest = new UpdateContentsManifest();
+
+        FileUtils.unzipFile(zipFile, destinationFolder.getAbsolutePath(), updateContentsManifest);
+
+        Map<String, byte[]> extractedFiles = TestPackages.readFolder(destinationFolder);
+        assertEquals(files.keySet(), extractedFiles.keySet());
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            assertArrayEquals(file.getKey(), file.getValue(), extractedFiles.get(file.getKey()));
+            assertEquals(file.getKey(), TestPackages.sha256(file.getValue()), updateContentsManifest.getFileHashes().get(file.getKey()));
+        }
+    }
+
+    private File writeFile(String fileName, byte[] contents) throws IOException {
+        File file = new File(mTemporaryFolder.getRoot(), fileName);
+        TestPackages.writeFile(file, contents);
+        return file;
+    }
+}
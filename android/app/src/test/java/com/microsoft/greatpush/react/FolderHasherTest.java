@@ -0,0 +1,109 @@
+package com.microsoft.greatpush.react;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FolderHasherTest {
+    private static final String BUNDLE_PATH = "GreatPush/index.android.bundle";
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private TestHttpServer mServer;
+    private GreatPushUpdateManager mUpdateManager;
+    private int mHashingParallelism;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new TestHttpServer();
+        mUpdateManager = new GreatPushUpdateManager(mTemporaryFolder.newFolder("documents").getAbsolutePath());
+        mUpdateManager.setHttpTransport(new UrlConnectionTransport());
+        mHashingParallelism = GreatPushUpdateUtils.getHashingParallelism();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        GreatPushUpdateUtils.setHashingParallelism(mHashingParallelism);
+        mServer.close();
+    }
+
+    @Test
+    public void hashesLikeTheCliOnAnyNumberOfThreads() throws Exception {
+        Map<String, byte[]> files = TestPackages.createPackageFiles(200, 20000);
+        File folder = TestPackages.writeFolder(mTemporaryFolder.newFolder("package"), files);
+        // Files the device keeps in a package folder are not part of the package hash.
+        TestPackages.writeFile(new File(folder, GreatPushConstants.PACKAGE_FILE_NAME), "{}".getBytes("UTF-8"));
+        TestPackages.writeFile(PackageHashIndex.getIndexFile(folder.getAbsolutePath()), "{}".getBytes("UTF-8"));
+
+        ArrayList<String> sequentialManifest = sorted(new FolderHasher(1).hashFolder(folder.getAbsolutePath(), null));
+        assertEquals(files.size(), sequentialManifest.size());
+        for (int parallelism : new int[] { 2, 4, 16 }) {
+            assertEquals(sequentialManifest, sorted(new FolderHasher(parallelism).hashFolder(folder.getAbsolutePath(), null)));
+        }
+
+        String packageHash = TestPackages.packageHash(files);
+        for (int parallelism : new int[] { 1, 4 }) {
+            GreatPushUpdateUtils.setHashingParallelism(parallelism);
+            GreatPushUpdateUtils.verifyFolderHash(folder.getAbsolutePath(), packageHash);
+        }
+    }
+
+    @Test
+    public void verifiesADownloadedPackage() throws Exception {
+        Map<String, byte[]> files = TestPackages.createPackageFiles(50, 5000);
+        String packageHash = download(files);
+
+        assertTrue(mUpdateManager.verifyPackage(packageHash));
+    }
+
+    @Test
+    public void refusesAPackageWhoseFilesChangedOnDisk() throws Exception {
+        Map<String, byte[]> files = TestPackages.createPackageFiles(50, 5000);
+        String packageHash = download(files);
+        File bundleFile = new File(mUpdateManager.getPackageFolderPath(packageHash), BUNDLE_PATH);
+        TestPackages.writeFile(bundleFile, TestPackages.randomBytes(1000, 42));
+
+        try {
+            mUpdateManager.verifyPackage(packageHash);
+            fail("The changed bundle should have failed the check.");
+        } catch (GreatPushInvalidUpdateException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void doesNotCheckASingleBundlePackage() throws Exception {
+        mServer.setFile("/index.android.bundle", TestPackages.randomBytes(10000, 7));
+        mUpdateManager.downloadPackage(TestPackages.createUpdatePackage("bundlehash", mServer.getUrl("/index.android.bundle")),
+                "index.android.bundle", BundleFormat.NO_BYTECODE_VERSION, TestPackages.getProgressCallback(), null);
+
+        assertFalse(mUpdateManager.verifyPackage("bundlehash"));
+    }
+
+    private String download(Map<String, byte[]> files) throws Exception {
+        String packageHash = TestPackages.packageHash(files);
+        mServer.setFile("/package.zip", TestPackages.zip(files));
+        mUpdateManager.downloadPackage(TestPackages.createUpdatePackage(packageHash, mServer.getUrl("/package.zip")),
+                "index.android.bundle", BundleFormat.NO_BYTECODE_VERSION, TestPackages.getProgressCallback(), null);
+        return packageHash;
+    }
+
+    private static ArrayList<String> sorted(ArrayList<String> manifest) {
+        Collections.sort(manifest);
+        return manifest;
+    }
+}
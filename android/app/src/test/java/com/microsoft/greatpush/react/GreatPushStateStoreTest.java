@@ -0,0 +1,65 @@
+package com.microsoft.greatpush.react;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class GreatPushStateStoreTest {
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void compactsOnOpenOnceTheStaleRecordsPassTheThreshold() throws Exception {
+        File storeFile = new File(mTemporaryFolder.getRoot(), GreatPushConstants.STATE_STORE_FILE_NAME);
+        GreatPushStateStore store = GreatPushStateStore.open(storeFile);
+        store.putString("kept", "value", false);
+        for (int i = 0; i < 100; i++) {
+            store.putString("pendingUpdate", "update " + i, false);
+        }
+
+        assertEquals(99, store.getStaleRecordCount());
+
+        GreatPushStateStore reopenedStore = GreatPushStateStore.open(storeFile);
+
+        assertEquals(0, reopenedStore.getStaleRecordCount());
+        assertEquals("value", reopenedStore.getString("kept"));
+        assertEquals("update 99", reopenedStore.getString("pendingUpdate"));
+        assertEquals(0, GreatPushStateStore.open(storeFile).getStaleRecordCount());
+    }
+
+    @Test
+    public void keepsTheLogOnOpenBelowTheThreshold() throws Exception {
+        File storeFile = new File(mTemporaryFolder.getRoot(), GreatPushConstants.STATE_STORE_FILE_NAME);
+        GreatPushStateStore store = GreatPushStateStore.open(storeFile);
+        for (int i = 0; i < 10; i++) {
+            store.putString("pendingUpdate", "update " + i, false);
+        }
+
+        GreatPushStateStore reopenedStore = GreatPushStateStore.open(storeFile);
+
+        assertEquals(9, reopenedStore.getStaleRecordCount());
+        assertEquals("update 9", reopenedStore.getString("pendingUpdate"));
+    }
+
+    @Test
+    public void countsRemovedValuesAsStale() throws Exception {
+        File storeFile = new File(mTemporaryFolder.getRoot(), GreatPushConstants.STATE_STORE_FILE_NAME);
+        GreatPushStateStore store = GreatPushStateStore.open(storeFile);
+        for (int i = 0; i < 40; i++) {
+            store.putString("failedUpdate", "update " + i, false);
+            store.remove("failedUpdate", false);
+        }
+
+        assertEquals(80, store.getStaleRecordCount());
+
+        GreatPushStateStore reopenedStore = GreatPushStateStore.open(storeFile);
+
+        assertEquals(0, reopenedStore.getStaleRecordCount());
+        assertNull(reopenedStore.getString("failedUpdate"));
+    }
+}
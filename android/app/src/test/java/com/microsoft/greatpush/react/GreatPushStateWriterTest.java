@@ -0,0 +1,189 @@
+package com.microsoft.greatpush.react;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GreatPushStateWriterTest {
+    private static final int THREAD_COUNT = 8;
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void changesNeverInterleave() throws Exception {
+        final int[] counter = new int[1];
+        final AtomicInteger runningChanges = new AtomicInteger();
+        final AtomicInteger maxRunningChanges = new AtomicInteger();
+        runConcurrently(new Callable<Void>() {
+            @Override
+            public Void call() {
+                for (int i = 0; i < 1000; i++) {
+                    GreatPushStateWriter.getInstance().write(new Runnable() {
+                        @Override
+                        public void run() {
+                            int running = runningChanges.incrementAndGet();
+                            maxRunningChanges.set(Math.max(maxRunningChanges.get(), running));
+                            // A read-modify-write that loses updates if two changes interleave.
+                            int value = counter[0];
+                            Thread.yield();
+                            counter[0] = value + 1;
+                            runningChanges.decrementAndGet();
+                        }
+                    });
+                }
+
+                return null;
+            }
+        });
+
+        assertEquals(THREAD_COUNT * 1000, counter[0]);
+        assertEquals(1, maxRunningChanges.get());
+    }
+
+    @Test
+    public void changeMadeByAChangeRunsInline() {
+        final List<String> steps = new ArrayList<>();
+        String result = GreatPushStateWriter.getInstance().write(new Callable<String>() {
+            @Override
+            public String call() {
+                steps.add("outer");
+                GreatPushStateWriter.getInstance().write(new Runnable() {
+                    @Override
+                    public void run() {
+                        steps.add("inner");
+                    }
+                });
+                steps.add("outer done");
+                return "result";
+            }
+        });
+
+        assertEquals("result", result);
+        assertEquals(3, steps.size());
+        assertEquals("inner", steps.get(1));
+    }
+
+    @Test
+    public void errorsReachTheCaller() {
+        final IllegalStateException runtimeError = new IllegalStateException();
+        try {
+            GreatPushStateWriter.getInstance().write(new Runnable() {
+                @Override
+                public void run() {
+                    throw runtimeError;
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertSame(runtimeError, e);
+        }
+
+        final IOException checkedError = new IOException();
+        try {
+            GreatPushStateWriter.getInstance().write(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    throw checkedError;
+                }
+            });
+            fail();
+        } catch (GreatPushUnknownException e) {
+            assertSame(checkedError, e.getCause());
+        }
+    }
+
+    // A stress test of the state of the updates: installs, rollbacks and reads of the package info
+    // from several threads must always leave a consistent status file behind.
+    @Test
+    public void concurrentInstallsAndRollbacksKeepTheStateConsistent() throws Exception {
+        File documentsFolder = mTemporaryFolder.getRoot();
+        new File(documentsFolder, GreatPushConstants.GREAT_PUSH_FOLDER_PREFIX).mkdirs();
+        final GreatPushUpdateManager updateManager = new GreatPushUpdateManager(documentsFolder.getAbsolutePath());
+        final AtomicInteger threadIndex = new AtomicInteger();
+        final List<String> inconsistencies = Collections.synchronizedList(new ArrayList<String>());
+        runConcurrently(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                int thread = threadIndex.getAndIncrement();
+                Random random = new Random(thread);
+                for (int i = 0; i < 200; i++) {
+                    int operation = random.nextInt(4);
+                    if (operation < 2) {
+                        String packageHash = "package" + thread + "_" + i;
+                        new File(updateManager.getPackageFolderPath(packageHash)).mkdirs();
+                        updateManager.installPackage(new JSONObject().put(GreatPushConstants.PACKAGE_HASH_KEY, packageHash), random.nextBoolean());
+                    } else if (operation == 2) {
+                        updateManager.rollbackPackage();
+                    } else {
+                        JSONObject info = updateManager.getCurrentPackageInfo();
+                        String currentPackageHash = info.optString(GreatPushConstants.CURRENT_PACKAGE_KEY, null);
+                        if (currentPackageHash != null && currentPackageHash.equals(info.optString(GreatPushConstants.PREVIOUS_PACKAGE_KEY, null))) {
+                            inconsistencies.add("The current package is also the previous one: " + info);
+                        }
+                    }
+                }
+
+                return null;
+            }
+        });
+
+        assertTrue(inconsistencies.toString(), inconsistencies.isEmpty());
+        JSONObject info = GreatPushUtils.getJsonObjectFromFile(new File(documentsFolder, "GreatPush/" + GreatPushConstants.STATUS_FILE).getAbsolutePath());
+        String currentPackageHash = info.optString(GreatPushConstants.CURRENT_PACKAGE_KEY, null);
+        String previousPackageHash = info.optString(GreatPushConstants.PREVIOUS_PACKAGE_KEY, null);
+        if (currentPackageHash != null) {
+            assertNotEquals(currentPackageHash, previousPackageHash);
+        }
+
+        for (String packageHash : new String[]{currentPackageHash, previousPackageHash}) {
+            if (packageHash != null) {
+                assertTrue(packageHash, new File(updateManager.getPackageFolderPath(packageHash)).exists());
+            }
+        }
+    }
+
+    // Runs the task on THREAD_COUNT threads at once, and rethrows what any of them threw.
+    private static void runConcurrently(final Callable<Void> task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> results = new ArrayList<>();
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    return task.call();
+                }
+            }));
+        }
+
+        start.countDown();
+        for (Future<Void> result : results) {
+            result.get(60, TimeUnit.SECONDS);
+        }
+
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,126 @@
+package com.microsoft.greatpush.react;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PackageHashIndexTest {
+    private static final String BUNDLE_PATH = "GreatPush/index.android.bundle";
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mFolder;
+    private Map<String, byte[]> mFiles;
+    private String mPackageHash;
+
+    @Before
+    public void setUp() throws Exception {
+        mFolder = mTemporaryFolder.newFolder("package");
+        mFiles = new TreeMap<>();
+        mFiles.put(BUNDLE_PATH, TestPackages.randomBytes(50000, 1));
+        mFiles.put("GreatPush/assets/image.png", TestPackages.randomBytes(5000, 2));
+        for (Map.Entry<String, byte[]> file : mFiles.entrySet()) {
+            TestPackages.writeFile(new File(mFolder, file.getKey()), file.getValue());
+        }
+
+        mPackageHash = TestPackages.packageHash(mFiles);
+    }
+
+    @After
+    public void tearDown() {
+        GreatPushUpdateUtils.setHashIndexEnabled(true);
+    }
+
+    @Test
+    public void verificationRecordsTheHashesOfTheFiles() throws Exception {
+        GreatPushUpdateUtils.verifyFolderHash(mFolder.getAbsolutePath(), mPackageHash);
+
+        PackageHashIndex hashIndex = PackageHashIndex.load(mFolder.getAbsolutePath());
+        assertEquals(mFiles.size(), hashIndex.size());
+        assertEquals(TestPackages.sha256(mFiles.get(BUNDLE_PATH)), hashIndex.getHash(BUNDLE_PATH, new File(mFolder, BUNDLE_PATH)));
+    }
+
+    @Test
+    public void fileWithANewModificationTimeIsHashedAgain() throws Exception {
+        GreatPushUpdateUtils.verifyFolderHash(mFolder.getAbsolutePath(), mPackageHash);
+        File bundleFile = new File(mFolder, BUNDLE_PATH);
+        long lastModified = bundleFile.lastModified();
+        TestPackages.writeFile(bundleFile, TestPackages.randomBytes(50000, 3));
+        bundleFile.setLastModified(lastModified + 2000);
+
+        assertNull(PackageHashIndex.load(mFolder.getAbsolutePath()).getHash(BUNDLE_PATH, bundleFile));
+        assertVerificationFails();
+    }
+
+    // The trade-off of the index: a change in place that keeps the size and modification time of
+    // the file is only caught with the index disabled.
+    @Test
+    public void changeKeepingSizeAndModificationTimeIsOnlyCaughtWithoutTheIndex() throws Exception {
+        GreatPushUpdateUtils.verifyFolderHash(mFolder.getAbsolutePath(), mPackageHash);
+        File bundleFile = new File(mFolder, BUNDLE_PATH);
+        long lastModified = bundleFile.lastModified();
+        TestPackages.writeFile(bundleFile, TestPackages.randomBytes(50000, 3));
+        bundleFile.setLastModified(lastModified);
+
+        GreatPushUpdateUtils.verifyFolderHash(mFolder.getAbsolutePath(), mPackageHash);
+
+        GreatPushUpdateUtils.setHashIndexEnabled(false);
+        assertVerificationFails();
+    }
+
+    @Test
+    public void unreadableIndexIsIgnored() throws Exception {
+        TestPackages.writeFile(PackageHashIndex.getIndexFile(mFolder.getAbsolutePath()), "not json".getBytes("UTF-8"));
+
+        assertEquals(0, PackageHashIndex.load(mFolder.getAbsolutePath()).size());
+        GreatPushUpdateUtils.verifyFolderHash(mFolder.getAbsolutePath(), mPackageHash);
+        assertEquals(mFiles.size(), PackageHashIndex.load(mFolder.getAbsolutePath()).size());
+    }
+
+    @Test
+    public void replacingTheCurrentBundleDropsTheIndex() throws Exception {
+        TestHttpServer server = new TestHttpServer();
+        try {
+            GreatPushUpdateManager updateManager = new GreatPushUpdateManager(mTemporaryFolder.newFolder("documents").getAbsolutePath());
+            updateManager.setHttpTransport(new UrlConnectionTransport());
+            server.setFile("/package.zip", TestPackages.zip(mFiles));
+            updateManager.downloadPackage(TestPackages.createUpdatePackage(mPackageHash, server.getUrl("/package.zip")),
+                    "index.android.bundle", BundleFormat.NO_BYTECODE_VERSION, TestPackages.getProgressCallback(), null);
+            updateManager.installPackage(updateManager.getPackage(mPackageHash), false);
+            String packageFolderPath = updateManager.getPackageFolderPath(mPackageHash);
+            assertTrue(PackageHashIndex.getIndexFile(packageFolderPath).exists());
+
+            byte[] bundle = TestPackages.randomBytes(50000, 3);
+            server.setFile("/index.android.bundle", bundle);
+            updateManager.downloadAndReplaceCurrentBundle(server.getUrl("/index.android.bundle"), "index.android.bundle");
+
+            assertArrayEquals(bundle, TestPackages.readFile(new File(packageFolderPath, BUNDLE_PATH)));
+            assertFalse(PackageHashIndex.getIndexFile(packageFolderPath).exists());
+        } finally {
+            server.close();
+        }
+    }
+
+    private void assertVerificationFails() {
+        try {
+            GreatPushUpdateUtils.verifyFolderHash(mFolder.getAbsolutePath(), mPackageHash);
+            fail("The changed bundle should have failed the check.");
+        } catch (GreatPushInvalidUpdateException e) {
+            // Expected.
+        }
+    }
+}
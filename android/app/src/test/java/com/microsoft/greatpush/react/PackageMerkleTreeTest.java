@@ -0,0 +1,113 @@
+package com.microsoft.greatpush.react;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PackageMerkleTreeTest {
+    private static final String BUNDLE_PATH = "GreatPush/index.android.bundle";
+    private static final String IMAGE_PATH = "GreatPush/assets/images/image.png";
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private TestHttpServer mServer;
+    private GreatPushUpdateManager mUpdateManager;
+    private String mPackageHash;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new TestHttpServer();
+        mUpdateManager = new GreatPushUpdateManager(mTemporaryFolder.getRoot().getAbsolutePath());
+        mUpdateManager.setHttpTransport(new UrlConnectionTransport());
+
+        Map<String, byte[]> files = new TreeMap<>();
+        files.put(BUNDLE_PATH, TestPackages.randomBytes(100000, 1));
+        files.put(IMAGE_PATH, TestPackages.randomBytes(5000, 2));
+        files.put("GreatPush/assets/fonts/font.ttf", TestPackages.randomBytes(5000, 3));
+        mPackageHash = TestPackages.packageHash(files);
+        mServer.setFile("/package.zip", TestPackages.zip(files));
+        mUpdateManager.downloadPackage(TestPackages.createUpdatePackage(mPackageHash, mServer.getUrl("/package.zip")),
+                "index.android.bundle", BundleFormat.NO_BYTECODE_VERSION, TestPackages.getProgressCallback(), null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+    }
+
+    @Test
+    public void checksSingleFilesAndDirectories() throws Exception {
+        assertTrue(mUpdateManager.verifyPackageContents(mPackageHash, BUNDLE_PATH));
+        assertTrue(mUpdateManager.verifyPackageContents(mPackageHash, "GreatPush/assets"));
+        assertTrue(mUpdateManager.verifyPackageContents(mPackageHash, ""));
+    }
+
+    @Test
+    public void onlyTheCheckedPartIsRead() throws Exception {
+        TestPackages.writeFile(new File(mUpdateManager.getPackageFolderPath(mPackageHash), IMAGE_PATH), TestPackages.randomBytes(5000, 4));
+
+        assertTrue(mUpdateManager.verifyPackageContents(mPackageHash, BUNDLE_PATH));
+        assertTrue(mUpdateManager.verifyPackageContents(mPackageHash, "GreatPush/assets/fonts"));
+        assertVerificationFails("GreatPush/assets/images");
+        assertVerificationFails("");
+    }
+
+    @Test
+    public void refusesAChangedBundle() throws Exception {
+        TestPackages.writeFile(new File(mUpdateManager.getPackageFolderPath(mPackageHash), BUNDLE_PATH), TestPackages.randomBytes(100000, 5));
+
+        assertVerificationFails(BUNDLE_PATH);
+    }
+
+    @Test
+    public void refusesATreeThatDoesNotMatchThePackageHash() throws Exception {
+        File treeFile = PackageMerkleTree.getTreeFile(mUpdateManager.getPackageFolderPath(mPackageHash));
+        JSONObject tree = new JSONObject(new String(TestPackages.readFile(treeFile), "UTF-8"));
+        tree.getJSONObject("files").put(IMAGE_PATH, TestPackages.sha256(new byte[0]));
+        TestPackages.writeFile(treeFile, tree.toString().getBytes("UTF-8"));
+
+        assertVerificationFails(BUNDLE_PATH);
+    }
+
+    @Test
+    public void packageWithoutATreeIsNotChecked() throws Exception {
+        mServer.setFile("/index.android.bundle", TestPackages.randomBytes(10000, 6));
+        mUpdateManager.downloadPackage(TestPackages.createUpdatePackage("bundlehash", mServer.getUrl("/index.android.bundle")),
+                "index.android.bundle", BundleFormat.NO_BYTECODE_VERSION, TestPackages.getProgressCallback(), null);
+
+        assertFalse(mUpdateManager.verifyPackageContents("bundlehash", "index.android.bundle"));
+    }
+
+    @Test
+    public void replacingTheCurrentBundleDropsTheTree() throws Exception {
+        mUpdateManager.installPackage(mUpdateManager.getPackage(mPackageHash), false);
+        mServer.setFile("/index.android.bundle", TestPackages.randomBytes(100000, 7));
+
+        mUpdateManager.downloadAndReplaceCurrentBundle(mServer.getUrl("/index.android.bundle"), "index.android.bundle");
+
+        assertFalse(PackageMerkleTree.getTreeFile(mUpdateManager.getPackageFolderPath(mPackageHash)).exists());
+        assertFalse(mUpdateManager.verifyPackageContents(mPackageHash, BUNDLE_PATH));
+    }
+
+    private void assertVerificationFails(String relativePath) throws IOException {
+        try {
+            mUpdateManager.verifyPackageContents(mPackageHash, relativePath);
+            fail("\"" + relativePath + "\" should have failed the check.");
+        } catch (GreatPushInvalidUpdateException e) {
+            // Expected.
+        }
+    }
+}
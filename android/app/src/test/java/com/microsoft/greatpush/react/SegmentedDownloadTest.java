@@ -0,0 +1,166 @@
+package com.microsoft.greatpush.react;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedDownloadTest {
+    private static final String BUNDLE_PATH = "GreatPush/index.android.bundle";
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private final CountDownLatch mBodySent = new CountDownLatch(1);
+    private volatile CountDownLatch mReleaseBody;
+
+    private TestHttpServer mServer;
+    private GreatPushUpdateManager mUpdateManager;
+    private Map<String, byte[]> mFiles;
+    private String mPackageHash;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new TestHttpServer() {
+            @Override
+            protected void onSendBody(String path) throws InterruptedException {
+                CountDownLatch releaseBody = mReleaseBody;
+                if (releaseBody != null) {
+                    mBodySent.countDown();
+                    releaseBody.await();
+                }
+            }
+        };
+        mUpdateManager = new GreatPushUpdateManager(mTemporaryFolder.getRoot().getAbsolutePath());
+        mUpdateManager.setHttpTransport(new UrlConnectionTransport());
+        mUpdateManager.setDownloadSegmentation(4, 500000);
+
+        mFiles = new TreeMap<>();
+        mFiles.put(BUNDLE_PATH, TestPackages.randomBytes(3000000, 1));
+        mFiles.put("GreatPush/assets/image.png", TestPackages.randomBytes(5000, 2));
+        mPackageHash = TestPackages.packageHash(mFiles);
+        mServer.setFile("/package.zip", TestPackages.zip(mFiles));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        CountDownLatch releaseBody = mReleaseBody;
+        if (releaseBody != null) {
+            releaseBody.countDown();
+        }
+
+        mServer.close();
+    }
+
+    @Test
+    public void downloadsInSegments() throws Exception {
+        download();
+
+        List<String> requests = mServer.getRequests();
+        assertEquals(requests.toString(), 5, requests.size());
+        assertTrue(requests.get(0), requests.get(0).startsWith("HEAD"));
+        for (String request : requests.subList(1, requests.size())) {
+            assertTrue(request, request.contains("range=bytes="));
+        }
+
+        assertInstalled();
+    }
+
+    @Test
+    public void fallsBackToASingleConnectionWhenASegmentFails() throws Exception {
+        mServer.failNextResponseAfter(100000);
+
+        download();
+
+        assertDownloadedOverASingleConnection();
+        assertInstalled();
+    }
+
+    @Test
+    public void fallsBackToASingleConnectionWhenTheProbeFails() throws Exception {
+        mServer.setDroppedMethod("HEAD");
+
+        download();
+
+        assertDownloadedOverASingleConnection();
+        assertInstalled();
+    }
+
+    @Test
+    public void fallsBackToASingleConnectionWithoutRangeSupport() throws Exception {
+        mServer.setSupportsRanges(false);
+
+        download();
+
+        assertDownloadedOverASingleConnection();
+        assertInstalled();
+    }
+
+    @Test
+    public void cancelledDownloadDoesNotFallBack() throws Exception {
+        mReleaseBody = new CountDownLatch(1);
+        final Exception[] failure = new Exception[1];
+        Thread downloadThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    download();
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        downloadThread.start();
+
+        assertTrue(mBodySent.await(10, TimeUnit.SECONDS));
+        assertTrue(mUpdateManager.cancelDownload(mPackageHash));
+        downloadThread.join(10000);
+
+        assertFalse(downloadThread.isAlive());
+        assertTrue(String.valueOf(failure[0]), failure[0] instanceof GreatPushDownloadCancelledException);
+        for (String request : mServer.getRequests()) {
+            assertFalse(request, request.startsWith("GET") && request.contains("range=null"));
+        }
+
+        assertFalse(new File(mUpdateManager.getPackageFolderPath(mPackageHash)).exists());
+    }
+
+    private void download() throws Exception {
+        mUpdateManager.downloadPackage(TestPackages.createUpdatePackage(mPackageHash, mServer.getUrl("/package.zip")),
+                "index.android.bundle", BundleFormat.NO_BYTECODE_VERSION, TestPackages.getProgressCallback(), null);
+    }
+
+    // The server may log the requests of the stopped segments after the one that replaced them.
+    private void assertDownloadedOverASingleConnection() {
+        List<String> requests = mServer.getRequests();
+        boolean isDownloadedOverASingleConnection = false;
+        for (String request : requests) {
+            isDownloadedOverASingleConnection |= request.startsWith("GET") && request.contains("range=null");
+        }
+
+        assertTrue(requests.toString(), isDownloadedOverASingleConnection);
+    }
+
+    private void assertInstalled() throws Exception {
+        Map<String, byte[]> installedFiles = TestPackages.readFolder(new File(mUpdateManager.getPackageFolderPath(mPackageHash)));
+        for (Map.Entry<String, byte[]> file : mFiles.entrySet()) {
+            assertArrayEquals(file.getKey(), file.getValue(), installedFiles.get(file.getKey()));
+        }
+
+        assertFalse(new File(mTemporaryFolder.getRoot(), "GreatPush/" + GreatPushConstants.DOWNLOADS_FOLDER_NAME + "/" + mPackageHash).exists());
+    }
+}
@@ -0,0 +1,224 @@
+package com.microsoft.greatpush.react;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+// A small HTTP/1.1 server for the download tests. It serves files from memory, with or without
+// support for range requests, can compress them with gzip and can drop a connection part way
+// through a response, or before it, to simulate a network failure.
+class TestHttpServer {
+    private final Map<String, byte[]> mFiles = Collections.synchronizedMap(new HashMap<String, byte[]>());
+    private final List<String> mRequests = Collections.synchronizedList(new ArrayList<String>());
+    private final ServerSocket mServerSocket;
+
+    private volatile boolean mSupportsRanges = true;
+    private volatile boolean mSupportsGzip = false;
+    private volatile boolean mSendsContentLength = true;
+    private volatile String mETag = "\"v1\"";
+    private volatile String mDroppedMethod;
+    private int mFailAfterBytes = -1;
+
+    public TestHttpServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    final Socket socket;
+                    try {
+                        socket = mServerSocket.accept();
+                    } catch (IOException e) {
+                        return;
+                    }
+
+                    Thread connectionThread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                handle(socket);
+                            } catch (IOException | InterruptedException e) {
+                                // The client went away.
+                            } finally {
+                                try {
+                                    socket.close();
+                                } catch (IOException e) {
+                                    // Nothing left to do with the connection.
+                                }
+                            }
+                        }
+                    });
+                    connectionThread.setDaemon(true);
+                    connectionThread.start();
+                }
+            }
+        });
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    public void setFile(String path, byte[] contents) {
+        mFiles.put(path, contents);
+    }
+
+    public void setSupportsRanges(boolean supportsRanges) {
+        mSupportsRanges = supportsRanges;
+    }
+
+    // Compresses the file when the client accepts gzip, like a server that serves precompressed
+    // files: ranges are then ranges of the compressed bytes, which have an entity tag of their own.
+    public void setSupportsGzip(boolean supportsGzip) {
+        mSupportsGzip = supportsGzip;
+    }
+
+    // Without a length, the end of the body is where the server closes the connection.
+    public void setSendsContentLength(boolean sendsContentLength) {
+        mSendsContentLength = sendsContentLength;
+    }
+
+    public void setETag(String eTag) {
+        mETag = eTag;
+    }
+
+    // Closes the connection of the next response that is longer than failAfterBytes once that many
+    // bytes of its body have been sent.
+    public synchronized void failNextResponseAfter(int failAfterBytes) {
+        mFailAfterBytes = failAfterBytes;
+    }
+
+    // Closes the connection of every request with this method without responding.
+    public void setDroppedMethod(String method) {
+        mDroppedMethod = method;
+    }
+
+    // Each request as "<method> <path> range=<Range> ae=<Accept-Encoding> ifRange=<If-Range>".
+    public List<String> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<>(mRequests);
+        }
+    }
+
+    public void clearRequests() {
+        mRequests.clear();
+    }
+
+    public void close() throws IOException {
+        mServerSocket.close();
+    }
+
+    // Called before the body of a response is sent, e.g. to hold it back.
+    protected void onSendBody(String path) throws InterruptedException {
+    }
+
+    private void handle(Socket socket) throws IOException, InterruptedException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+        String requestLine = reader.readLine();
+        if (requestLine == null) {
+            return;
+        }
+
+        String[] requestParts = requestLine.split(" ");
+        String method = requestParts[0];
+        String path = requestParts[1];
+        Map<String, String> headers = new HashMap<>();
+        String headerLine;
+        while ((headerLine = reader.readLine()) != null && !headerLine.isEmpty()) {
+            int separatorIndex = headerLine.indexOf(':');
+            headers.put(headerLine.substring(0, separatorIndex).trim().toLowerCase(), headerLine.substring(separatorIndex + 1).trim());
+        }
+
+        String range = headers.get("range");
+        String acceptEncoding = headers.get("accept-encoding");
+        mRequests.add(method + " " + path + " range=" + range + " ae=" + acceptEncoding + " ifRange=" + headers.get("if-range"));
+
+        if (method.equals(mDroppedMethod)) {
+            return;
+        }
+
+        OutputStream outputStream = socket.getOutputStream();
+        byte[] file = mFiles.get(path);
+        if (file == null) {
+            outputStream.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("ISO-8859-1"));
+            return;
+        }
+
+        StringBuilder responseHeaders = new StringBuilder();
+        String eTag = mETag;
+        if (mSupportsGzip && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream compressedFile = new ByteArrayOutputStream();
+            GZIPOutputStream gzipStream = new GZIPOutputStream(compressedFile);
+            gzipStream.write(file);
+            gzipStream.close();
+            file = compressedFile.toByteArray();
+            eTag = eTag.substring(0, eTag.length() - 1) + "-gzip\"";
+            responseHeaders.append("Content-Encoding: gzip\r\n");
+        }
+
+        int statusCode = 200;
+        int firstByte = 0;
+        int lastByte = file.length - 1;
+        String ifRange = headers.get("if-range");
+        if (range != null && mSupportsRanges && (ifRange == null || ifRange.equals(eTag))) {
+            String[] rangeBounds = range.substring("bytes=".length()).split("-");
+            firstByte = Integer.parseInt(rangeBounds[0]);
+            if (firstByte >= file.length) {
+                outputStream.write("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("ISO-8859-1"));
+                return;
+            }
+
+            if (rangeBounds.length > 1 && !rangeBounds[1].isEmpty()) {
+                lastByte = Math.min(lastByte, Integer.parseInt(rangeBounds[1]));
+            }
+
+            statusCode = 206;
+            responseHeaders.append("Content-Range: bytes ").append(firstByte).append("-").append(lastByte).append("/").append(file.length).append("\r\n");
+        }
+
+        byte[] body = Arrays.copyOfRange(file, firstByte, lastByte + 1);
+        responseHeaders.append("ETag: ").append(eTag).append("\r\n");
+        if (mSupportsRanges) {
+            responseHeaders.append("Accept-Ranges: bytes\r\n");
+        }
+
+        if (mSendsContentLength) {
+            responseHeaders.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+
+        outputStream.write(("HTTP/1.1 " + statusCode + " Test\r\n" + responseHeaders
+                + "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+        if (method.equals("HEAD")) {
+            return;
+        }
+
+        onSendBody(path);
+        int sentBytes = body.length;
+        synchronized (this) {
+            if (mFailAfterBytes >= 0 && body.length > mFailAfterBytes) {
+                sentBytes = mFailAfterBytes;
+                mFailAfterBytes = -1;
+            }
+        }
+
+        for (int offset = 0; offset < sentBytes; offset += 64 * 1024) {
+            outputStream.write(body, offset, Math.min(64 * 1024, sentBytes - offset));
+        }
+
+        outputStream.flush();
+    }
+}
@@ -0,0 +1,146 @@
+package com.microsoft.greatpush.react;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Builds the update packages used by the tests, and reads back what was installed.
+class TestPackages {
+    public static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    // A bundle of about bundleSize bytes and imageCount images of 1 to 20 KB.
+    public static Map<String, byte[]> createPackageFiles(int imageCount, int bundleSize) throws IOException {
+        StringBuilder bundle = new StringBuilder();
+        while (bundle.length() < bundleSize) {
+            bundle.append("__d(function(global, require, module, exports) { module.exports = ").append(bundle.length()).append("; });\n");
+        }
+
+        Map<String, byte[]> files = new TreeMap<>();
+        files.put("GreatPush/index.android.bundle", bundle.toString().getBytes("UTF-8"));
+        for (int i = 0; i < imageCount; i++) {
+            files.put("GreatPush/assets/image" + i + ".png", randomBytes(1024 + (i * 7919) % (19 * 1024), i + 1));
+        }
+
+        return files;
+    }
+
+    public static JSONObject createUpdatePackage(String packageHash, String downloadUrl) throws Exception {
+        JSONObject updatePackage = new JSONObject();
+        updatePackage.put(GreatPushConstants.PACKAGE_HASH_KEY, packageHash);
+        updatePackage.put(GreatPushConstants.DOWNLOAD_URL_KEY, downloadUrl);
+        return updatePackage;
+    }
+
+    // A callback for the downloads whose progress is not checked.
+    public static DownloadProgressCallback getProgressCallback() {
+        return new DownloadProgressCallback() {
+            @Override
+            public void call(DownloadProgress downloadProgress) {
+            }
+        };
+    }
+
+    public static byte[] zip(Map<String, byte[]> files) throws IOException {
+        ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+        ZipOutputStream zipStream = new ZipOutputStream(zipBytes);
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            zipStream.putNextEntry(new ZipEntry(file.getKey()));
+            zipStream.write(file.getValue());
+            zipStream.closeEntry();
+        }
+
+        zipStream.close();
+        return zipBytes.toByteArray();
+    }
+
+    // The package hash that the CLI computes for these files.
+    public static String packageHash(Map<String, byte[]> files) throws Exception {
+        List<String> manifest = new ArrayList<>();
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            manifest.add(file.getKey() + ":" + sha256(file.getValue()));
+        }
+
+        Collections.sort(manifest);
+        StringBuilder manifestString = new StringBuilder("[");
+        for (int i = 0; i < manifest.size(); i++) {
+            manifestString.append(i > 0 ? "," : "").append('"').append(manifest.get(i)).append('"');
+        }
+
+        return sha256(manifestString.append("]").toString().getBytes("UTF-8"));
+    }
+
+    public static String sha256(byte[] bytes) throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(bytes);
+        return String.format("%064x", new java.math.BigInteger(1, hash));
+    }
+
+    // The files under the folder by their path relative to it.
+    public static Map<String, byte[]> readFolder(File folder) throws IOException {
+        Map<String, byte[]> files = new TreeMap<>();
+        readFolder(folder, "", files);
+        return files;
+    }
+
+    public static byte[] readFile(File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FileInputStream fileStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int numBytesRead;
+            while ((numBytesRead = fileStream.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, numBytesRead);
+            }
+        } finally {
+            fileStream.close();
+        }
+
+        return bytes.toByteArray();
+    }
+
+    // Writes the files under the folder by their path relative to it.
+    public static File writeFolder(File folder, Map<String, byte[]> files) throws IOException {
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            writeFile(new File(folder, file.getKey()), file.getValue());
+        }
+
+        return folder;
+    }
+
+    public static void writeFile(File file, byte[] contents) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream fileStream = new FileOutputStream(file);
+        try {
+            fileStream.write(contents);
+        } finally {
+            fileStream.close();
+        }
+    }
+
+    private static void readFolder(File folder, String pathPrefix, Map<String, byte[]> files) throws IOException {
+        for (File file : folder.listFiles()) {
+            String relativePath = pathPrefix.isEmpty() ? file.getName() : pathPrefix + "/" + file.getName();
+            if (file.isDirectory()) {
+                readFolder(file, relativePath, files);
+            } else {
+                files.put(relativePath, readFile(file));
+            }
+        }
+    }
+}
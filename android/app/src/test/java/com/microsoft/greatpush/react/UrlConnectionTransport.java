@@ -0,0 +1,81 @@
+package com.microsoft.greatpush.react;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+
+// Sends the requests of the download tests with HttpURLConnection, so that they do not need the
+// OkHttp client of React Native. A connection cannot be closed while another thread reads from it,
+// so reads wake up regularly to see whether the request was cancelled.
+class UrlConnectionTransport implements GreatPushHttpTransport {
+    private static final int CANCEL_CHECK_INTERVAL_MILLIS = 250;
+
+    @Override
+    public GreatPushHttpResponse execute(String method, URL url, Map<String, String> headers) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setReadTimeout(CANCEL_CHECK_INTERVAL_MILLIS);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        final int statusCode = connection.getResponseCode();
+        return new GreatPushHttpResponse() {
+            private volatile boolean mIsCancelled;
+
+            @Override
+            public int getStatusCode() {
+                return statusCode;
+            }
+
+            @Override
+            public String getHeader(String name) {
+                return connection.getHeaderField(name);
+            }
+
+            @Override
+            public long getContentLength() {
+                String contentLength = connection.getHeaderField("Content-Length");
+                return contentLength != null ? Long.parseLong(contentLength) : -1;
+            }
+
+            @Override
+            public InputStream getBody() throws IOException {
+                return new FilterInputStream(connection.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        byte[] data = new byte[1];
+                        return read(data, 0, 1) < 0 ? -1 : data[0] & 0xff;
+                    }
+
+                    @Override
+                    public int read(byte[] data, int offset, int length) throws IOException {
+                        while (true) {
+                            try {
+                                return super.read(data, offset, length);
+                            } catch (SocketTimeoutException e) {
+                                if (mIsCancelled) {
+                                    throw new IOException("The request was cancelled.");
+                                }
+                            }
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public void close() {
+                connection.disconnect();
+            }
+
+            @Override
+            public void cancel() {
+                mIsCancelled = true;
+            }
+        };
+    }
+}
@@ -39,6 +39,16 @@ export interface DownloadProgress {
      * The number of bytes downloaded thus far.
      */
     receivedBytes: number;
+
+    /**
+     * The average download rate so far, in bytes per second (Android only).
+     */
+    bytesPerSecond?: number;
+
+    /**
+     * The estimated time until the download completes, in milliseconds, or -1 if it is not known yet (Android only).
+     */
+    estimatedTimeRemaining?: number;
 }
 
 export interface LocalPackage extends Package {